@@ -0,0 +1,44 @@
+package com.tmorgner.osgi.runner;
+
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+
+/**
+ * The activator embedded into every bundle produced by {@link SyntheticBundleGenerator}. Its
+ * startup cost is controlled through manifest headers of the bundle that contains it.
+ */
+public class SyntheticActivator implements BundleActivator {
+  public static final String COST_HEADER = "X-Synthetic-Cost-Micros";
+  public static final String ALLOCATION_HEADER = "X-Synthetic-Allocation-KB";
+
+  // keeps the allocation reachable for the lifetime of the bundle.
+  private byte[][] retained;
+
+  @Override
+  public void start(BundleContext context) throws Exception {
+    final String cost = context.getBundle().getHeaders().get(COST_HEADER);
+    if (cost != null) {
+      final long end = System.nanoTime() + Long.parseLong(cost) * 1000L;
+      long spins = 0;
+      while (System.nanoTime() < end) {
+        spins += 1;
+      }
+      if (spins < 0) {
+        throw new IllegalStateException();
+      }
+    }
+    final String allocation = context.getBundle().getHeaders().get(ALLOCATION_HEADER);
+    if (allocation != null) {
+      retained = new byte[Integer.parseInt(allocation)][];
+      for (int i = 0; i < retained.length; i += 1) {
+        retained[i] = new byte[1024];
+      }
+    }
+    context.registerService(Runnable.class.getName(), (Runnable) () -> {}, null);
+  }
+
+  @Override
+  public void stop(BundleContext context) {
+    retained = null;
+  }
+}
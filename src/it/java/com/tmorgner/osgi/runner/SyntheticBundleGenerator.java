@@ -0,0 +1,202 @@
+package com.tmorgner.osgi.runner;
+
+import org.osgi.framework.Constants;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * Writes a deploy directory of synthetic bundles that resemble a large application: bundles export
+ * packages and import packages of bundles generated before them, some bundles are fragments of an
+ * earlier bundle, and the bundles are spread over nested <tt>rcNN</tt> run-level directories.
+ * Non-fragment bundles carry a {@link SyntheticActivator} with a configurable startup cost.
+ * <p>
+ * The output only depends on the settings and the seed, so repeated runs deploy identical bundles.
+ */
+public class SyntheticBundleGenerator {
+  private final int bundleCount;
+  private int importFanOut;
+  private int exportedPackages;
+  private double fragmentRatio;
+  private int runLevels;
+  private int activatorCostMicros;
+  private int activatorAllocationKB;
+  private long seed;
+
+  public SyntheticBundleGenerator(int bundleCount) {
+    this.bundleCount = bundleCount;
+    this.importFanOut = 3;
+    this.exportedPackages = 2;
+    this.fragmentRatio = 0.05;
+    this.runLevels = 3;
+    this.activatorCostMicros = 200;
+    this.activatorAllocationKB = 16;
+    this.seed = 42;
+  }
+
+  /**
+   * @param importFanOut the number of packages each bundle imports from earlier bundles.
+   */
+  public SyntheticBundleGenerator setImportFanOut(int importFanOut) {
+    this.importFanOut = importFanOut;
+    return this;
+  }
+
+  /**
+   * @param exportedPackages the number of packages each bundle exports.
+   */
+  public SyntheticBundleGenerator setExportedPackages(int exportedPackages) {
+    this.exportedPackages = exportedPackages;
+    return this;
+  }
+
+  /**
+   * @param fragmentRatio the share of bundles, between 0 and 1, generated as fragments.
+   */
+  public SyntheticBundleGenerator setFragmentRatio(double fragmentRatio) {
+    this.fragmentRatio = fragmentRatio;
+    return this;
+  }
+
+  /**
+   * @param runLevels the number of run levels. The first level uses the deploy directory itself,
+   *                  every further level is an <tt>rcNN</tt> directory nested in the previous one.
+   */
+  public SyntheticBundleGenerator setRunLevels(int runLevels) {
+    this.runLevels = runLevels;
+    return this;
+  }
+
+  /**
+   * @param activatorCostMicros the time each activator spends on the CPU when started.
+   */
+  public SyntheticBundleGenerator setActivatorCostMicros(int activatorCostMicros) {
+    this.activatorCostMicros = activatorCostMicros;
+    return this;
+  }
+
+  /**
+   * @param activatorAllocationKB the memory each activator allocates and keeps until it is stopped.
+   */
+  public SyntheticBundleGenerator setActivatorAllocationKB(int activatorAllocationKB) {
+    this.activatorAllocationKB = activatorAllocationKB;
+    return this;
+  }
+
+  public SyntheticBundleGenerator setSeed(long seed) {
+    this.seed = seed;
+    return this;
+  }
+
+  /**
+   * Writes the bundles into the given directory, which should be empty.
+   *
+   * @return the number of generated fragments.
+   */
+  public int generate(File deployDir) throws IOException {
+    final byte[] activator = readActivatorClass();
+    final Random random = new Random(seed);
+    final List<File> levelDirs = new ArrayList<>();
+    File dir = deployDir;
+    for (int level = 0; level < Math.max(1, runLevels); level += 1) {
+      if (level > 0) {
+        dir = new File(dir, String.format("rc%02d-synthetic", (level + 1) * 10));
+      }
+      levelDirs.add(dir);
+    }
+
+    final List<Integer> hosts = new ArrayList<>();
+    int fragments = 0;
+    for (int i = 0; i < bundleCount; i += 1) {
+      final File levelDir = levelDirs.get(i * levelDirs.size() / bundleCount);
+      final String name = bundleName(i);
+      final Manifest manifest = new Manifest();
+      final Attributes attributes = manifest.getMainAttributes();
+      attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+      attributes.putValue(Constants.BUNDLE_MANIFESTVERSION, "2");
+      attributes.putValue(Constants.BUNDLE_SYMBOLICNAME, name);
+      attributes.putValue(Constants.BUNDLE_VERSION, "1.0.0");
+
+      final List<String> exports = new ArrayList<>();
+      for (int p = 0; p < exportedPackages; p += 1) {
+        exports.add(packageName(i, p) + ";version=\"1.0.0\"");
+      }
+      if (!exports.isEmpty()) {
+        attributes.putValue(Constants.EXPORT_PACKAGE, String.join(",", exports));
+      }
+
+      final Set<String> imports = new LinkedHashSet<>();
+      if (i > 0 && exportedPackages > 0) {
+        for (int f = 0; f < importFanOut; f += 1) {
+          imports.add(packageName(random.nextInt(i), random.nextInt(exportedPackages)));
+        }
+      }
+
+      final boolean fragment = !hosts.isEmpty() && random.nextDouble() < fragmentRatio;
+      if (fragment) {
+        attributes.putValue(Constants.FRAGMENT_HOST, bundleName(hosts.get(random.nextInt(hosts.size()))));
+        fragments += 1;
+      } else {
+        hosts.add(i);
+        imports.add("org.osgi.framework");
+        attributes.putValue(Constants.BUNDLE_ACTIVATOR, SyntheticActivator.class.getName());
+        attributes.putValue(SyntheticActivator.COST_HEADER, String.valueOf(activatorCostMicros));
+        attributes.putValue(SyntheticActivator.ALLOCATION_HEADER, String.valueOf(activatorAllocationKB));
+      }
+      if (!imports.isEmpty()) {
+        attributes.putValue(Constants.IMPORT_PACKAGE, String.join(",", imports));
+      }
+
+      levelDir.mkdirs();
+      try (JarOutputStream out = new JarOutputStream(new FileOutputStream(new File(levelDir, name + ".jar")), manifest)) {
+        for (int p = 0; p < exportedPackages; p += 1) {
+          out.putNextEntry(new JarEntry(packageName(i, p).replace('.', '/') + "/package.txt"));
+          out.write(name.getBytes("UTF-8"));
+          out.closeEntry();
+        }
+        if (!fragment) {
+          out.putNextEntry(new JarEntry(SyntheticActivator.class.getName().replace('.', '/') + ".class"));
+          out.write(activator);
+          out.closeEntry();
+        }
+      }
+    }
+    return fragments;
+  }
+
+  private static String bundleName(int index) {
+    return String.format("synthetic.bundle%05d", index);
+  }
+
+  private static String packageName(int bundle, int pkg) {
+    return String.format("synthetic.b%05d.p%d", bundle, pkg);
+  }
+
+  private static byte[] readActivatorClass() throws IOException {
+    final String resource = SyntheticActivator.class.getSimpleName() + ".class";
+    try (InputStream in = SyntheticActivator.class.getResourceAsStream(resource)) {
+      if (in == null) {
+        throw new IOException("Unable to locate " + resource);
+      }
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        bytes.write(buffer, 0, read);
+      }
+      return bytes.toByteArray();
+    }
+  }
+}
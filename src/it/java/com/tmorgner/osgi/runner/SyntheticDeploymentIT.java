@@ -0,0 +1,182 @@
+package com.tmorgner.osgi.runner;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Boots the launcher against synthetic deployments of increasing size and compares the boot time,
+ * peak heap and peak thread count with the thresholds in <tt>synthetic-thresholds.properties</tt>.
+ * The measurements are written to <tt>target/synthetic-measurements.properties</tt> so that the
+ * thresholds can be updated from a known-good run.
+ */
+public class SyntheticDeploymentIT {
+  private Logger logger = LogManager.getLogger();
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private class ValidateStartup implements FrameworkListener {
+    BundleContext context;
+    int activeBundles;
+    int fragments;
+    boolean failed;
+
+    @Override
+    public void frameworkEvent(FrameworkEvent event) {
+      if (event.getType() == FrameworkEvent.ERROR) {
+        failed = true;
+        logger.debug("Received framework ERROR event, marking tests as failed.", event.getThrowable());
+      }
+      if (event.getType() == FrameworkEvent.STARTED) {
+        for (Bundle bundle : context.getBundles()) {
+          if (bundle.getHeaders().get(Constants.FRAGMENT_HOST) != null) {
+            fragments += 1;
+          } else if (bundle.getBundleId() != 0 && bundle.getState() == Bundle.ACTIVE) {
+            activeBundles += 1;
+          }
+        }
+        try {
+          context.getBundle(0).stop();
+        } catch (BundleException e) {
+          logger.debug("Received exception while shutting down.", e);
+          failed = true;
+        }
+      }
+    }
+  }
+
+  private static Properties loadThresholds() throws IOException {
+    final Properties thresholds = new Properties();
+    try (InputStream in = SyntheticDeploymentIT.class.getResourceAsStream("/synthetic-thresholds.properties")) {
+      Assert.assertNotNull("Missing synthetic-thresholds.properties", in);
+      thresholds.load(in);
+    }
+    return thresholds;
+  }
+
+  private static void resetPeaks() {
+    System.gc();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        pool.resetPeakUsage();
+      }
+    }
+    ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+  }
+
+  private static long getPeakHeap() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        peak += pool.getPeakUsage().getUsed();
+      }
+    }
+    return peak;
+  }
+
+  private void boot(int bundleCount) throws Exception {
+    final File deployDir = folder.newFolder("bundles");
+    final int fragments = new SyntheticBundleGenerator(bundleCount).generate(deployDir);
+    final File cacheDir = new File(folder.getRoot(), "cache");
+
+    final ValidateStartup l = new ValidateStartup();
+    final Consumer<BundleContext> validator = (context) -> {
+      context.addFrameworkListener(l);
+      l.context = context;
+    };
+
+    System.setProperty(Constants.FRAMEWORK_STORAGE_CLEAN, Constants.FRAMEWORK_STORAGE_CLEAN_ONFIRSTINIT);
+    System.setProperty(Main.SHUTDOWN_HOOK_PROP, "false");
+    System.setProperty("felix.log.level", "1");
+    resetPeaks();
+    final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    final long start = System.nanoTime();
+    final int result;
+    try {
+      result = Main.start(new String[]{"-b", deployDir.getPath(), cacheDir.getPath()}, validator);
+    } finally {
+      System.clearProperty(Constants.FRAMEWORK_STORAGE_CLEAN);
+      System.clearProperty(Main.SHUTDOWN_HOOK_PROP);
+      System.clearProperty("felix.log.level");
+    }
+    final long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    final long heapMB = getPeakHeap() / (1024 * 1024);
+    final int peakThreads = threads.getPeakThreadCount();
+    logger.info("Booted {} bundles in {} ms, peak heap {} MB, peak threads {}", bundleCount, millis, heapMB, peakThreads);
+    record(bundleCount, millis, heapMB, peakThreads);
+
+    Assert.assertEquals(0, result);
+    Assert.assertFalse(l.failed);
+    Assert.assertEquals(fragments, l.fragments);
+    Assert.assertEquals(bundleCount - fragments, l.activeBundles);
+
+    final Properties thresholds = loadThresholds();
+    final String prefix = "boot." + bundleCount + ".";
+    assertWithin(prefix + "millis", millis, thresholds);
+    assertWithin(prefix + "heapMB", heapMB, thresholds);
+    assertWithin(prefix + "threads", peakThreads, thresholds);
+  }
+
+  private static void assertWithin(String key, long measured, Properties thresholds) {
+    final String threshold = thresholds.getProperty(key);
+    Assert.assertNotNull("No threshold recorded for " + key, threshold);
+    Assert.assertTrue(String.format("%s: measured %d exceeds threshold %s", key, measured, threshold),
+        measured <= Long.parseLong(threshold.trim()));
+  }
+
+  private static synchronized void record(int bundleCount, long millis, long heapMB, int threads) throws IOException {
+    final File file = new File("target", "synthetic-measurements.properties");
+    final Properties measurements = new Properties();
+    if (file.exists()) {
+      try (InputStream in = new FileInputStream(file)) {
+        measurements.load(in);
+      }
+    }
+    measurements.setProperty("boot." + bundleCount + ".millis", String.valueOf(millis));
+    measurements.setProperty("boot." + bundleCount + ".heapMB", String.valueOf(heapMB));
+    measurements.setProperty("boot." + bundleCount + ".threads", String.valueOf(threads));
+    file.getParentFile().mkdirs();
+    try (OutputStream out = new FileOutputStream(file)) {
+      measurements.store(out, "Synthetic deployment measurements");
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void boot100Bundles() throws Exception {
+    boot(100);
+  }
+
+  @Test(timeout = 120000)
+  public void boot1000Bundles() throws Exception {
+    boot(1000);
+  }
+
+  @Test(timeout = 300000)
+  public void boot5000Bundles() throws Exception {
+    boot(5000);
+  }
+}
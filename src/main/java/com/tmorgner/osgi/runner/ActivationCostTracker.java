@@ -0,0 +1,188 @@
+package com.tmorgner.osgi.runner;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.SynchronousBundleListener;
+
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Measures the CPU time, allocated bytes and loaded classes of each bundle activation. The
+ * framework delivers the STARTING and STARTED events to synchronous listeners on the thread that
+ * runs the activator, so the per-thread counters of the {@link ThreadMXBean} can be sampled around
+ * each activation, regardless of whether the start was issued by the launcher or by the framework's
+ * start-level ramp. The loaded class count is JVM wide and also includes classes loaded by other
+ * threads during the activation. Activations that start other bundles include their cost.
+ * <p>
+ * Counters the JVM does not support are reported as "n/a". The cost table is printed when the
+ * framework has started, unless the launcher prints it itself (see {@link #setReportOnStarted(boolean)}).
+ */
+public class ActivationCostTracker implements SynchronousBundleListener, FrameworkListener {
+  private static class Cost {
+    private final Bundle bundle;
+    private final long startNanos;
+    private final long startCpu;
+    private final long startAllocated;
+    private final long startClasses;
+    private long wallNanos;
+    private long cpuNanos;
+    private long allocatedBytes;
+    private long loadedClasses;
+    private boolean failed;
+
+    Cost(Bundle bundle, long startNanos, long startCpu, long startAllocated, long startClasses) {
+      this.bundle = bundle;
+      this.startNanos = startNanos;
+      this.startCpu = startCpu;
+      this.startAllocated = startAllocated;
+      this.startClasses = startClasses;
+    }
+  }
+
+  private final Consumer<String> logger;
+  private final ThreadMXBean threads;
+  private final ClassLoadingMXBean classLoading;
+  private final boolean cpuSupported;
+  private final boolean allocationSupported;
+  private final Map<Long, Cost> inFlight;
+  private final List<Cost> completed;
+  private volatile boolean reportOnStarted;
+
+  public ActivationCostTracker(Consumer<String> logger) {
+    this.logger = logger;
+    this.threads = ManagementFactory.getThreadMXBean();
+    this.classLoading = ManagementFactory.getClassLoadingMXBean();
+    this.cpuSupported = enableCpuTime(threads);
+    this.allocationSupported = enableAllocatedBytes(threads);
+    this.inFlight = new ConcurrentHashMap<>();
+    this.completed = new ArrayList<>();
+    this.reportOnStarted = true;
+  }
+
+  /**
+   * @param reportOnStarted false if the report is printed by calling {@link #report()} instead of on
+   *                        the STARTED event, for instance because the start level ramp continues
+   *                        after the framework has started.
+   */
+  public void setReportOnStarted(boolean reportOnStarted) {
+    this.reportOnStarted = reportOnStarted;
+  }
+
+  private static boolean enableCpuTime(ThreadMXBean threads) {
+    try {
+      if (!threads.isCurrentThreadCpuTimeSupported()) {
+        return false;
+      }
+      if (!threads.isThreadCpuTimeEnabled()) {
+        threads.setThreadCpuTimeEnabled(true);
+      }
+      return true;
+    } catch (UnsupportedOperationException | SecurityException e) {
+      return false;
+    }
+  }
+
+  private static boolean enableAllocatedBytes(ThreadMXBean threads) {
+    try {
+      if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+        return false;
+      }
+      final com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+      if (!sunThreads.isThreadAllocatedMemorySupported()) {
+        return false;
+      }
+      if (!sunThreads.isThreadAllocatedMemoryEnabled()) {
+        sunThreads.setThreadAllocatedMemoryEnabled(true);
+      }
+      return true;
+    } catch (LinkageError | UnsupportedOperationException | SecurityException e) {
+      // not a HotSpot compatible JVM
+      return false;
+    }
+  }
+
+  private long currentCpu() {
+    return cpuSupported ? threads.getCurrentThreadCpuTime() : -1;
+  }
+
+  private long currentAllocated() {
+    if (!allocationSupported) {
+      return -1;
+    }
+    return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  @Override
+  public void bundleChanged(BundleEvent event) {
+    final Bundle bundle = event.getBundle();
+    switch (event.getType()) {
+      case BundleEvent.STARTING:
+        inFlight.put(bundle.getBundleId(), new Cost(bundle, System.nanoTime(), currentCpu(),
+            currentAllocated(), classLoading.getTotalLoadedClassCount()));
+        break;
+      case BundleEvent.STARTED:
+        complete(bundle, false);
+        break;
+      case BundleEvent.STOPPED:
+        // the activator failed after STARTING was fired.
+        complete(bundle, true);
+        break;
+      default:
+        break;
+    }
+  }
+
+  private void complete(Bundle bundle, boolean failed) {
+    final Cost cost = inFlight.remove(bundle.getBundleId());
+    if (cost == null) {
+      return;
+    }
+    cost.wallNanos = System.nanoTime() - cost.startNanos;
+    cost.cpuNanos = cpuSupported ? currentCpu() - cost.startCpu : -1;
+    cost.allocatedBytes = allocationSupported ? currentAllocated() - cost.startAllocated : -1;
+    cost.loadedClasses = classLoading.getTotalLoadedClassCount() - cost.startClasses;
+    cost.failed = failed;
+    synchronized (completed) {
+      completed.add(cost);
+    }
+  }
+
+  @Override
+  public void frameworkEvent(FrameworkEvent event) {
+    if (event.getType() == FrameworkEvent.STARTED && reportOnStarted) {
+      report();
+    }
+  }
+
+  /**
+   * Logs the activation cost table, most expensive activations first.
+   */
+  public void report() {
+    final List<Cost> costs;
+    synchronized (completed) {
+      costs = new ArrayList<>(completed);
+    }
+    costs.sort(Comparator.comparingLong((Cost c) -> cpuSupported ? c.cpuNanos : c.wallNanos).reversed());
+    logger.accept(String.format("Activation costs for %d bundles:", costs.size()));
+    logger.accept(String.format("%10s %10s %12s %8s  %s", "cpu-ms", "wall-ms", "alloc-kb", "classes", "bundle"));
+    for (Cost cost : costs) {
+      logger.accept(String.format("%10s %10d %12s %8d  %s%s",
+          cost.cpuNanos < 0 ? "n/a" : String.valueOf(cost.cpuNanos / 1_000_000),
+          cost.wallNanos / 1_000_000,
+          cost.allocatedBytes < 0 ? "n/a" : String.valueOf(cost.allocatedBytes / 1024),
+          cost.loadedClasses,
+          cost.bundle.getSymbolicName() != null ? cost.bundle.getSymbolicName() : cost.bundle.getLocation(),
+          cost.failed ? " (failed)" : ""));
+    }
+  }
+}
@@ -1,11 +1,15 @@
 package com.tmorgner.osgi.runner;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -16,14 +20,25 @@ import java.util.regex.Pattern;
  * content after the rcNNNN pattern will be ignored and can be used for documentation purposes.
  * <p>
  * Valid names are "rc0001", "rc1", "rc1-Some description" and so on.
+ * <p>
+ * Directories and files excluded by the {@link ScanFilter} are skipped; excluded directories are
+ * not listed at all.
+ * <p>
+ * Found bundles are either collected by run level, or handed to a callback as soon as they are found.
  */
 public class AutoDeployBundles {
   private final Consumer<String> logger;
+  private final ScanFilter filter;
   private final Map<Integer, BundlesWithRunLevel> runLevels;
   private Pattern runlevelMatcher;
 
   public AutoDeployBundles(Consumer<String> logger) {
+    this(logger, ScanFilter.none());
+  }
+
+  public AutoDeployBundles(Consumer<String> logger, ScanFilter filter) {
     this.logger = logger;
+    this.filter = filter;
     this.runLevels = new TreeMap<>();
     this.runlevelMatcher = Pattern.compile("^rc(\\d{1,7}).*");
   }
@@ -37,34 +52,75 @@ public class AutoDeployBundles {
   }
 
   public void scan(int runLevel, File directory) {
+    scan(runLevel, directory, Paths.get(""), filter, this::add);
+  }
+
+  /**
+   * Scans the directory without collecting the bundles, the callback receives the run level and
+   * file of each bundle in the order they are found.
+   */
+  public void scan(int runLevel, File directory, BiConsumer<Integer, File> found) {
+    scan(runLevel, directory, Paths.get(""), filter, (level, file) -> {
+      logger.accept("Found bundle " + file + " at run-level " + level);
+      found.accept(level, file);
+    });
+  }
+
+  private void scan(int runLevel, File directory, Path relativePath, ScanFilter filter, BiConsumer<Integer, File> found) {
     File[] files = listFiles(directory);
     if (files != null) {
       Arrays.sort(files);
+      filter = readIgnoreFile(files, relativePath, filter);
       for (File file : files) {
         String name = file.getName();
         if (file.isFile() && name.endsWith(".jar")) {
-          add(runLevel, file);
+          if (filter.isBundleIncluded(relativePath.resolve(name))) {
+            found.accept(runLevel, file);
+          }
         }
         else if (file.isDirectory()) {
           if (name.matches("\\.{1,2}")) {
             continue;
           }
 
+          final Path childPath = relativePath.resolve(name);
+          if (filter.isDirectoryExcluded(childPath)) {
+            logger.accept("Skipping excluded directory " + file);
+            continue;
+          }
+
           // no one needs more than a few million runlevels
           final Matcher matcher = runlevelMatcher.matcher(name);
           if (matcher.find()) {
             String number = matcher.group(1);
             final int n = Integer.parseInt(number);
-            scan(n, file);
+            scan(n, file, childPath, filter, found);
           }
           else {
-            scan(runLevel, file);
+            scan(runLevel, file, childPath, filter, found);
           }
         }
       }
     }
   }
 
+  private ScanFilter readIgnoreFile(File[] files, Path relativePath, ScanFilter filter) {
+    final String ignoreFileName = filter.getIgnoreFileName();
+    if (ignoreFileName == null) {
+      return filter;
+    }
+    for (File file : files) {
+      if (ignoreFileName.equals(file.getName()) && file.isFile()) {
+        try {
+          return filter.withIgnoreFile(relativePath, file);
+        } catch (IOException e) {
+          logger.accept("Unable to read ignore file " + file + ": " + e);
+        }
+      }
+    }
+    return filter;
+  }
+
   private void add(int runLevel, File file) {
     logger.accept("Found bundle " + file + " at run-level " + runLevel);
 
@@ -23,21 +23,39 @@ import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleException;
 import org.osgi.framework.Constants;
 import org.osgi.framework.ServiceReference;
-import org.osgi.framework.startlevel.BundleStartLevel;
 import org.osgi.framework.startlevel.FrameworkStartLevel;
 import org.osgi.service.startlevel.StartLevel;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 
 public class AutoProcessor {
   /**
-   * The property name used for the bundle directory.
+   * The property name used for the bundle directory. Several directories can be given separated by
+   * commas, later directories overlay earlier ones (see {@link DeployRoots}).
    **/
   public static final String AUTO_DEPLOY_DIR_PROPERTY = "felix.auto.deploy.dir";
   /**
@@ -48,6 +66,102 @@ public class AutoProcessor {
    * The property name used to specify auto-deploy actions.
    **/
   public static final String AUTO_DEPLOY_ACTION_PROPERTY = "felix.auto.deploy.action";
+  /**
+   * The property name used to specify comma separated glob patterns of bundle files to deploy.
+   **/
+  public static final String AUTO_DEPLOY_INCLUDE_PROPERTY = "felix.auto.deploy.include";
+  /**
+   * The property name used to specify comma separated glob patterns of files and directories
+   * to skip during the auto-deploy scan.
+   **/
+  public static final String AUTO_DEPLOY_EXCLUDE_PROPERTY = "felix.auto.deploy.exclude";
+  /**
+   * The property name used to specify the name of the per-directory ignore file. An empty
+   * value disables ignore files.
+   **/
+  public static final String AUTO_DEPLOY_IGNORE_FILE_PROPERTY = "felix.auto.deploy.ignorefile";
+  /**
+   * The property name used to specify the order in which bundles of the same run level are
+   * installed and started. Either <tt>name</tt> (the default) or <tt>dependency</tt>.
+   **/
+  public static final String AUTO_DEPLOY_ORDER_PROPERTY = "felix.auto.deploy.order";
+  /**
+   * The order value for sorting bundles by file name.
+   **/
+  public static final String AUTO_DEPLOY_ORDER_NAME_VALUE = "name";
+  /**
+   * The order value for sorting bundles so that providers of packages and bundles
+   * come before their consumers.
+   **/
+  public static final String AUTO_DEPLOY_ORDER_DEPENDENCY_VALUE = "dependency";
+  /**
+   * The property name used to enable resolving all deployed bundles in a single resolver
+   * pass before they are started. Bundles that fail to resolve are not started.
+   **/
+  public static final String AUTO_DEPLOY_RESOLVE_PROPERTY = "felix.auto.deploy.resolve";
+  /**
+   * The property name used to specify who starts the deployed bundles. Either <tt>framework</tt>
+   * (the default), which starts them sequentially during the start-level ramp, or <tt>history</tt>,
+   * which leaves them to a {@link StartScheduler} once the framework has started.
+   **/
+  public static final String AUTO_DEPLOY_SCHEDULE_PROPERTY = "felix.auto.deploy.schedule";
+  /**
+   * The schedule value for starting bundles by the framework.
+   **/
+  public static final String AUTO_DEPLOY_SCHEDULE_FRAMEWORK_VALUE = "framework";
+  /**
+   * The schedule value for starting bundles in parallel, ordered by the start durations of
+   * the previous boot.
+   **/
+  public static final String AUTO_DEPLOY_SCHEDULE_HISTORY_VALUE = "history";
+  /**
+   * The property name used to specify the number of threads used to start bundles when
+   * the history schedule is used. Defaults to the number of available processors.
+   **/
+  public static final String AUTO_DEPLOY_SCHEDULE_THREADS_PROPERTY = "felix.auto.deploy.schedule.threads";
+  /**
+   * The property name used to start all auto-deployed bundles with their activation policy.
+   * Bundles declaring a lazy activation policy are then activated on their first class load.
+   **/
+  public static final String AUTO_DEPLOY_LAZY_PROPERTY = "felix.auto.deploy.lazy";
+  /**
+   * The property name used to specify comma separated run levels whose bundles are started
+   * with their activation policy.
+   **/
+  public static final String AUTO_DEPLOY_LAZY_STARTLEVELS_PROPERTY = "felix.auto.deploy.lazy.startlevels";
+  /**
+   * The property name used to specify comma separated glob patterns of bundle files that are
+   * started with their activation policy.
+   **/
+  public static final String AUTO_DEPLOY_LAZY_INCLUDE_PROPERTY = "felix.auto.deploy.lazy.include";
+  /**
+   * The property name used to install bundles from class-loading optimized copies, see
+   * {@link JarOptimizer}. The bundle locations still refer to the original files.
+   **/
+  public static final String AUTO_DEPLOY_OPTIMIZE_PROPERTY = "felix.auto.deploy.optimize";
+  /**
+   * The property name used to specify the deflate level of optimized copies, from 0 (stored
+   * entries, the default) to 9.
+   **/
+  public static final String AUTO_DEPLOY_OPTIMIZE_LEVEL_PROPERTY = "felix.auto.deploy.optimize.level";
+  /**
+   * The property name used to specify the directory holding the optimized copies. Defaults to
+   * a directory next to the framework storage, with the suffix <tt>.optimized</tt>.
+   **/
+  public static final String AUTO_DEPLOY_OPTIMIZE_DIR_PROPERTY = "felix.auto.deploy.optimize.dir";
+  /**
+   * The suffix of the default optimized copy directory.
+   **/
+  public static final String AUTO_DEPLOY_OPTIMIZE_DIR_SUFFIX = ".optimized";
+  /**
+   * The property name used to record the operations of each pass in a {@link DeployJournal}, so
+   * that a pass interrupted by a crash is resumed instead of repeated.
+   **/
+  public static final String AUTO_DEPLOY_JOURNAL_PROPERTY = "felix.auto.deploy.journal";
+  /**
+   * The suffix of the journal file, which is kept next to the framework storage.
+   **/
+  public static final String AUTO_DEPLOY_JOURNAL_SUFFIX = ".deploy-journal";
   /**
    * The property name used to specify auto-deploy start level.
    **/
@@ -77,7 +191,170 @@ public class AutoProcessor {
    **/
   public static final String AUTO_START_PROP = "felix.auto.start";
 
+  private static final int SCAN_QUEUE_CAPACITY = 256;
+  /**
+   * Held for the duration of each deploy pass, so that passes started from different threads, like the
+   * background deployment and the control channel, run one after the other.
+   */
+  static final ReentrantLock PASS_LOCK = new ReentrantLock();
+
+  /**
+   * A bundle file found by the scan thread of {@link #process(Map, BundleContext)}.
+   */
+  private static class ScannedBundle {
+    private static final ScannedBundle END = new ScannedBundle(0, null, null);
+
+    private final int runLevel;
+    private final File file;
+    private final Future<File> optimized;
+
+    /**
+     * @param optimized the optimized copy being prepared, or null if the file is deployed unchanged.
+     */
+    ScannedBundle(int runLevel, File file, Future<File> optimized) {
+      this.runLevel = runLevel;
+      this.file = file;
+      this.optimized = optimized;
+    }
+  }
+
+  /**
+   * The bundles deployed by a pass, and whether all installs and updates succeeded.
+   */
+  private static class Pass {
+    private final Map<DeployPlan.Entry, Bundle> deployed = new HashMap<>();
+    private final DeployJournal journal;
+    private final StartLevelAssigner levels;
+    private boolean success = true;
+    private boolean ended;
+
+    Pass(DeployJournal journal, StartLevelAssigner levels) {
+      this.journal = journal;
+      this.levels = levels;
+    }
+
+    void end(DeployPlan plan) {
+      if (journal != null) {
+        final List<String> locations = new ArrayList<>();
+        plan.getEntries().forEach(entry -> locations.add(entry.getLocation()));
+        plan.getUninstalls().forEach(bundle -> locations.add(bundle.getLocation()));
+        journal.end(locations);
+      }
+      ended = true;
+    }
+
+    /**
+     * Gives up the journal's pass if it did not end normally, for instance because it has been
+     * interrupted or a bundle operation threw, so that the next pass resumes from its records.
+     */
+    void abandonIfOpen() {
+      if (journal != null && !ended) {
+        journal.abandon();
+      }
+      ended = true;
+    }
+  }
+
+  /**
+   * The state needed to turn scanned bundle files into plan entries.
+   */
+  private class Scan {
+    private final List<String> actions;
+    private final DeployPlan plan;
+    private int startLevel;
+    private Map<String, Bundle> installedBundleMap;
+    private Set<String> installedLocations;
+    private DeployRoots roots;
+    private LazyActivation lazyActivation;
+
+    Scan(Map<String, String> configMap, BundleContext context) {
+      // Determine if auto deploy actions to perform.
+      actions = prepareActions(configMap);
+      plan = new DeployPlan(actions);
+      plan.setPreResolve("true".equalsIgnoreCase(configMap.getOrDefault(AUTO_DEPLOY_RESOLVE_PROPERTY, "false").trim()));
+      plan.setScheduled(AUTO_DEPLOY_SCHEDULE_HISTORY_VALUE.equalsIgnoreCase(
+          configMap.getOrDefault(AUTO_DEPLOY_SCHEDULE_PROPERTY, AUTO_DEPLOY_SCHEDULE_FRAMEWORK_VALUE).trim()));
+      plan.setOptimizer(createOptimizer(configMap));
+      if ("true".equalsIgnoreCase(configMap.getOrDefault(AUTO_DEPLOY_JOURNAL_PROPERTY, "false").trim())) {
+        plan.setJournal(DeployJournal.open(logger,
+            LauncherUtil.getStorageSiblingFile(configMap, AUTO_DEPLOY_JOURNAL_SUFFIX)));
+      }
+
+      // Perform auto-deploy actions.
+      if (actions.isEmpty()) {
+        logger.accept("Auto-Deploy: No auto-deploy actions defined.");
+        return;
+      }
+
+      logger.accept("Auto-Deploy: " + String.join(",", actions));
+
+      startLevel = getFrameworkStartLevel(context, configMap);
+
+      // Get list of already installed bundles as a map.
+      installedBundleMap = new HashMap<>();
+      for (Bundle bundle : context.getBundles()) {
+        installedBundleMap.put(bundle.getLocation(), bundle);
+      }
+      // read by the scan thread, which must not touch the map.
+      installedLocations = new HashSet<>(installedBundleMap.keySet());
+
+      // Get the auto deploy directories.
+      roots = DeployRoots.fromConfig(logger, configMap);
+      lazyActivation = LazyActivation.fromConfig(configMap);
+    }
+
+    DeployPlan.Entry createEntry(int runLevel, File bundleFile) {
+      // Look up the bundle by location, removing it from
+      // the map of installed bundles so the remaining bundles
+      // indicate which bundles may need to be uninstalled.
+      final String key = bundleFile.toURI().toString();
+      Bundle b = installedBundleMap.remove(key);
+      // If the bundle is not already installed, then install it
+      // if the 'install' action is present. If the bundle is already
+      // installed, then update it if the 'update' action is present.
+      final boolean install = (b == null) && actions.contains(AUTO_DEPLOY_INSTALL_VALUE);
+      final boolean update = (b != null) && actions.contains(AUTO_DEPLOY_UPDATE_VALUE);
+      final DeployPlan.Entry entry = new DeployPlan.Entry(bundleFile, runLevel, b, install, update);
+      entry.setLazyActivation(lazyActivation.isSelected(runLevel, roots.relativize(bundleFile)));
+      return entry;
+    }
+
+    /**
+     * Starts optimizing a bundle file on the given pool, if the file is going to be installed or updated.
+     * Called by the scan thread, so that copies are prepared in parallel ahead of the installs.
+     *
+     * @return the optimized copy, or null if there is no optimizer or the file is not deployed.
+     */
+    Future<File> optimize(ExecutorService pool, int runLevel, File bundleFile) {
+      final JarOptimizer optimizer = plan.getOptimizer();
+      if (pool == null || optimizer == null) {
+        return null;
+      }
+      final boolean installed = installedLocations.contains(bundleFile.toURI().toString());
+      if (!(installed ? actions.contains(AUTO_DEPLOY_UPDATE_VALUE) : actions.contains(AUTO_DEPLOY_INSTALL_VALUE))) {
+        return null;
+      }
+      return pool.submit(() -> optimizer.optimize(bundleFile, optimizer.getLoadOrder(
+          new DeployPlan.Entry(bundleFile, runLevel, null, false, false).getSymbolicName())));
+    }
+
+    void addUninstalls() {
+      // Uninstall all bundles not in the auto-deploy directory if
+      // the 'uninstall' action is present.
+      if (actions.contains(AUTO_DEPLOY_UNINSTALL_VALUE)) {
+        for (Bundle b : installedBundleMap.values()) {
+          if (b.getBundleId() != 0) {
+            plan.addUninstall(b);
+          }
+        }
+      }
+    }
+  }
+
   private Consumer<String> logger;
+  private ResolutionReport resolutionReport;
+  private Map<Integer, List<Bundle>> scheduledStarts;
+  private DeployPlan lastPlan;
 
   public AutoProcessor(Consumer<String> logger) {
     Objects.requireNonNull(logger);
@@ -88,6 +365,12 @@ public class AutoProcessor {
   /**
    * Used to instigate auto-deploy directory process and auto-install/auto-start
    * configuration property processing during.
+   * <p>
+   * Scanning and installing overlap: the deploy directory is walked on a separate thread,
+   * which hands each bundle file to this thread as soon as it is found. Bundles are still
+   * started in run-level order, and bundles are only uninstalled once the scan is complete.
+   * Dependency ordering needs all bundles of a run level before the first install, so in that
+   * case the complete plan is computed first.
    *
    * @param configMap Map of configuration properties.
    * @param context   The system bundle context.
@@ -96,94 +379,318 @@ public class AutoProcessor {
     Objects.requireNonNull(context);
     Objects.requireNonNull(configMap);
 
-    // Determine if auto deploy actions to perform.
-    List<String> actionList = prepareActions(configMap);
+    PASS_LOCK.lock();
+    try {
+      return processPass(configMap, context);
+    } finally {
+      PASS_LOCK.unlock();
+    }
+  }
+
+  private boolean processPass(Map<String, String> configMap, BundleContext context) {
+    final boolean dependencyOrder = AUTO_DEPLOY_ORDER_DEPENDENCY_VALUE.equalsIgnoreCase(
+        configMap.getOrDefault(AUTO_DEPLOY_ORDER_PROPERTY, AUTO_DEPLOY_ORDER_NAME_VALUE).trim());
+    if (dependencyOrder) {
+      lastPlan = plan(configMap, context);
+      return lastPlan.getActions().isEmpty() || execute(lastPlan, context);
+    }
 
-    // Perform auto-deploy actions.
-    if (actionList.isEmpty()) {
-      logger.accept("Auto-Deploy: No auto-deploy actions defined.");
+    final Scan scan = new Scan(configMap, context);
+    lastPlan = scan.plan;
+    if (scan.actions.isEmpty()) {
       return true;
     }
 
-    logger.accept("Auto-Deploy: " + String.join(",", actionList));
+    final DeployJournal journal = scan.plan.getJournal();
+    final Pass pass = new Pass(journal, new StartLevelAssigner(logger, context));
+    if (journal != null) {
+      journal.begin();
+    }
+    try {
+      final BlockingQueue<ScannedBundle> queue = new ArrayBlockingQueue<>(SCAN_QUEUE_CAPACITY);
+      final ExecutorService optimizerPool = scan.plan.getOptimizer() == null ? null : createOptimizerPool();
+      final AtomicReference<Throwable> scanFailure = new AtomicReference<>();
+      final Thread scanner = new Thread(() -> {
+        try {
+          scan.roots.scan(scan.startLevel, (runLevel, file) -> {
+            try {
+              queue.put(new ScannedBundle(runLevel, file, scan.optimize(optimizerPool, runLevel, file)));
+            } catch (InterruptedException e) {
+              throw new CancellationException("Auto-deploy scan cancelled");
+            }
+          });
+        } catch (CancellationException e) {
+          return;
+        } catch (Throwable t) {
+          scanFailure.set(t);
+        }
+        try {
+          queue.put(ScannedBundle.END);
+        } catch (InterruptedException e) {
+          // the consumer is gone.
+        }
+      }, "Auto-Deploy Scan");
+      scanner.setDaemon(true);
+      scanner.start();
+
+      try {
+        while (true) {
+          final ScannedBundle scanned = queue.take();
+          if (scanned == ScannedBundle.END) {
+            break;
+          }
+          final DeployPlan.Entry entry = scan.createEntry(scanned.runLevel, scanned.file);
+          scan.plan.add(entry);
+          final File content = scanned.optimized == null || !(entry.isInstall() || entry.isUpdate()) ? null :
+              getOptimized(entry, scanned.optimized);
+          deploy(entry, content, context, pass);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        logger.accept("Auto-deploy interrupted.");
+        return false;
+      } finally {
+        scanner.interrupt();
+        pass.levels.close();
+        if (optimizerPool != null) {
+          optimizerPool.shutdownNow();
+        }
+        if (scan.plan.getOptimizer() != null) {
+          scan.plan.getOptimizer().saveIndex();
+        }
+      }
+
+      final Throwable failure = scanFailure.get();
+      if (failure instanceof RuntimeException) {
+        throw (RuntimeException) failure;
+      } else if (failure instanceof Error) {
+        throw (Error) failure;
+      }
+
+      // The scan is complete, whatever is left has been removed from the deploy directory.
+      scan.addUninstalls();
+      scan.plan.sortByRunLevel();
+      return finish(scan.plan, context, pass);
+    } finally {
+      pass.abandonIfOpen();
+    }
+  }
+
+  /**
+   * @return the plan of the last {@link #process(Map, BundleContext)} call, or null.
+   */
+  public DeployPlan getProcessedPlan() {
+    return lastPlan;
+  }
 
-    int startLevel = getFrameworkStartLevel(context, configMap);
+  /**
+   * Computes the operations an auto-deploy pass would perform, without modifying the framework.
+   * The context can be the system bundle context of a framework that has been initialized, but
+   * not started.
+   *
+   * @param configMap Map of configuration properties.
+   * @param context   The system bundle context.
+   * @return the deploy plan, never null.
+   */
+  public DeployPlan plan(Map<String, String> configMap, BundleContext context) {
+    Objects.requireNonNull(context);
+    Objects.requireNonNull(configMap);
 
-    // Get list of already installed bundles as a map.
-    Map<String, Bundle> installedBundleMap = new HashMap<>();
-    for (Bundle bundle : context.getBundles()) {
-      installedBundleMap.put(bundle.getLocation(), bundle);
+    final Scan scan = new Scan(configMap, context);
+    if (scan.actions.isEmpty()) {
+      return scan.plan;
     }
 
-    // Get the auto deploy directory.
-    String autoDir = configMap.getOrDefault(AUTO_DEPLOY_DIR_PROPERTY, AUTO_DEPLOY_DIR_VALUE);
-    // Look in the specified bundle directory to create a list
+    // Look in the specified bundle directories to create a list
     // of all JAR files to install.
-    AutoDeployBundles bundleSet = new AutoDeployBundles(logger);
-    bundleSet.scan(startLevel, new File(autoDir));
-    boolean success = true;
+    final Map<Integer, List<File>> bundleFiles = new TreeMap<>();
+    scan.roots.scan(scan.startLevel, (runLevel, file) -> bundleFiles.computeIfAbsent(runLevel, k -> new ArrayList<>()).add(file));
+    final boolean dependencyOrder = AUTO_DEPLOY_ORDER_DEPENDENCY_VALUE.equalsIgnoreCase(
+        configMap.getOrDefault(AUTO_DEPLOY_ORDER_PROPERTY, AUTO_DEPLOY_ORDER_NAME_VALUE).trim());
+    for (Map.Entry<Integer, List<File>> list : bundleFiles.entrySet()) {
+      List<DeployPlan.Entry> entries = new ArrayList<>();
+      for (File bundleFile : list.getValue()) {
+        entries.add(scan.createEntry(list.getKey(), bundleFile));
+      }
+      if (dependencyOrder) {
+        // The framework starts bundles of the same start level in bundle-id order, so
+        // the install order matters as much as the order of the start calls.
+        entries = DependencyGraph.build(entries, DeployPlan.Entry::getHeader).topologicalOrder(logger);
+      }
+      entries.forEach(scan.plan::add);
+    }
+
+    scan.addUninstalls();
+    return scan.plan;
+  }
+
+  /**
+   * Performs the operations of the given plan.
+   *
+   * @param plan    the plan as computed by {@link #plan(Map, BundleContext)}.
+   * @param context The system bundle context.
+   * @return true if all operations succeeded.
+   */
+  public boolean execute(DeployPlan plan, BundleContext context) {
+    Objects.requireNonNull(plan);
+    Objects.requireNonNull(context);
+
+    PASS_LOCK.lock();
+    try {
+      return executePass(plan, context);
+    } finally {
+      PASS_LOCK.unlock();
+    }
+  }
+
+  private boolean executePass(DeployPlan plan, BundleContext context) {
     // Install bundle JAR files and remember the bundle objects.
-    final List<Bundle> startBundleList = new ArrayList<>();
-    for (BundlesWithRunLevel list : bundleSet.getBundles()) {
-      for (File bundleFile : list.getFiles()) {
-        // Look up the bundle by location, removing it from
-        // the map of installed bundles so the remaining bundles
-        // indicate which bundles may need to be uninstalled.
-        final String key = bundleFile.toURI().toString();
-        Bundle b = installedBundleMap.remove(key);
+    final Pass pass = new Pass(plan.getJournal(), new StartLevelAssigner(logger, context));
+    if (pass.journal != null) {
+      pass.journal.begin();
+    }
+    try {
+      try {
+        final Map<DeployPlan.Entry, File> optimized = optimize(plan);
+        for (DeployPlan.Entry entry : plan.getEntries()) {
+          deploy(entry, optimized.get(entry), context, pass);
+        }
+      } finally {
+        pass.levels.close();
+      }
+      return finish(plan, context, pass);
+    } finally {
+      pass.abandonIfOpen();
+    }
+  }
 
-        try {
-          // If the bundle is not already installed, then install it
-          // if the 'install' action is present.
-          if ((b == null) && actionList.contains(AUTO_DEPLOY_INSTALL_VALUE)) {
-            b = context.installBundle(key);
-            logger.accept("Installed " + key);
+  /**
+   * Installs or updates the bundle of a single entry and sets its start level.
+   *
+   * @param content the file to read the bundle content from, or null to use the entry's location.
+   */
+  private void deploy(DeployPlan.Entry entry, File content, BundleContext context, Pass pass) {
+    final String key = entry.getLocation();
+    final DeployJournal journal = pass.journal;
+    Bundle b = entry.getInstalledBundle();
+    try {
+      if (journal != null && b != null && (entry.isInstall() || entry.isUpdate()) && journal.isCompleted(entry)) {
+        // The interrupted pass has already installed or updated this file.
+        logger.accept("Resumed " + key + ", already deployed");
+      } else if (entry.isInstall()) {
+        pass.levels.prepareInstall(entry.getRunLevel());
+        if (content != null) {
+          try (InputStream in = new FileInputStream(content)) {
+            b = context.installBundle(key, in);
           }
-          // If the bundle is already installed, then update it
-          // if the 'update' action is present.
-          else if ((b != null) && actionList.contains(AUTO_DEPLOY_UPDATE_VALUE)) {
-            b.update();
-            logger.accept("Updated " + key);
+        } else {
+          b = context.installBundle(key);
+        }
+        if (b != null) {
+          pass.levels.installed(b);
+        }
+        if (journal != null) {
+          journal.record(DeployPlan.OP_INSTALL, entry);
+        }
+        logger.accept("Installed " + key);
+      } else if (entry.isUpdate()) {
+        if (content != null) {
+          try (InputStream in = new FileInputStream(content)) {
+            b.update(in);
           }
+        } else {
+          b.update();
+        }
+        if (journal != null) {
+          journal.record(DeployPlan.OP_UPDATE, entry);
+        }
+        logger.accept("Updated " + key);
+      }
 
-          // If we have found and/or successfully installed a bundle,
-          // then add it to the list of bundles to potentially start
-          // and also set its start level accordingly.
-          if ((b != null) && !isFragment(b)) {
-            startBundleList.add(b);
-            setBundleStartLevel(b, list.getRunLevel());
-            logger.accept(String.format("Start level for %s set to %d", key, list.getRunLevel()));
-          }
-        } catch (BundleException ex) {
-          logger.accept(String.format("Auto-deploy install [%s]: %s%s%n", key, ex, (ex.getCause() != null) ? " - " + ex.getCause() : ""));
-          success = false;
+      if (b != null) {
+        pass.deployed.put(entry, b);
+      }
+      // If we have found and/or successfully installed a bundle,
+      // then set its start level accordingly.
+      if ((b != null) && !isFragment(b) && pass.levels.assign(b, entry.getRunLevel())) {
+        logger.accept(String.format("Start level for %s set to %d", key, entry.getRunLevel()));
+      }
+    } catch (BundleException ex) {
+      logger.accept(String.format("Auto-deploy install [%s]: %s%s%n", key, ex, (ex.getCause() != null) ? " - " + ex.getCause() : ""));
+      pass.success = false;
+    } catch (IOException ex) {
+      logger.accept(String.format("Auto-deploy install [%s]: %s%n", key, ex));
+      pass.success = false;
+    }
+  }
+
+  /**
+   * Uninstalls the bundles that are no longer deployed, and resolves and starts the deployed
+   * bundles in the order of the plan's entries.
+   */
+  private boolean finish(DeployPlan plan, BundleContext context, Pass pass) {
+    boolean success = pass.success;
+    for (Bundle b : plan.getUninstalls()) {
+      try {
+        b.uninstall();
+        if (pass.journal != null) {
+          pass.journal.record(DeployPlan.OP_UNINSTALL, b.getLocation());
         }
+        logger.accept("Uninstalled " + b.getLocation());
+      } catch (BundleException ex) {
+        logger.accept(String.format("Auto-deploy uninstall: %s%s", ex, (ex.getCause() != null) ? " - " + ex.getCause() : ""));
+        success = false;
       }
     }
 
-    // Uninstall all bundles not in the auto-deploy directory if
-    // the 'uninstall' action is present.
-    if (actionList.contains(AUTO_DEPLOY_UNINSTALL_VALUE)) {
-      for (Map.Entry<String, Bundle> entry : installedBundleMap.entrySet()) {
-        Bundle b = entry.getValue();
-        if (b.getBundleId() != 0) {
-          try {
-            b.uninstall();
-            logger.accept("Uninstalled " + entry.getKey());
-          } catch (BundleException ex) {
-            logger.accept(String.format("Auto-deploy uninstall: %s%s", ex, (ex.getCause() != null) ? " - " + ex.getCause() : ""));
-            success = false;
-          }
+    // Resolve everything at once, so that the start calls below do not
+    // trigger a resolver run each.
+    resolutionReport = null;
+    if (plan.isPreResolve()) {
+      resolutionReport = ResolutionReport.resolve(context, new ArrayList<>(pass.deployed.values()));
+      if (resolutionReport == null) {
+        logger.accept("Auto-deploy resolve: Framework does not support FrameworkWiring, skipping pre-resolution.");
+      } else {
+        resolutionReport.log(logger);
+        if (!resolutionReport.getFailures().isEmpty()) {
+          success = false;
         }
       }
     }
 
     // Start all installed and/or updated bundles if the 'start'
     // action is present.
-    if (actionList.contains(AUTO_DEPLOY_START_VALUE)) {
-      for (Bundle bundle : startBundleList) {
+    scheduledStarts = new TreeMap<>();
+    if (plan.hasAction(AUTO_DEPLOY_START_VALUE)) {
+      for (DeployPlan.Entry entry : plan.getEntries()) {
+        final Bundle bundle = pass.deployed.get(entry);
+        if (bundle == null || isFragment(bundle)) {
+          continue;
+        }
+        if (resolutionReport != null && !resolutionReport.isResolved(bundle)) {
+          logger.accept("Not starting unresolved " + bundle.getLocation());
+          continue;
+        }
         try {
+          if (entry.isLazyActivation()) {
+            // Lazy bundles are not worth scheduling, their activators run on first use.
+            bundle.start(Bundle.START_ACTIVATION_POLICY);
+            logger.accept("started with activation policy " + bundle.getLocation());
+            continue;
+          }
+          if (plan.isScheduled()) {
+            // Clear the autostart setting of an earlier boot, otherwise the framework
+            // starts the bundle during the start-level ramp before the scheduler runs.
+            if (bundle.getState() != Bundle.ACTIVE && bundle.getState() != Bundle.STARTING) {
+              bundle.stop();
+            }
+            scheduledStarts.computeIfAbsent(entry.getRunLevel(), k -> new ArrayList<>()).add(bundle);
+            continue;
+          }
           bundle.start();
+          if (pass.journal != null) {
+            pass.journal.record(DeployPlan.OP_START, bundle.getLocation());
+          }
           logger.accept("started " + bundle.getLocation());
         } catch (BundleException ex) {
           logger.accept(String.format("Auto-deploy start: %s%s", ex, (ex.getCause() != null) ? " - " + ex.getCause() : ""));
@@ -191,9 +698,99 @@ public class AutoProcessor {
         }
       }
     }
+    pass.end(plan);
     return success;
   }
 
+  /**
+   * @return the resolution report of the last executed plan, or null if the plan did not
+   * pre-resolve its bundles.
+   */
+  public ResolutionReport getResolutionReport() {
+    return resolutionReport;
+  }
+
+  /**
+   * @return the bundles of the last executed plan that are left to a {@link StartScheduler},
+   * keyed by run level. Empty unless the plan uses the history schedule.
+   */
+  public Map<Integer, List<Bundle>> getScheduledStarts() {
+    return scheduledStarts != null ? scheduledStarts : Collections.emptyMap();
+  }
+
+  private JarOptimizer createOptimizer(Map<String, String> configMap) {
+    if (!"true".equalsIgnoreCase(configMap.getOrDefault(AUTO_DEPLOY_OPTIMIZE_PROPERTY, "false").trim())) {
+      return null;
+    }
+    final String dir = configMap.get(AUTO_DEPLOY_OPTIMIZE_DIR_PROPERTY);
+    final File cacheDir = dir != null ? new File(dir) :
+        LauncherUtil.getStorageSiblingFile(configMap, AUTO_DEPLOY_OPTIMIZE_DIR_SUFFIX);
+    int level = 0;
+    try {
+      level = Integer.parseInt(configMap.getOrDefault(AUTO_DEPLOY_OPTIMIZE_LEVEL_PROPERTY, "0").trim());
+    } catch (NumberFormatException e) {
+      logger.accept("Invalid " + AUTO_DEPLOY_OPTIMIZE_LEVEL_PROPERTY + ", storing entries uncompressed.");
+    }
+    final JarOptimizer optimizer = new JarOptimizer(cacheDir, level, logger);
+    final File profile = LauncherUtil.getStorageSiblingFile(configMap, ClassLoadProfile.FILE_SUFFIX);
+    if (profile.exists()) {
+      optimizer.setProfile(ClassLoadProfile.load(profile));
+    }
+    return optimizer;
+  }
+
+  /**
+   * Creates the pool that writes the optimized copies of streamed bundles ahead of their installs.
+   */
+  private static ExecutorService createOptimizerPool() {
+    final AtomicInteger threadCount = new AtomicInteger();
+    return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+      final Thread thread = new Thread(r, "Auto-Deploy Optimize " + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Waits for the optimized copy prepared by the scan thread.
+   *
+   * @return the copy, or null if the entry's own file is installed.
+   */
+  private File getOptimized(DeployPlan.Entry entry, Future<File> optimized) throws InterruptedException {
+    try {
+      final File copy = optimized.get();
+      return copy.equals(entry.getFile()) ? null : copy;
+    } catch (ExecutionException ex) {
+      logger.accept(String.format("Auto-deploy optimize [%s]: %s, installing the original file",
+          entry.getLocation(), ex.getCause()));
+      return null;
+    }
+  }
+
+  /**
+   * Creates the optimized copies of all files that are installed or updated. The copies are created in
+   * parallel, as the first pass after a change rewrites every affected jar.
+   *
+   * @return the optimized copy by entry, for entries that have one.
+   */
+  private Map<DeployPlan.Entry, File> optimize(DeployPlan plan) {
+    final JarOptimizer optimizer = plan.getOptimizer();
+    final Map<DeployPlan.Entry, File> result = new ConcurrentHashMap<>();
+    if (optimizer == null) {
+      return result;
+    }
+    plan.getEntries().parallelStream()
+        .filter(entry -> entry.isInstall() || entry.isUpdate())
+        .forEach(entry -> {
+          final File copy = optimizer.optimize(entry.getFile(), optimizer.getLoadOrder(entry.getSymbolicName()));
+          if (!copy.equals(entry.getFile())) {
+            result.put(entry, copy);
+          }
+        });
+    optimizer.saveIndex();
+    return result;
+  }
+
   private List<String> prepareActions(Map<String, String> configMap) {
     String action = configMap.get(AUTO_DEPLOY_ACTION_PROPERTY);
     action = (action == null) ? "" : action;
@@ -214,22 +811,6 @@ public class AutoProcessor {
     return bundle.getHeaders().get(Constants.FRAGMENT_HOST) != null;
   }
 
-  private void setBundleStartLevel(Bundle b, int level) {
-    final BundleStartLevel adapt = b.adapt(BundleStartLevel.class);
-    if (adapt != null) {
-      adapt.setStartLevel(level);
-      return;
-    }
-
-    // use the legacy way ..
-    final BundleContext context = b.getBundleContext();
-    StartLevel sl = context.getService(context.getServiceReference(StartLevel.class));
-    if (sl == null) {
-      throw new IllegalStateException("OSGI framework is not able to produce a StartLevel service. This is bad.");
-    }
-    sl.setBundleStartLevel(b, level);
-  }
-
   private int getFrameworkStartLevel(BundleContext context,
                                      Map<String, String> configMap) {
     int startLevel = 1;
@@ -246,7 +827,11 @@ public class AutoProcessor {
       if (slOld == null) {
         throw new IllegalStateException("OSGI framework is not able to produce a StartLevel service. This is bad.");
       }
-      startLevel = slOld.getInitialBundleStartLevel();
+      try {
+        startLevel = slOld.getInitialBundleStartLevel();
+      } finally {
+        context.ungetService(slRef);
+      }
     }
     // Get start level for auto-deploy bundles.
     final String startLevelProp = configMap.get(AUTO_DEPLOY_STARTLEVEL_PROPERTY);
@@ -0,0 +1,270 @@
+package com.tmorgner.osgi.runner;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.framework.startlevel.BundleStartLevel;
+import org.osgi.framework.startlevel.FrameworkStartLevel;
+import org.osgi.service.startlevel.StartLevel;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * The second phase of a two-phase boot. The framework is started with its beginning start level
+ * capped at the background threshold, so that only the core bundles are started before the
+ * framework reports STARTED. Afterwards this class deploys the bundles of the higher run levels on
+ * a background thread and raises the framework start level to its configured value, which starts
+ * them in start-level order.
+ * <p>
+ * The bundles are installed before the start level is raised, so that updated bundles are not
+ * started twice. When the framework is restarted after an update, only the start level is raised
+ * again. With a {@link StartLevelRamp}, the start level is raised through the ramp's levels.
+ */
+public class BackgroundDeployment {
+  private final Consumer<String> logger;
+  private final int threshold;
+  private final int targetLevel;
+  private final StartHistory history;
+  private final int threads;
+  private final boolean stopOnError;
+  private DeployPlan plan;
+  private final Map<Integer, List<Long>> scheduledStarts;
+  private StartLevelRamp ramp;
+  private Consumer<BundleContext> onComplete;
+  private volatile boolean success;
+  private Thread thread;
+
+  /**
+   * @param plan        the part of the deploy plan above the threshold.
+   * @param threshold   the highest run level started in the foreground.
+   * @param targetLevel the start level the framework is raised to.
+   * @param history     the start history used for scheduled starts, or null if the plan is not scheduled.
+   * @param threads     the number of threads used for scheduled starts.
+   * @param stopOnError whether the framework is stopped if the deployment fails.
+   */
+  public BackgroundDeployment(Consumer<String> logger, DeployPlan plan, int threshold, int targetLevel,
+                              StartHistory history, int threads, boolean stopOnError) {
+    this.logger = line -> logger.accept("[background] " + line);
+    this.plan = plan;
+    this.threshold = threshold;
+    this.targetLevel = targetLevel;
+    this.history = history;
+    this.threads = threads;
+    this.stopOnError = stopOnError;
+    this.scheduledStarts = new TreeMap<>();
+    this.success = true;
+  }
+
+  /**
+   * @param ramp the ramp used to raise the start level, or null to raise it in one step.
+   */
+  public void setRamp(StartLevelRamp ramp) {
+    this.ramp = ramp;
+  }
+
+  /**
+   * @param onComplete called on the background thread once the start level has been raised and the
+   *                   background bundles have been started, unless the framework is stopped because
+   *                   of an error.
+   */
+  public void setOnComplete(Consumer<BundleContext> onComplete) {
+    this.onComplete = onComplete;
+  }
+
+  /**
+   * Starts the background phase on its own thread. Must be called once the framework has started.
+   */
+  public void start(BundleContext context) {
+    thread = new Thread(() -> run(context), "Background Deployment");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Waits for the background phase to finish.
+   */
+  public void join() throws InterruptedException {
+    if (thread != null) {
+      thread.join();
+    }
+  }
+
+  /**
+   * @return false if deploying or starting any background bundle failed.
+   */
+  public boolean isSuccess() {
+    return success;
+  }
+
+  private void run(BundleContext context) {
+    final long startTime = System.nanoTime();
+    final Progress progress = new Progress();
+    context.addBundleListener(progress);
+    context.addFrameworkListener(progress);
+    // Deploy passes of the control channel wait until the background bundles are deployed and started.
+    AutoProcessor.PASS_LOCK.lock();
+    try {
+      if (plan != null) {
+        logger.accept(String.format("Deploying %d bundles above run level %d.", plan.getEntries().size(), threshold));
+        final AutoProcessor processor = new AutoProcessor(logger);
+        if (!processor.execute(plan, context)) {
+          success = false;
+        }
+        for (Map.Entry<Integer, List<Bundle>> entry : processor.getScheduledStarts().entrySet()) {
+          for (Bundle bundle : entry.getValue()) {
+            scheduledStarts.computeIfAbsent(entry.getKey(), k -> new ArrayList<>()).add(bundle.getBundleId());
+          }
+        }
+        // the plan refers to bundle objects of this framework instance only.
+        plan = null;
+      }
+
+      progress.count(context);
+      raiseStartLevel(context);
+      if (history != null && !scheduledStarts.isEmpty()) {
+        if (!new StartScheduler(logger, history, threads).start(resolveScheduledStarts(context))) {
+          success = false;
+        }
+        try {
+          history.save(context);
+        } catch (IOException ex) {
+          logger.accept("Unable to save the start history: " + ex);
+        }
+      }
+      logger.accept(String.format("Started %d of %d bundles above run level %d in %d ms%s.",
+          progress.started.get(), progress.expected, threshold,
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime), success ? "" : " with errors"));
+    } catch (InterruptedException ex) {
+      logger.accept("Interrupted while waiting for the start level to change.");
+      success = false;
+    } catch (RuntimeException ex) {
+      logger.accept("Background deployment failed: " + ex);
+      success = false;
+    } finally {
+      AutoProcessor.PASS_LOCK.unlock();
+      context.removeBundleListener(progress);
+      context.removeFrameworkListener(progress);
+    }
+
+    if (!success && stopOnError) {
+      try {
+        context.getBundle(0).stop();
+      } catch (BundleException ex) {
+        logger.accept("Unable to stop the framework: " + ex);
+      }
+    } else if (onComplete != null && context.getBundle(0).getState() == Bundle.ACTIVE) {
+      onComplete.accept(context);
+    }
+  }
+
+  private Map<Integer, List<Bundle>> resolveScheduledStarts(BundleContext context) {
+    final Map<Integer, List<Bundle>> levels = new TreeMap<>();
+    for (Map.Entry<Integer, List<Long>> entry : scheduledStarts.entrySet()) {
+      final List<Bundle> bundles = new ArrayList<>();
+      for (long id : entry.getValue()) {
+        final Bundle bundle = context.getBundle(id);
+        if (bundle != null) {
+          bundles.add(bundle);
+        }
+      }
+      levels.put(entry.getKey(), bundles);
+    }
+    return levels;
+  }
+
+  private void raiseStartLevel(BundleContext context) throws InterruptedException {
+    if (ramp != null) {
+      ramp.raise(context, targetLevel);
+      if (context.getBundle(0).getState() != Bundle.ACTIVE) {
+        throw new IllegalStateException("Framework stopped while raising the start level");
+      }
+      return;
+    }
+    final CountDownLatch latch = new CountDownLatch(1);
+    final FrameworkListener listener = event -> {
+      if (event.getType() == FrameworkEvent.STARTLEVEL_CHANGED) {
+        latch.countDown();
+      }
+    };
+    context.addFrameworkListener(listener);
+    try {
+      final FrameworkStartLevel fsl = context.getBundle(0).adapt(FrameworkStartLevel.class);
+      if (fsl != null) {
+        fsl.setStartLevel(targetLevel);
+      } else {
+        // legacy mode ...
+        final ServiceReference<StartLevel> ref = context.getServiceReference(StartLevel.class);
+        final StartLevel sl = ref != null ? context.getService(ref) : null;
+        if (sl == null) {
+          throw new IllegalStateException("OSGI framework is not able to produce a StartLevel service. This is bad.");
+        }
+        try {
+          sl.setStartLevel(targetLevel);
+        } finally {
+          context.ungetService(ref);
+        }
+      }
+      while (!latch.await(100, TimeUnit.MILLISECONDS)) {
+        if (context.getBundle(0).getState() != Bundle.ACTIVE) {
+          throw new IllegalStateException("Framework stopped while raising the start level");
+        }
+      }
+    } finally {
+      context.removeFrameworkListener(listener);
+    }
+  }
+
+  /**
+   * Reports the starts of bundles above the threshold. Activators failing during the
+   * start-level ramp are reported by the framework as ERROR events.
+   */
+  private class Progress implements SynchronousBundleListener, FrameworkListener {
+    private final AtomicInteger started = new AtomicInteger();
+    private volatile int expected;
+
+    void count(BundleContext context) {
+      int count = 0;
+      for (Bundle bundle : context.getBundles()) {
+        if (isBackground(bundle) && bundle.getState() != Bundle.ACTIVE) {
+          count += 1;
+        }
+      }
+      expected = count;
+    }
+
+    private boolean isBackground(Bundle bundle) {
+      final BundleStartLevel bsl = bundle.adapt(BundleStartLevel.class);
+      return bsl != null && bundle.getBundleId() != 0 && bsl.getStartLevel() > threshold
+          && bundle.getHeaders().get(Constants.FRAGMENT_HOST) == null;
+    }
+
+    @Override
+    public void bundleChanged(BundleEvent event) {
+      if (event.getType() == BundleEvent.STARTED && isBackground(event.getBundle())) {
+        logger.accept(String.format("Started %s (%d/%d)", event.getBundle().getLocation(), started.incrementAndGet(), expected));
+      }
+    }
+
+    @Override
+    public void frameworkEvent(FrameworkEvent event) {
+      if (event.getType() == FrameworkEvent.ERROR && event.getBundle() != null && isBackground(event.getBundle())) {
+        logger.accept(String.format("Failed to start %s: %s", event.getBundle().getLocation(), event.getThrowable()));
+        success = false;
+      }
+    }
+  }
+}
@@ -2,6 +2,7 @@ package com.tmorgner.osgi.runner;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 class BundlesWithRunLevel {
@@ -22,7 +23,7 @@ class BundlesWithRunLevel {
   }
 
   public List<File> getFiles() {
-    return new ArrayList<>(bundles);
+    return Collections.unmodifiableList(bundles);
   }
 
 
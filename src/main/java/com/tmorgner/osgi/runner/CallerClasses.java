@@ -0,0 +1,28 @@
+package com.tmorgner.osgi.runner;
+
+/**
+ * Access to the classes on the current call stack. This is the variant for Java 8, which has no
+ * stack walking API and reads the stack through a security manager that is never installed; the
+ * multi-release section of the launcher jar contains a {@link StackWalker} variant for Java 21 and
+ * newer.
+ */
+final class CallerClasses {
+  @SuppressWarnings("removal")
+  private static class CallerContext extends SecurityManager {
+    Class<?>[] getCallers() {
+      return getClassContext();
+    }
+  }
+
+  private static final CallerContext CALLER_CONTEXT = new CallerContext();
+
+  private CallerClasses() {
+  }
+
+  /**
+   * @return the classes on the current call stack, innermost first.
+   */
+  static Class<?>[] get() {
+    return CALLER_CONTEXT.getCallers();
+  }
+}
@@ -0,0 +1,110 @@
+package com.tmorgner.osgi.runner;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The classes loaded by each bundle, by bundle symbolic name, in the order they were first loaded.
+ * The profile is recorded by a {@link ClassLoadRecorder}, replayed by {@link ClassWarmUp} and used by
+ * the {@link JarOptimizer} to order the entries of optimized bundle copies.
+ * <p>
+ * The profile is kept in a text file next to the framework storage directory, with one
+ * <tt>symbolic-name&lt;TAB&gt;class-name</tt> line per class.
+ */
+public class ClassLoadProfile {
+  /**
+   * The suffix of the profile file next to the framework storage directory.
+   */
+  public static final String FILE_SUFFIX = ".class-profile";
+
+  private final Map<String, Set<String>> classes;
+
+  public ClassLoadProfile() {
+    this.classes = new LinkedHashMap<>();
+  }
+
+  /**
+   * @return the profile stored in the file, or an empty profile if the file does not exist or
+   * cannot be read.
+   */
+  public static ClassLoadProfile load(File file) {
+    final ClassLoadProfile profile = new ClassLoadProfile();
+    if (!file.exists()) {
+      return profile;
+    }
+    try (BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = in.readLine()) != null) {
+        final int tab = line.indexOf('\t');
+        if (tab > 0 && !line.startsWith("#")) {
+          profile.add(line.substring(0, tab), line.substring(tab + 1).trim());
+        }
+      }
+    } catch (IOException e) {
+      // an unreadable profile is treated as an empty one.
+    }
+    return profile;
+  }
+
+  public synchronized void add(String symbolicName, String className) {
+    classes.computeIfAbsent(symbolicName, k -> new LinkedHashSet<>()).add(className);
+  }
+
+  public synchronized Set<String> getSymbolicNames() {
+    return new LinkedHashSet<>(classes.keySet());
+  }
+
+  /**
+   * @return the class names of the bundle in load order, never null.
+   */
+  public synchronized List<String> getClasses(String symbolicName) {
+    final Set<String> names = classes.get(symbolicName);
+    return names == null ? Collections.emptyList() : new ArrayList<>(names);
+  }
+
+  /**
+   * @return the jar entry names of the bundle's classes in load order, never null.
+   */
+  public List<String> getEntryNames(String symbolicName) {
+    final List<String> result = new ArrayList<>();
+    for (String className : getClasses(symbolicName)) {
+      result.add(className.replace('.', '/') + ".class");
+    }
+    return result;
+  }
+
+  public synchronized int size() {
+    int size = 0;
+    for (Set<String> names : classes.values()) {
+      size += names.size();
+    }
+    return size;
+  }
+
+  public synchronized void save(File file) throws IOException {
+    final File temp = new File(file.getPath() + ".tmp");
+    try (BufferedWriter out = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+      out.write("# symbolic-name\tclass-name, in load order");
+      out.newLine();
+      for (Map.Entry<String, Set<String>> entry : classes.entrySet()) {
+        for (String className : entry.getValue()) {
+          out.write(entry.getKey() + "\t" + className);
+          out.newLine();
+        }
+      }
+    }
+    Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+}
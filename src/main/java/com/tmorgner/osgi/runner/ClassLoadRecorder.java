@@ -0,0 +1,97 @@
+package com.tmorgner.osgi.runner;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.hooks.weaving.WeavingHook;
+import org.osgi.framework.hooks.weaving.WovenClass;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Records a {@link ClassLoadProfile} of the first minutes of operation. The recorder is a weaving
+ * hook that never modifies a class: the framework calls it once for each class defined by a bundle
+ * class loader, which is exactly the class loading the warm-up wants to replay. Classes of the
+ * framework itself and of the class path are not seen.
+ * <p>
+ * When the recording period ends, the hook is unregistered and the profile is written. A profile
+ * cut short by a shutdown is written as well.
+ */
+public class ClassLoadRecorder implements WeavingHook {
+  private final Consumer<String> logger;
+  private final File file;
+  private final ClassLoadProfile profile;
+  private final Timer timer;
+  private volatile boolean recording;
+  private ServiceRegistration<WeavingHook> registration;
+
+  /**
+   * @param file          the file receiving the profile.
+   * @param periodMinutes the number of minutes to record, starting now.
+   */
+  public ClassLoadRecorder(Consumer<String> logger, File file, long periodMinutes) {
+    this.logger = logger;
+    this.file = file;
+    this.profile = new ClassLoadProfile();
+    this.recording = true;
+    this.timer = new Timer("Class Profile Recorder", true);
+    this.timer.schedule(new TimerTask() {
+      @Override
+      public void run() {
+        stop();
+      }
+    }, TimeUnit.MINUTES.toMillis(periodMinutes));
+  }
+
+  /**
+   * Registers the hook with the framework. The registration ends with the framework, so this must
+   * be called again after a framework restart.
+   */
+  public synchronized void register(BundleContext context) {
+    if (recording) {
+      registration = context.registerService(WeavingHook.class, this, null);
+    }
+  }
+
+  @Override
+  public void weave(WovenClass wovenClass) {
+    if (!recording) {
+      return;
+    }
+    final Bundle bundle = wovenClass.getBundleWiring().getBundle();
+    if (bundle.getSymbolicName() != null) {
+      profile.add(bundle.getSymbolicName(), wovenClass.getClassName());
+    }
+  }
+
+  /**
+   * Ends the recording and writes the profile. Does nothing if the recording has already ended.
+   */
+  public synchronized void stop() {
+    if (!recording) {
+      return;
+    }
+    recording = false;
+    timer.cancel();
+    if (registration != null) {
+      try {
+        registration.unregister();
+      } catch (IllegalStateException e) {
+        // the framework has stopped and removed the hook already.
+      }
+      registration = null;
+    }
+    try {
+      profile.save(file);
+      logger.accept(String.format("Recorded %d classes of %d bundles to %s",
+          profile.size(), profile.getSymbolicNames().size(), file));
+    } catch (IOException e) {
+      logger.accept("Unable to write the class load profile " + file + ": " + e);
+    }
+  }
+}
@@ -0,0 +1,106 @@
+package com.tmorgner.osgi.runner;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Loads the classes of a {@link ClassLoadProfile} through the class loaders of their bundles, so that
+ * the first requests after a boot do not pay for loading and linking them. The bundles are warmed up
+ * in parallel on a bounded pool, the classes of a bundle in their recorded order. Loading stops when
+ * the time budget is used up.
+ * <p>
+ * Only bundles that are resolved or active are warmed up. Loading a class from a bundle that waits
+ * for its lazy activation would activate it, and loading from an installed bundle would resolve it.
+ */
+public class ClassWarmUp {
+  private final Consumer<String> logger;
+  private final ClassLoadProfile profile;
+  private final int threads;
+  private final long budgetMillis;
+  private Thread thread;
+
+  public ClassWarmUp(Consumer<String> logger, ClassLoadProfile profile, int threads, long budgetMillis) {
+    this.logger = logger;
+    this.profile = profile;
+    this.threads = Math.max(1, threads);
+    this.budgetMillis = budgetMillis;
+  }
+
+  /**
+   * Starts the warm-up on a daemon thread.
+   */
+  public void start(BundleContext context) {
+    thread = new Thread(() -> run(context), "Class Warm-Up");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public void join() throws InterruptedException {
+    if (thread != null) {
+      thread.join();
+    }
+  }
+
+  private void run(BundleContext context) {
+    final long start = System.nanoTime();
+    final long deadline = start + TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+    final List<Bundle> bundles = new ArrayList<>();
+    for (Bundle bundle : context.getBundles()) {
+      if ((bundle.getState() == Bundle.RESOLVED || bundle.getState() == Bundle.ACTIVE)
+          && bundle.getSymbolicName() != null && !profile.getClasses(bundle.getSymbolicName()).isEmpty()) {
+        bundles.add(bundle);
+      }
+    }
+    // the largest bundles first, so that they do not end up as the tail of the warm-up.
+    bundles.sort((a, b) -> Integer.compare(profile.getClasses(b.getSymbolicName()).size(),
+        profile.getClasses(a.getSymbolicName()).size()));
+
+    final AtomicInteger loaded = new AtomicInteger();
+    final AtomicInteger failed = new AtomicInteger();
+    final AtomicInteger skipped = new AtomicInteger();
+    final AtomicInteger threadCount = new AtomicInteger();
+    final ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+      final Thread t = new Thread(r, "Class Warm-Up " + threadCount.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+    for (Bundle bundle : bundles) {
+      executor.execute(() -> {
+        final List<String> classes = profile.getClasses(bundle.getSymbolicName());
+        for (int i = 0; i < classes.size(); i += 1) {
+          if (System.nanoTime() - deadline > 0 || Thread.currentThread().isInterrupted()) {
+            skipped.addAndGet(classes.size() - i);
+            return;
+          }
+          try {
+            bundle.loadClass(classes.get(i));
+            loaded.incrementAndGet();
+          } catch (ClassNotFoundException | LinkageError | RuntimeException e) {
+            failed.incrementAndGet();
+          }
+        }
+      });
+    }
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+        executor.shutdownNow();
+        executor.awaitTermination(1, TimeUnit.SECONDS);
+      }
+    } catch (InterruptedException e) {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+    logger.accept(String.format("Class warm-up: loaded %d classes of %d bundles in %d ms, %d failed, %d skipped.",
+        loaded.get(), bundles.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+        failed.get(), skipped.get()));
+  }
+}
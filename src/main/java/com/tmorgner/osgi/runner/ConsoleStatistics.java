@@ -0,0 +1,152 @@
+package com.tmorgner.osgi.runner;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+
+/**
+ * Per-bundle console counters and rate limits. Each source has a token bucket that holds up to
+ * "burst" lines and is refilled with "rate" lines per second. A rate of zero or less disables
+ * rate limiting. Output from the launcher itself is never limited.
+ */
+public class ConsoleStatistics implements ConsoleStatisticsMXBean {
+  /**
+   * The source name used for output that does not originate from a bundle.
+   */
+  public static final String SYSTEM_SOURCE = "<system>";
+
+  static class Source {
+    private final String name;
+    private final AtomicLong bytesWritten;
+    private final AtomicLong linesWritten;
+    private final AtomicLong bytesSuppressed;
+    private final AtomicLong linesSuppressed;
+    private double tokens;
+    private long lastRefill;
+    private long pendingLines;
+    private long pendingBytes;
+
+    Source(String name) {
+      this.name = name;
+      this.bytesWritten = new AtomicLong();
+      this.linesWritten = new AtomicLong();
+      this.bytesSuppressed = new AtomicLong();
+      this.linesSuppressed = new AtomicLong();
+      this.tokens = -1;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    void countWritten(int bytes, boolean lineEnd) {
+      bytesWritten.addAndGet(bytes);
+      if (lineEnd) {
+        linesWritten.incrementAndGet();
+      }
+    }
+
+    synchronized void countSuppressed(int bytes, boolean lineEnd) {
+      bytesSuppressed.addAndGet(bytes);
+      pendingBytes += bytes;
+      if (lineEnd) {
+        linesSuppressed.incrementAndGet();
+        pendingLines += 1;
+      }
+    }
+
+    synchronized boolean tryAcquire(double rate, double burst, long now) {
+      if (tokens < 0) {
+        tokens = burst;
+      } else {
+        tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1_000_000_000d);
+      }
+      lastRefill = now;
+      if (tokens >= 1) {
+        tokens -= 1;
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * @return a summary of the output suppressed since the last call, or null if nothing was suppressed.
+     */
+    synchronized String takeSuppressedSummary() {
+      if (pendingLines == 0 && pendingBytes == 0) {
+        return null;
+      }
+      final String summary = String.format("[console] suppressed %d lines (%d bytes) from %s",
+          pendingLines, pendingBytes, name);
+      pendingLines = 0;
+      pendingBytes = 0;
+      return summary;
+    }
+  }
+
+  private final Map<String, Source> sources;
+  private volatile double rate;
+  private volatile double burst;
+
+  public ConsoleStatistics() {
+    this.sources = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * @param rate  the number of lines per second each bundle may write; zero or less disables the limit.
+   * @param burst the number of lines a bundle may write at once.
+   */
+  public void setRateLimit(double rate, double burst) {
+    this.rate = rate;
+    this.burst = Math.max(1, burst);
+  }
+
+  public boolean isRateLimited() {
+    return rate > 0;
+  }
+
+  Source getSource(String name) {
+    return sources.computeIfAbsent(name, Source::new);
+  }
+
+  boolean tryAcquire(Source source) {
+    if (rate <= 0 || SYSTEM_SOURCE.equals(source.getName())) {
+      return true;
+    }
+    return source.tryAcquire(rate, burst, System.nanoTime());
+  }
+
+  Iterable<Source> getSources() {
+    return sources.values();
+  }
+
+  private Map<String, Long> collect(ToLongFunction<Source> counter) {
+    final Map<String, Long> result = new TreeMap<>();
+    for (Source source : sources.values()) {
+      result.put(source.getName(), counter.applyAsLong(source));
+    }
+    return result;
+  }
+
+  @Override
+  public Map<String, Long> getBytesWritten() {
+    return collect(s -> s.bytesWritten.get());
+  }
+
+  @Override
+  public Map<String, Long> getLinesWritten() {
+    return collect(s -> s.linesWritten.get());
+  }
+
+  @Override
+  public Map<String, Long> getBytesSuppressed() {
+    return collect(s -> s.bytesSuppressed.get());
+  }
+
+  @Override
+  public Map<String, Long> getLinesSuppressed() {
+    return collect(s -> s.linesSuppressed.get());
+  }
+}
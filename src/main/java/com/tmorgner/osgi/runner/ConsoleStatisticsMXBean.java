@@ -0,0 +1,18 @@
+package com.tmorgner.osgi.runner;
+
+import java.util.Map;
+
+/**
+ * Management interface for the per-bundle console counters of the {@link WrappingPrintStream}.
+ * All maps are keyed by the bundle that wrote to the console; output that was not written by
+ * bundle code is counted as {@link ConsoleStatistics#SYSTEM_SOURCE}.
+ */
+public interface ConsoleStatisticsMXBean {
+  Map<String, Long> getBytesWritten();
+
+  Map<String, Long> getLinesWritten();
+
+  Map<String, Long> getBytesSuppressed();
+
+  Map<String, Long> getLinesSuppressed();
+}
@@ -0,0 +1,271 @@
+package com.tmorgner.osgi.runner;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.startlevel.BundleStartLevel;
+import org.osgi.framework.startlevel.FrameworkStartLevel;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * A line based control endpoint on the loopback interface that runs deploy passes against the live
+ * framework. The port and a random access token are written to a file next to the framework storage
+ * directory, readable by the launching user only; a client must send <tt>auth &lt;token&gt;</tt> as
+ * its first line. Supported commands are:
+ * <ul>
+ * <li><tt>rescan</tt> - runs a complete auto-deploy pass.</li>
+ * <li><tt>redeploy &lt;path&gt;...</tt> - installs, updates or uninstalls only the given bundle files,
+ * using the same plan as a complete pass.</li>
+ * <li><tt>status</tt> - lists the installed bundles with their state and start level.</li>
+ * <li><tt>timings</tt> - lists the recorded {@link Timings}.</li>
+ * <li><tt>quit</tt> - closes the connection.</li>
+ * </ul>
+ * Every response ends with a line that is either <tt>OK</tt> or starts with <tt>ERROR</tt>.
+ * Connections are served one at a time. A <tt>rescan</tt> or <tt>redeploy</tt> that arrives while
+ * another deploy pass runs, for instance the background deployment, waits for that pass to finish.
+ */
+public class ControlChannel {
+  private static final int READ_TIMEOUT_MILLIS = 60_000;
+
+  private final Framework framework;
+  private final Map<String, String> configMap;
+  private final Timings timings;
+  private final Consumer<String> logger;
+  private final File controlFile;
+  private final String token;
+  private ServerSocket serverSocket;
+  private Thread thread;
+
+  /**
+   * @param framework   the framework to deploy to. Its bundle context is looked up for each command,
+   *                    so that the channel survives framework restarts.
+   * @param configMap   the launcher configuration used for deploy passes.
+   * @param controlFile the file receiving the port and access token.
+   */
+  public ControlChannel(Framework framework, Map<String, String> configMap, Timings timings,
+                        Consumer<String> logger, File controlFile) {
+    this.framework = framework;
+    this.configMap = configMap;
+    this.timings = timings;
+    this.logger = logger;
+    this.controlFile = controlFile;
+    final byte[] random = new byte[16];
+    new SecureRandom().nextBytes(random);
+    final StringBuilder b = new StringBuilder();
+    for (byte value : random) {
+      b.append(String.format("%02x", value));
+    }
+    this.token = b.toString();
+  }
+
+  /**
+   * Binds the endpoint and starts serving connections on a daemon thread.
+   *
+   * @param port the port to bind, or 0 for any free port.
+   * @return the bound port.
+   */
+  public int start(int port) throws IOException {
+    serverSocket = new ServerSocket(port, 1, InetAddress.getLoopbackAddress());
+    writeControlFile(serverSocket.getLocalPort());
+    thread = new Thread(this::serve, "Launcher Control Channel");
+    thread.setDaemon(true);
+    thread.start();
+    logger.accept("Control channel listening on " + serverSocket.getLocalSocketAddress());
+    return serverSocket.getLocalPort();
+  }
+
+  private void writeControlFile(int port) throws IOException {
+    final byte[] content = ("port=" + port + "\ntoken=" + token + "\n").getBytes(StandardCharsets.UTF_8);
+    Files.deleteIfExists(controlFile.toPath());
+    try {
+      Files.createFile(controlFile.toPath(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+    } catch (UnsupportedOperationException e) {
+      // not a POSIX file system, rely on the permissions of the parent directory.
+      Files.createFile(controlFile.toPath());
+    }
+    Files.write(controlFile.toPath(), content);
+  }
+
+  /**
+   * Stops serving connections and removes the control file.
+   */
+  public void close() {
+    try {
+      if (serverSocket != null) {
+        serverSocket.close();
+      }
+      Files.deleteIfExists(controlFile.toPath());
+    } catch (IOException e) {
+      // nothing left to clean up.
+    }
+  }
+
+  private void serve() {
+    while (!serverSocket.isClosed()) {
+      try (Socket socket = serverSocket.accept()) {
+        socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+        handle(socket);
+      } catch (SocketTimeoutException e) {
+        // the client went quiet, the connection is closed.
+      } catch (SocketException e) {
+        if (serverSocket.isClosed()) {
+          return;
+        }
+        logger.accept("Control channel: " + e);
+      } catch (IOException | RuntimeException e) {
+        logger.accept("Control channel: " + e);
+      }
+    }
+  }
+
+  private void handle(Socket socket) throws IOException {
+    final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    final PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+    final String auth = in.readLine();
+    if (auth == null || !auth.startsWith("auth ") || !MessageDigest.isEqual(
+        auth.substring(5).trim().getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8))) {
+      out.println("ERROR not authorized");
+      return;
+    }
+    out.println("OK");
+
+    String line;
+    while ((line = in.readLine()) != null) {
+      final String[] words = line.trim().split("\\s+");
+      final String command = words[0].toLowerCase();
+      if (command.isEmpty()) {
+        continue;
+      }
+      if (command.equals("quit")) {
+        out.println("OK");
+        return;
+      }
+      try {
+        final boolean success = execute(command, Arrays.copyOfRange(words, 1, words.length), out);
+        out.println(success ? "OK" : "ERROR the command failed, see the output above");
+      } catch (IllegalStateException | IllegalArgumentException e) {
+        out.println("ERROR " + e.getMessage());
+      }
+    }
+  }
+
+  private boolean execute(String command, String[] args, PrintWriter out) {
+    final BundleContext context = framework.getBundleContext();
+    if (context == null || framework.getState() != Bundle.ACTIVE) {
+      throw new IllegalStateException("framework is not active");
+    }
+    switch (command) {
+      case "rescan":
+        return deploy(context, null, out);
+      case "redeploy":
+        if (args.length == 0) {
+          throw new IllegalArgumentException("usage: redeploy <path>...");
+        }
+        final Set<String> locations = new HashSet<>();
+        for (String path : args) {
+          locations.add(new File(path).toURI().toString());
+        }
+        return deploy(context, locations, out);
+      case "status":
+        status(context, out);
+        return true;
+      case "timings":
+        timings.getEntries().forEach(out::println);
+        return true;
+      default:
+        throw new IllegalArgumentException("unknown command " + command);
+    }
+  }
+
+  private boolean deploy(BundleContext context, Set<String> locations, PrintWriter out) {
+    final long start = System.nanoTime();
+    final Consumer<String> output = line -> {
+      logger.accept("[control] " + line);
+      out.println(line);
+    };
+    if (!AutoProcessor.PASS_LOCK.tryLock()) {
+      output.accept("Waiting for the running deploy pass to finish.");
+      AutoProcessor.PASS_LOCK.lock();
+    }
+    try {
+      // the framework may have stopped while waiting.
+      if (framework.getState() != Bundle.ACTIVE) {
+        throw new IllegalStateException("framework is not active");
+      }
+      return deployLocked(context, locations, output, start);
+    } finally {
+      AutoProcessor.PASS_LOCK.unlock();
+    }
+  }
+
+  private boolean deployLocked(BundleContext context, Set<String> locations, Consumer<String> output, long start) {
+    final AutoProcessor processor = new AutoProcessor(output);
+    DeployPlan plan = processor.plan(configMap, context);
+    if (locations != null) {
+      plan = plan.only(locations);
+      final Set<String> unknown = new HashSet<>(locations);
+      plan.getEntries().forEach(e -> unknown.remove(e.getLocation()));
+      plan.getUninstalls().forEach(b -> unknown.remove(b.getLocation()));
+      for (String location : unknown) {
+        output.accept("Not part of the deployment: " + location);
+      }
+    }
+    // the framework is active, so bundles are started right away.
+    plan.setScheduled(false);
+    final boolean success = plan.getActions().isEmpty() || processor.execute(plan, context);
+    timings.record(locations == null ? "rescan" : "redeploy", start);
+    return success;
+  }
+
+  private void status(BundleContext context, PrintWriter out) {
+    final FrameworkStartLevel fsl = context.getBundle(0).adapt(FrameworkStartLevel.class);
+    if (fsl != null) {
+      out.println("# framework start level " + fsl.getStartLevel());
+    }
+    out.println("# id\tstate\tstart-level\tsymbolic-name\tlocation");
+    for (Bundle bundle : context.getBundles()) {
+      final BundleStartLevel bsl = bundle.adapt(BundleStartLevel.class);
+      out.println(bundle.getBundleId() + "\t" + getStateName(bundle.getState()) + "\t" +
+          (bsl != null ? String.valueOf(bsl.getStartLevel()) : "") + "\t" +
+          bundle.getSymbolicName() + "\t" + bundle.getLocation());
+    }
+  }
+
+  private static String getStateName(int state) {
+    switch (state) {
+      case Bundle.INSTALLED:
+        return "INSTALLED";
+      case Bundle.RESOLVED:
+        return "RESOLVED";
+      case Bundle.STARTING:
+        return "STARTING";
+      case Bundle.STOPPING:
+        return "STOPPING";
+      case Bundle.ACTIVE:
+        return "ACTIVE";
+      default:
+        return "UNINSTALLED";
+    }
+  }
+}
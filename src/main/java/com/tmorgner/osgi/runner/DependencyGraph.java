@@ -0,0 +1,296 @@
+package com.tmorgner.osgi.runner;
+
+import org.osgi.framework.Constants;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+/**
+ * The requirement graph of a set of bundles, computed from their manifests. A bundle depends on
+ * every bundle of the set that exports a package it imports, on every bundle it requires via
+ * "Require-Bundle" and on all fragments attached to it. Requirements on bundles outside of the set
+ * are ignored.
+ *
+ * @param <T> the node type, usually a bundle or a bundle file.
+ */
+class DependencyGraph<T> {
+  private final List<T> nodes;
+  private final List<BitSet> dependencies;
+
+  private DependencyGraph(List<T> nodes, List<BitSet> dependencies) {
+    this.nodes = nodes;
+    this.dependencies = dependencies;
+  }
+
+  /**
+   * @param nodes   the bundles, in their default order.
+   * @param headers returns the value of the given manifest header of a node, or null.
+   */
+  public static <T> DependencyGraph<T> build(List<T> nodes, BiFunction<T, String, String> headers) {
+    final Map<String, BitSet> packageProviders = new HashMap<>();
+    final Map<String, BitSet> symbolicNames = new HashMap<>();
+    for (int i = 0; i < nodes.size(); i += 1) {
+      final T node = nodes.get(i);
+      for (ManifestClauses.Clause clause : ManifestClauses.parse(headers.apply(node, Constants.EXPORT_PACKAGE))) {
+        for (String pkg : clause.getPaths()) {
+          packageProviders.computeIfAbsent(pkg, k -> new BitSet()).set(i);
+        }
+      }
+      final String bsn = ManifestClauses.parseFirstPath(headers.apply(node, Constants.BUNDLE_SYMBOLICNAME));
+      if (bsn != null) {
+        symbolicNames.computeIfAbsent(bsn, k -> new BitSet()).set(i);
+      }
+    }
+
+    final List<BitSet> dependencies = new ArrayList<>(nodes.size());
+    for (int i = 0; i < nodes.size(); i += 1) {
+      dependencies.add(new BitSet());
+    }
+    for (int i = 0; i < nodes.size(); i += 1) {
+      final T node = nodes.get(i);
+      final BitSet deps = dependencies.get(i);
+      for (ManifestClauses.Clause clause : ManifestClauses.parse(headers.apply(node, Constants.IMPORT_PACKAGE))) {
+        for (String pkg : clause.getPaths()) {
+          final BitSet providers = packageProviders.get(pkg);
+          if (providers != null) {
+            deps.or(providers);
+          }
+        }
+      }
+      for (ManifestClauses.Clause clause : ManifestClauses.parse(headers.apply(node, Constants.REQUIRE_BUNDLE))) {
+        for (String bsn : clause.getPaths()) {
+          final BitSet providers = symbolicNames.get(bsn);
+          if (providers != null) {
+            deps.or(providers);
+          }
+        }
+      }
+      // a host depends on its fragments, so that they are present when the host resolves.
+      final String host = ManifestClauses.parseFirstPath(headers.apply(node, Constants.FRAGMENT_HOST));
+      if (host != null) {
+        final BitSet hosts = symbolicNames.get(host);
+        if (hosts != null) {
+          for (int h = hosts.nextSetBit(0); h >= 0; h = hosts.nextSetBit(h + 1)) {
+            dependencies.get(h).set(i);
+          }
+        }
+      }
+    }
+    for (int i = 0; i < nodes.size(); i += 1) {
+      dependencies.get(i).clear(i);
+    }
+    return new DependencyGraph<>(nodes, dependencies);
+  }
+
+  public List<T> getNodes() {
+    return Collections.unmodifiableList(nodes);
+  }
+
+  /**
+   * @return the indices of the nodes the given node depends on. The returned set must not be modified.
+   */
+  public BitSet getDependencies(int node) {
+    return dependencies.get(node);
+  }
+
+  /**
+   * Orders the nodes so that every node comes after the nodes it depends on. Independent nodes
+   * keep their original order. Nodes that depend on each other form a strongly connected component,
+   * which is placed as a whole after the components it depends on. Only inside such a cycle is a
+   * node started before its dependencies; the first node of the cycle in original order is taken,
+   * which makes the result deterministic.
+   *
+   * @param logger receives a message for each broken cycle.
+   * @return the ordered nodes.
+   */
+  public List<T> topologicalOrder(Consumer<String> logger) {
+    final List<T> result = new ArrayList<>(nodes.size());
+    for (int node : topologicalIndices(logger)) {
+      result.add(nodes.get(node));
+    }
+    return result;
+  }
+
+  /**
+   * Same as {@link #topologicalOrder(Consumer)}, but returns node indices.
+   */
+  public int[] topologicalIndices(Consumer<String> logger) {
+    final int size = nodes.size();
+    final int[] component = stronglyConnectedComponents();
+    int componentCount = 0;
+    for (int c : component) {
+      componentCount = Math.max(componentCount, c + 1);
+    }
+    // members are added in index order, so the first member is the component's position.
+    final List<List<Integer>> members = new ArrayList<>(componentCount);
+    final List<BitSet> dependents = new ArrayList<>(componentCount);
+    for (int c = 0; c < componentCount; c += 1) {
+      members.add(new ArrayList<>());
+      dependents.add(new BitSet());
+    }
+    final int[] pending = new int[componentCount];
+    for (int i = 0; i < size; i += 1) {
+      members.get(component[i]).add(i);
+      final BitSet deps = dependencies.get(i);
+      for (int d = deps.nextSetBit(0); d >= 0; d = deps.nextSetBit(d + 1)) {
+        if (component[d] != component[i] && !dependents.get(component[d]).get(component[i])) {
+          dependents.get(component[d]).set(component[i]);
+          pending[component[i]] += 1;
+        }
+      }
+    }
+
+    final PriorityQueue<Integer> ready = new PriorityQueue<>(Comparator.comparingInt(c -> members.get(c).get(0)));
+    for (int c = 0; c < componentCount; c += 1) {
+      if (pending[c] == 0) {
+        ready.add(c);
+      }
+    }
+    final int[] result = new int[size];
+    int count = 0;
+    while (!ready.isEmpty()) {
+      final int c = ready.poll();
+      for (int node : orderCycle(members.get(c), logger)) {
+        result[count] = node;
+        count += 1;
+      }
+      final BitSet next = dependents.get(c);
+      for (int d = next.nextSetBit(0); d >= 0; d = next.nextSetBit(d + 1)) {
+        pending[d] -= 1;
+        if (pending[d] == 0) {
+          ready.add(d);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Orders the members of a strongly connected component. Members whose dependencies inside the
+   * component are met come first; if there is none, the cycle is broken at the first remaining member.
+   */
+  private List<Integer> orderCycle(List<Integer> cycle, Consumer<String> logger) {
+    if (cycle.size() == 1) {
+      return cycle;
+    }
+    final BitSet inCycle = new BitSet();
+    for (int node : cycle) {
+      inCycle.set(node);
+    }
+    final Map<Integer, Integer> pending = new HashMap<>();
+    for (int node : cycle) {
+      final BitSet deps = (BitSet) dependencies.get(node).clone();
+      deps.and(inCycle);
+      pending.put(node, deps.cardinality());
+    }
+
+    final List<Integer> result = new ArrayList<>(cycle.size());
+    final BitSet done = new BitSet();
+    final PriorityQueue<Integer> ready = new PriorityQueue<>();
+    while (result.size() < cycle.size()) {
+      if (ready.isEmpty()) {
+        int next = -1;
+        for (int node : cycle) {
+          if (!done.get(node)) {
+            next = node;
+            break;
+          }
+        }
+        final List<T> names = new ArrayList<>();
+        for (int node : cycle) {
+          names.add(nodes.get(node));
+        }
+        logger.accept("Dependency cycle detected between " + names + ", starting " + nodes.get(next) + " before its dependencies.");
+        ready.add(next);
+      }
+      final int node = ready.poll();
+      if (done.get(node)) {
+        continue;
+      }
+      done.set(node);
+      result.add(node);
+      for (int dependent : cycle) {
+        if (!done.get(dependent) && dependencies.get(dependent).get(node)) {
+          final int left = pending.get(dependent) - 1;
+          pending.put(dependent, left);
+          if (left == 0) {
+            ready.add(dependent);
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Tarjan's algorithm, without recursion so that long dependency chains do not exhaust the stack.
+   *
+   * @return the component number of each node.
+   */
+  private int[] stronglyConnectedComponents() {
+    final int size = nodes.size();
+    final int[] index = new int[size];
+    final int[] lowLink = new int[size];
+    final int[] component = new int[size];
+    Arrays.fill(index, -1);
+    final BitSet onStack = new BitSet(size);
+    final Deque<Integer> stack = new ArrayDeque<>();
+    // each frame holds a node and the position of the next dependency to visit.
+    final Deque<int[]> frames = new ArrayDeque<>();
+    int counter = 0;
+    int components = 0;
+    for (int root = 0; root < size; root += 1) {
+      if (index[root] >= 0) {
+        continue;
+      }
+      frames.push(new int[]{root, 0});
+      while (!frames.isEmpty()) {
+        final int[] frame = frames.peek();
+        final int node = frame[0];
+        if (index[node] < 0) {
+          index[node] = counter;
+          lowLink[node] = counter;
+          counter += 1;
+          stack.push(node);
+          onStack.set(node);
+        }
+        final int next = dependencies.get(node).nextSetBit(frame[1]);
+        if (next >= 0) {
+          frame[1] = next + 1;
+          if (index[next] < 0) {
+            frames.push(new int[]{next, 0});
+          } else if (onStack.get(next)) {
+            lowLink[node] = Math.min(lowLink[node], index[next]);
+          }
+          continue;
+        }
+        frames.pop();
+        if (lowLink[node] == index[node]) {
+          int member;
+          do {
+            member = stack.pop();
+            onStack.clear(member);
+            component[member] = components;
+          } while (member != node);
+          components += 1;
+        }
+        if (!frames.isEmpty()) {
+          final int parent = frames.peek()[0];
+          lowLink[parent] = Math.min(lowLink[parent], lowLink[node]);
+        }
+      }
+    }
+    return component;
+  }
+}
@@ -0,0 +1,74 @@
+package com.tmorgner.osgi.runner;
+
+import org.osgi.framework.Bundle;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The size, modification time and run level of each bundle file of an auto-deploy pass. Comparing
+ * the fingerprint of the last pass with a new plan yields the locations that changed since, so that
+ * a restart of the framework only needs to deploy these.
+ */
+public class DeployFingerprint {
+  private static final DeployFingerprint EMPTY = new DeployFingerprint(Collections.emptyMap());
+
+  private final Map<String, String> files;
+
+  private DeployFingerprint(Map<String, String> files) {
+    this.files = files;
+  }
+
+  public static DeployFingerprint empty() {
+    return EMPTY;
+  }
+
+  /**
+   * @return the fingerprint of all entries of the given plans.
+   */
+  public static DeployFingerprint of(DeployPlan... plans) {
+    final Map<String, String> files = new HashMap<>();
+    for (DeployPlan plan : plans) {
+      if (plan == null) {
+        continue;
+      }
+      for (DeployPlan.Entry entry : plan.getEntries()) {
+        files.put(entry.getLocation(), fingerprint(entry));
+      }
+    }
+    return new DeployFingerprint(files);
+  }
+
+  /**
+   * @return the fingerprint of a single entry's bundle file.
+   */
+  static String fingerprint(DeployPlan.Entry entry) {
+    final File file = entry.getFile();
+    return file.length() + ":" + file.lastModified() + ":" + entry.getRunLevel();
+  }
+
+  public boolean isEmpty() {
+    return files.isEmpty();
+  }
+
+  /**
+   * @return the locations of the plan's entries that are new or differ from this fingerprint, and
+   * the locations the plan uninstalls.
+   */
+  public Set<String> getChangedLocations(DeployPlan plan) {
+    final Set<String> changed = new HashSet<>();
+    for (DeployPlan.Entry entry : plan.getEntries()) {
+      if (!fingerprint(entry).equals(files.get(entry.getLocation()))) {
+        changed.add(entry.getLocation());
+      }
+    }
+    for (Bundle bundle : plan.getUninstalls()) {
+      changed.add(bundle.getLocation());
+    }
+    return changed;
+  }
+}
@@ -0,0 +1,193 @@
+package com.tmorgner.osgi.runner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * An append-only journal of the operations of auto-deploy passes, kept next to the framework storage.
+ * Each line holds an operation, a bundle location and the {@link DeployFingerprint} of the bundle file.
+ * Records are written in batches, each followed by an fsync, and every pass ends with an <tt>end</tt>
+ * record. Once no pass is running any more, the journal is compacted to nothing.
+ * <p>
+ * A journal that still has records when it is opened belongs to a pass that has been interrupted, for
+ * instance by a killed JVM. The installs and updates it records have reached the framework storage
+ * (the framework persists them before it returns), so the next pass does not repeat them as long as
+ * the bundle file is unchanged. Records of the last, unsynced batch may be lost; their operations are
+ * simply repeated.
+ */
+public class DeployJournal {
+  public static final String OP_BEGIN = "begin";
+  public static final String OP_END = "end";
+
+  private static final int BATCH_SIZE = 64;
+  private static final Map<File, DeployJournal> OPEN_JOURNALS = new ConcurrentHashMap<>();
+
+  private final Consumer<String> logger;
+  private final File file;
+  private final Map<String, String> completed;
+  private final StringBuilder pending;
+  private int pendingRecords;
+  private int activePasses;
+
+  private DeployJournal(Consumer<String> logger, File file, Map<String, String> completed) {
+    this.logger = logger;
+    this.file = file;
+    this.completed = completed;
+    this.pending = new StringBuilder();
+  }
+
+  /**
+   * Opens the journal, reading the records of an interrupted pass if there are any. While a pass is
+   * running, the same journal is returned, so that concurrent passes (such as a background deployment
+   * and a control channel pass) share it.
+   */
+  public static synchronized DeployJournal open(Consumer<String> logger, File file) {
+    final File key = file.getAbsoluteFile();
+    final DeployJournal running = OPEN_JOURNALS.get(key);
+    if (running != null && running.isRunning()) {
+      return running;
+    }
+    final DeployJournal journal = read(logger, key);
+    OPEN_JOURNALS.put(key, journal);
+    return journal;
+  }
+
+  private static DeployJournal read(Consumer<String> logger, File file) {
+    final Map<String, String> completed = new HashMap<>();
+    if (file.exists()) {
+      try {
+        final List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        for (String line : lines) {
+          final String[] fields = line.split("\t");
+          if (fields.length == 3 && (fields[0].equals(DeployPlan.OP_INSTALL) || fields[0].equals(DeployPlan.OP_UPDATE))) {
+            completed.put(fields[1], fields[2]);
+          }
+        }
+        if (!lines.isEmpty()) {
+          logger.accept(String.format("Deploy journal: resuming an interrupted pass, %d bundles were already deployed.", completed.size()));
+        }
+      } catch (IOException e) {
+        logger.accept("Unable to read the deploy journal " + file + ": " + e);
+      }
+    }
+    return new DeployJournal(logger, file, completed);
+  }
+
+  /**
+   * @return true if the interrupted pass installed or updated the entry's bundle file as it is now.
+   */
+  public synchronized boolean isCompleted(DeployPlan.Entry entry) {
+    return DeployFingerprint.fingerprint(entry).equals(completed.get(entry.getLocation()));
+  }
+
+  private synchronized boolean isRunning() {
+    return activePasses > 0;
+  }
+
+  public synchronized void begin() {
+    activePasses += 1;
+    append(OP_BEGIN, "", "");
+  }
+
+  public synchronized void record(String operation, DeployPlan.Entry entry) {
+    append(operation, entry.getLocation(), DeployFingerprint.fingerprint(entry));
+  }
+
+  public synchronized void record(String operation, String location) {
+    append(operation, location, "");
+  }
+
+  /**
+   * Ends a pass. The records of the interrupted pass are forgotten for the locations the ending pass
+   * covered; a pass that only deploys part of the bundles, like the foreground part of a two-phase
+   * boot, leaves the records of the other bundles to the pass that deploys them. When no other pass
+   * is running, the journal is compacted to the records still needed, or deleted if there are none.
+   *
+   * @param locations the locations the pass installed, updated, uninstalled or found unchanged.
+   */
+  public synchronized void end(Collection<String> locations) {
+    append(OP_END, "", "");
+    flush();
+    completed.keySet().removeAll(locations);
+    activePasses -= 1;
+    if (activePasses <= 0) {
+      activePasses = 0;
+      compact();
+    }
+  }
+
+  private void compact() {
+    try {
+      if (completed.isEmpty()) {
+        Files.deleteIfExists(file.toPath());
+        return;
+      }
+      final StringBuilder b = new StringBuilder();
+      for (Map.Entry<String, String> entry : completed.entrySet()) {
+        b.append(DeployPlan.OP_INSTALL).append('\t').append(entry.getKey()).append('\t').append(entry.getValue()).append('\n');
+      }
+      final File temp = new File(file.getPath() + ".tmp");
+      try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+        final ByteBuffer buffer = ByteBuffer.wrap(b.toString().getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+        channel.force(false);
+      }
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      logger.accept("Unable to compact the deploy journal " + file + ": " + e);
+    }
+  }
+
+  /**
+   * Gives up a pass without ending it, for instance when it has been interrupted. Its records are
+   * kept, so that the next pass resumes from them.
+   */
+  public synchronized void abandon() {
+    flush();
+    activePasses = Math.max(0, activePasses - 1);
+  }
+
+  private void append(String operation, String location, String fingerprint) {
+    pending.append(operation).append('\t').append(location).append('\t').append(fingerprint).append('\n');
+    pendingRecords += 1;
+    if (pendingRecords >= BATCH_SIZE) {
+      flush();
+    }
+  }
+
+  /**
+   * Appends the pending records and forces them to disk.
+   */
+  public synchronized void flush() {
+    if (pendingRecords == 0) {
+      return;
+    }
+    try (FileChannel channel = FileChannel.open(file.toPath(),
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+      final ByteBuffer buffer = ByteBuffer.wrap(pending.toString().getBytes(StandardCharsets.UTF_8));
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      channel.force(false);
+    } catch (IOException e) {
+      logger.accept("Unable to write the deploy journal " + file + ": " + e);
+    }
+    pending.setLength(0);
+    pendingRecords = 0;
+  }
+}
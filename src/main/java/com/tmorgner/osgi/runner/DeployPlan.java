@@ -0,0 +1,349 @@
+package com.tmorgner.osgi.runner;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.startlevel.BundleStartLevel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * The operations an auto-deploy pass performs against a framework. A plan is computed by the
+ * {@link AutoProcessor} from a scan of the auto-deploy directory and the bundles currently installed
+ * in the framework storage. It is either executed or, in dry-run mode, written out in a tab separated
+ * format with one operation per line:
+ * <pre>
+ * operation  location  start-level  previous-start-level
+ * </pre>
+ * Operations are listed in run-level order, which is the order in which an executed plan performs
+ * them. When {@link AutoProcessor#process(java.util.Map, org.osgi.framework.BundleContext)} installs
+ * bundles while the deploy directory is still being scanned, installs and updates happen in discovery
+ * order instead, and the processed plan is sorted by run level once the scan is complete.
+ */
+public class DeployPlan {
+  public static final String OP_INSTALL = "install";
+  public static final String OP_UPDATE = "update";
+  public static final String OP_STARTLEVEL = "startlevel";
+  public static final String OP_UNINSTALL = "uninstall";
+  public static final String OP_START = "start";
+
+  /**
+   * A bundle file found in the auto-deploy directory, along with the bundle currently installed
+   * from the same location (if any).
+   */
+  public static class Entry {
+    private final File file;
+    private final String location;
+    private final int runLevel;
+    private final Bundle installed;
+    private final boolean install;
+    private final boolean update;
+    private Attributes manifest;
+    private boolean lazyActivation;
+
+    Entry(File file, int runLevel, Bundle installed, boolean install, boolean update) {
+      this.file = file;
+      this.location = file.toURI().toString();
+      this.runLevel = runLevel;
+      this.installed = installed;
+      this.install = install;
+      this.update = update;
+    }
+
+    public File getFile() {
+      return file;
+    }
+
+    public String getLocation() {
+      return location;
+    }
+
+    public int getRunLevel() {
+      return runLevel;
+    }
+
+    /**
+     * @return the bundle installed from this location before the pass, or null if there is none.
+     */
+    public Bundle getInstalledBundle() {
+      return installed;
+    }
+
+    public boolean isInstall() {
+      return install;
+    }
+
+    public boolean isUpdate() {
+      return update;
+    }
+
+    void setLazyActivation(boolean lazyActivation) {
+      this.lazyActivation = lazyActivation;
+    }
+
+    /**
+     * @return true if the bundle is started with its activation policy.
+     */
+    public boolean isLazyActivation() {
+      return lazyActivation;
+    }
+
+    /**
+     * @return true if a bundle for this entry exists after the install/update step.
+     */
+    public boolean isDeployed() {
+      return installed != null || install;
+    }
+
+    /**
+     * Returns the main attributes of the bundle file's manifest, as this is what the framework will
+     * see after the entry has been installed or updated. The manifest is only read on demand.
+     *
+     * @return the manifest attributes, or empty attributes if the file has no readable manifest.
+     */
+    public Attributes getManifest() {
+      if (manifest == null) {
+        manifest = readManifest(file);
+      }
+      return manifest;
+    }
+
+    public String getHeader(String name) {
+      return getManifest().getValue(name);
+    }
+
+    /**
+     * @return the symbolic name of the bundle without its directives, or null if it has none.
+     */
+    public String getSymbolicName() {
+      final String value = getHeader(Constants.BUNDLE_SYMBOLICNAME);
+      if (value == null) {
+        return null;
+      }
+      final int parameters = value.indexOf(';');
+      return (parameters < 0 ? value : value.substring(0, parameters)).trim();
+    }
+
+    public boolean isFragment() {
+      return getHeader(Constants.FRAGMENT_HOST) != null;
+    }
+
+    /**
+     * @return the current start level of the installed bundle, or -1 if not installed.
+     */
+    public int getCurrentStartLevel() {
+      if (installed == null) {
+        return -1;
+      }
+      final BundleStartLevel sl = installed.adapt(BundleStartLevel.class);
+      return sl != null ? sl.getStartLevel() : -1;
+    }
+
+    @Override
+    public String toString() {
+      return location;
+    }
+  }
+
+  private final List<String> actions;
+  private final List<Entry> entries;
+  private final List<Bundle> uninstalls;
+  private boolean preResolve;
+  private boolean scheduled;
+  private JarOptimizer optimizer;
+  private DeployJournal journal;
+
+  DeployPlan(List<String> actions) {
+    this.actions = Collections.unmodifiableList(new ArrayList<>(actions));
+    this.entries = new ArrayList<>();
+    this.uninstalls = new ArrayList<>();
+  }
+
+  void add(Entry entry) {
+    entries.add(entry);
+  }
+
+  /**
+   * Restores the run-level order of entries that have been added in the order they were found.
+   * Entries of the same run level keep their order.
+   */
+  void sortByRunLevel() {
+    entries.sort(Comparator.comparingInt(Entry::getRunLevel));
+  }
+
+  void addUninstall(Bundle bundle) {
+    uninstalls.add(bundle);
+  }
+
+  void setPreResolve(boolean preResolve) {
+    this.preResolve = preResolve;
+  }
+
+  /**
+   * @return true if all deployed bundles are resolved in one pass before any of them is started.
+   */
+  public boolean isPreResolve() {
+    return preResolve;
+  }
+
+  void setScheduled(boolean scheduled) {
+    this.scheduled = scheduled;
+  }
+
+  /**
+   * @return true if the deployed bundles are started by a {@link StartScheduler} instead of the framework.
+   */
+  public boolean isScheduled() {
+    return scheduled;
+  }
+
+  void setOptimizer(JarOptimizer optimizer) {
+    this.optimizer = optimizer;
+  }
+
+  /**
+   * @return the optimizer providing the content of installed and updated bundles, or null if the
+   * bundle files are installed as they are.
+   */
+  public JarOptimizer getOptimizer() {
+    return optimizer;
+  }
+
+  void setJournal(DeployJournal journal) {
+    this.journal = journal;
+  }
+
+  /**
+   * @return the journal recording the operations of this plan, or null if the plan is not journaled.
+   */
+  public DeployJournal getJournal() {
+    return journal;
+  }
+
+  public List<String> getActions() {
+    return actions;
+  }
+
+  public boolean hasAction(String action) {
+    return actions.contains(action);
+  }
+
+  /**
+   * @return the scanned bundle entries, in run-level order.
+   */
+  public List<Entry> getEntries() {
+    return Collections.unmodifiableList(entries);
+  }
+
+  /**
+   * @return the installed bundles that are no longer part of the deployment.
+   */
+  public List<Bundle> getUninstalls() {
+    return Collections.unmodifiableList(uninstalls);
+  }
+
+  /**
+   * @return a plan with the same settings that only deploys the bundles up to and including the
+   * given run level. Uninstalls are part of this plan.
+   */
+  public DeployPlan upTo(int runLevel) {
+    final DeployPlan result = copySettings();
+    for (Entry entry : entries) {
+      if (entry.getRunLevel() <= runLevel) {
+        result.add(entry);
+      }
+    }
+    result.uninstalls.addAll(uninstalls);
+    return result;
+  }
+
+  /**
+   * @return a plan with the same settings that only deploys the bundles above the given run level.
+   */
+  public DeployPlan above(int runLevel) {
+    final DeployPlan result = copySettings();
+    for (Entry entry : entries) {
+      if (entry.getRunLevel() > runLevel) {
+        result.add(entry);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return a plan with the same settings that only deploys or uninstalls the given locations.
+   */
+  public DeployPlan only(Collection<String> locations) {
+    final DeployPlan result = copySettings();
+    for (Entry entry : entries) {
+      if (locations.contains(entry.getLocation())) {
+        result.add(entry);
+      }
+    }
+    for (Bundle bundle : uninstalls) {
+      if (locations.contains(bundle.getLocation())) {
+        result.addUninstall(bundle);
+      }
+    }
+    return result;
+  }
+
+  private DeployPlan copySettings() {
+    final DeployPlan result = new DeployPlan(actions);
+    result.setPreResolve(preResolve);
+    result.setScheduled(scheduled);
+    result.setOptimizer(optimizer);
+    result.setJournal(journal);
+    return result;
+  }
+
+  public void write(PrintStream out) {
+    out.println("# operation\tlocation\tstart-level\tprevious-start-level");
+    for (Entry entry : entries) {
+      if (entry.isInstall()) {
+        out.println(OP_INSTALL + "\t" + entry.getLocation() + "\t" + entry.getRunLevel() + "\t");
+      } else if (entry.isUpdate()) {
+        out.println(OP_UPDATE + "\t" + entry.getLocation() + "\t" + entry.getRunLevel() + "\t");
+      }
+      if (entry.isDeployed() && !entry.isFragment()) {
+        final int current = entry.getCurrentStartLevel();
+        if (current != entry.getRunLevel()) {
+          out.println(OP_STARTLEVEL + "\t" + entry.getLocation() + "\t" + entry.getRunLevel() + "\t" +
+              (current < 0 ? "" : String.valueOf(current)));
+        }
+      }
+    }
+    for (Bundle bundle : uninstalls) {
+      out.println(OP_UNINSTALL + "\t" + bundle.getLocation() + "\t\t");
+    }
+    if (hasAction(AutoProcessor.AUTO_DEPLOY_START_VALUE)) {
+      for (Entry entry : entries) {
+        if (entry.isDeployed() && !entry.isFragment()) {
+          out.println(OP_START + "\t" + entry.getLocation() + "\t" + entry.getRunLevel() + "\t");
+        }
+      }
+    }
+    out.flush();
+  }
+
+  private static Attributes readManifest(File file) {
+    try (JarFile jar = new JarFile(file, false)) {
+      final Manifest manifest = jar.getManifest();
+      if (manifest != null) {
+        return manifest.getMainAttributes();
+      }
+    } catch (IOException e) {
+      // the framework will fail to install this file anyway
+    }
+    return new Attributes();
+  }
+}
@@ -0,0 +1,193 @@
+package com.tmorgner.osgi.runner;
+
+import org.osgi.framework.Constants;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * The auto-deploy directories, listed in {@link AutoProcessor#AUTO_DEPLOY_DIR_PROPERTY} separated by
+ * commas. Each directory is scanned by its own {@link AutoDeployBundles}, so its <tt>rcNN</tt>
+ * directories and ignore files apply to its own bundles only.
+ * <p>
+ * Later directories overlay earlier ones: a bundle replaces all bundles of earlier directories
+ * with the same symbolic name or the same file name, regardless of their run level. With more
+ * than one directory, the directories are scanned concurrently and the merged result is reported
+ * once all scans are complete; a single directory is reported while it is scanned.
+ */
+class DeployRoots {
+  /**
+   * A bundle found in one of the directories.
+   */
+  private static class Found {
+    private final int runLevel;
+    private final File file;
+    private final String symbolicName;
+
+    Found(int runLevel, File file, String symbolicName) {
+      this.runLevel = runLevel;
+      this.file = file;
+      this.symbolicName = symbolicName;
+    }
+  }
+
+  private final Consumer<String> logger;
+  private final ScanFilter filter;
+  private final List<File> roots;
+
+  DeployRoots(Consumer<String> logger, ScanFilter filter, List<File> roots) {
+    this.logger = logger;
+    this.filter = filter;
+    this.roots = Collections.unmodifiableList(new ArrayList<>(roots));
+  }
+
+  static DeployRoots fromConfig(Consumer<String> logger, Map<String, String> configMap) {
+    final List<File> roots = new ArrayList<>();
+    for (String dir : configMap.getOrDefault(AutoProcessor.AUTO_DEPLOY_DIR_PROPERTY, AutoProcessor.AUTO_DEPLOY_DIR_VALUE).split(",")) {
+      if (!dir.trim().isEmpty()) {
+        roots.add(new File(dir.trim()));
+      }
+    }
+    return new DeployRoots(logger, ScanFilter.fromConfig(configMap), roots);
+  }
+
+  List<File> getRoots() {
+    return roots;
+  }
+
+  /**
+   * @return the path of the file relative to the directory it was found in.
+   */
+  Path relativize(File file) {
+    final Path path = file.toPath();
+    for (int i = roots.size() - 1; i >= 0; i -= 1) {
+      final Path root = roots.get(i).toPath();
+      if (path.startsWith(root)) {
+        return root.relativize(path);
+      }
+    }
+    return path.getFileName();
+  }
+
+  /**
+   * Scans all directories and reports each bundle that is part of the deployment, with its run level.
+   *
+   * @param runLevel the run level of bundles outside of <tt>rcNN</tt> directories.
+   * @param found    receives the run level and file of each bundle.
+   */
+  void scan(int runLevel, BiConsumer<Integer, File> found) {
+    if (roots.size() == 1) {
+      new AutoDeployBundles(logger, filter).scan(runLevel, roots.get(0), found);
+      return;
+    }
+
+    final AtomicInteger threadCount = new AtomicInteger();
+    final ExecutorService executor = Executors.newFixedThreadPool(roots.size(), r -> {
+      final Thread thread = new Thread(r, "Auto-Deploy Scan " + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    final List<List<Found>> results;
+    try {
+      final List<Future<List<Found>>> futures = new ArrayList<>();
+      for (File root : roots) {
+        futures.add(executor.submit(() -> scanRoot(runLevel, root)));
+      }
+      results = new ArrayList<>();
+      for (Future<List<Found>> future : futures) {
+        results.add(future.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while scanning the auto-deploy directories", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException("Unable to scan the auto-deploy directories", e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+
+    for (Found bundle : merge(results)) {
+      found.accept(bundle.runLevel, bundle.file);
+    }
+  }
+
+  private List<Found> scanRoot(int runLevel, File root) {
+    final List<Found> result = new ArrayList<>();
+    new AutoDeployBundles(logger, filter).scan(runLevel, root,
+        (level, file) -> result.add(new Found(level, file, readSymbolicName(file))));
+    return result;
+  }
+
+  /**
+   * Drops the bundles that are overridden by a later directory. The directories are merged from
+   * the last to the first, and a directory's bundles only become visible to the directories before
+   * it, so bundles of the same directory never override each other. The remaining bundles keep the
+   * order of their directories and the order they were found in.
+   */
+  private List<Found> merge(List<List<Found>> results) {
+    final Map<String, Found> bySymbolicName = new HashMap<>();
+    final Map<String, Found> byFileName = new HashMap<>();
+    final List<List<Found>> kept = new ArrayList<>();
+    for (int i = results.size() - 1; i >= 0; i -= 1) {
+      final List<Found> keep = new ArrayList<>();
+      for (Found bundle : results.get(i)) {
+        Found winner = bundle.symbolicName != null ? bySymbolicName.get(bundle.symbolicName) : null;
+        if (winner == null) {
+          winner = byFileName.get(bundle.file.getName());
+        }
+        if (winner != null) {
+          logger.accept("Overlay: " + bundle.file + " is overridden by " + winner.file);
+          continue;
+        }
+        keep.add(bundle);
+      }
+      for (Found bundle : keep) {
+        if (bundle.symbolicName != null) {
+          bySymbolicName.putIfAbsent(bundle.symbolicName, bundle);
+        }
+        byFileName.putIfAbsent(bundle.file.getName(), bundle);
+      }
+      kept.add(0, keep);
+    }
+
+    final List<Found> merged = new ArrayList<>();
+    kept.forEach(merged::addAll);
+    return merged;
+  }
+
+  private static String readSymbolicName(File file) {
+    try (JarFile jar = new JarFile(file, false)) {
+      final Manifest manifest = jar.getManifest();
+      if (manifest == null) {
+        return null;
+      }
+      final String value = manifest.getMainAttributes().getValue(Constants.BUNDLE_SYMBOLICNAME);
+      if (value == null) {
+        return null;
+      }
+      final int parameters = value.indexOf(';');
+      return (parameters < 0 ? value : value.substring(0, parameters)).trim();
+    } catch (IOException e) {
+      // the framework will fail to install this file anyway
+      return null;
+    }
+  }
+}
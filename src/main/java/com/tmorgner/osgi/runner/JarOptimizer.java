@@ -0,0 +1,296 @@
+package com.tmorgner.osgi.runner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Rewrites bundle jars into copies that are cheaper to load classes from. Entries are stored
+ * uncompressed (or deflated with a low level), the manifest comes first, followed by the rest of
+ * <tt>META-INF</tt>, the entries of the preferred load order and all other entries in their original
+ * order. The copies are kept in a cache directory, keyed by the SHA-256 digest of the original file
+ * and the optimizer settings, so that unchanged jars are only rewritten once.
+ * <p>
+ * Signed jars are left untouched, as reordering or recompressing them would break their signature
+ * verification. Jars that cannot be read are returned as-is; the framework reports them on install.
+ * <p>
+ * Computing the digest requires reading the whole file. The digest of a file is therefore
+ * remembered in an index in the cache directory, keyed by path, size and modification time.
+ * <p>
+ * Jars can be optimized concurrently. The cache directory can be deleted at any time.
+ */
+public class JarOptimizer {
+  private static final String INDEX_FILE = "index.properties";
+  private static final String MANIFEST = "META-INF/MANIFEST.MF";
+
+  private final File cacheDir;
+  private final int level;
+  private final Consumer<String> logger;
+  private final Properties index;
+  private volatile boolean indexChanged;
+  private ClassLoadProfile profile;
+
+  /**
+   * @param cacheDir the directory holding the optimized copies.
+   * @param level    0 to store entries uncompressed, or a deflate level from 1 to 9.
+   */
+  public JarOptimizer(File cacheDir, int level, Consumer<String> logger) {
+    this.cacheDir = cacheDir;
+    this.level = Math.max(0, Math.min(9, level));
+    this.logger = logger;
+    this.index = new Properties();
+    final File indexFile = new File(cacheDir, INDEX_FILE);
+    if (indexFile.exists()) {
+      try (InputStream in = new FileInputStream(indexFile)) {
+        index.load(in);
+      } catch (IOException e) {
+        // the digests are computed again.
+      }
+    }
+  }
+
+  /**
+   * @param profile the recorded class loading used to order the entries of the copies.
+   */
+  public void setProfile(ClassLoadProfile profile) {
+    this.profile = profile;
+  }
+
+  /**
+   * @return the entry names of the bundle's recorded classes in load order, or an empty list if there
+   * is no profile for the bundle.
+   */
+  public List<String> getLoadOrder(String symbolicName) {
+    if (profile == null || symbolicName == null) {
+      return Collections.emptyList();
+    }
+    return profile.getEntryNames(symbolicName);
+  }
+
+  /**
+   * Returns the optimized copy of the given jar, creating it if needed.
+   *
+   * @param jar       the original bundle file.
+   * @param loadOrder entry names in the order they are expected to be loaded, may be empty.
+   * @return the optimized copy, or the original file if it is signed or cannot be optimized.
+   */
+  public File optimize(File jar, List<String> loadOrder) {
+    try {
+      final String key = digest(jar) + "-" + level + (loadOrder.isEmpty() ? "" : "-" + hash(loadOrder));
+      final File target = new File(cacheDir, key + ".jar");
+      if (target.exists()) {
+        return target;
+      }
+      final File signed = new File(cacheDir, key + ".signed");
+      if (signed.exists()) {
+        return jar;
+      }
+      Files.createDirectories(cacheDir.toPath());
+      if (!rewrite(jar, target, loadOrder)) {
+        Files.write(signed.toPath(), jar.getPath().getBytes(StandardCharsets.UTF_8));
+        logger.accept("Not optimizing signed jar " + jar);
+        return jar;
+      }
+      logger.accept(String.format("Optimized %s (%d -> %d bytes)", jar, jar.length(), target.length()));
+      return target;
+    } catch (IOException e) {
+      logger.accept(String.format("Unable to optimize %s: %s", jar, e));
+      return jar;
+    }
+  }
+
+  /**
+   * Writes the digest index, if it changed.
+   */
+  public synchronized void saveIndex() {
+    if (!indexChanged) {
+      return;
+    }
+    try {
+      Files.createDirectories(cacheDir.toPath());
+      try (OutputStream out = new FileOutputStream(new File(cacheDir, INDEX_FILE))) {
+        index.store(out, "SHA-256 digests of bundle files by path, size and modification time");
+      }
+      indexChanged = false;
+    } catch (IOException e) {
+      logger.accept("Unable to save the jar optimizer index: " + e);
+    }
+  }
+
+  private String digest(File jar) throws IOException {
+    final String indexKey = jar.getAbsolutePath() + "|" + jar.length() + "|" + jar.lastModified();
+    final String known = index.getProperty(indexKey);
+    if (known != null) {
+      return known;
+    }
+    final MessageDigest md = newDigest();
+    try (InputStream in = new FileInputStream(jar)) {
+      final byte[] buffer = new byte[65536];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        md.update(buffer, 0, read);
+      }
+    }
+    final String digest = toHex(md.digest());
+    index.setProperty(indexKey, digest);
+    indexChanged = true;
+    return digest;
+  }
+
+  private static String hash(List<String> names) {
+    final MessageDigest md = newDigest();
+    for (String name : names) {
+      md.update(name.getBytes(StandardCharsets.UTF_8));
+      md.update((byte) '\n');
+    }
+    return toHex(md.digest()).substring(0, 16);
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is required to be supported by every JVM", e);
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    final StringBuilder b = new StringBuilder(bytes.length * 2);
+    for (byte value : bytes) {
+      b.append(String.format("%02x", value));
+    }
+    return b.toString();
+  }
+
+  static boolean isSignatureEntry(String name) {
+    final String upper = name.toUpperCase(Locale.ROOT);
+    if (!upper.startsWith("META-INF/") || upper.indexOf('/', 9) >= 0) {
+      return false;
+    }
+    return upper.endsWith(".SF") || upper.endsWith(".RSA") || upper.endsWith(".DSA")
+        || upper.endsWith(".EC") || upper.startsWith("META-INF/SIG-");
+  }
+
+  /**
+   * @return false if the jar is signed and has not been rewritten.
+   */
+  private boolean rewrite(File jar, File target, List<String> loadOrder) throws IOException {
+    try (ZipFile zip = new ZipFile(jar)) {
+      final List<ZipEntry> entries = new ArrayList<>();
+      for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+        final ZipEntry entry = e.nextElement();
+        if (isSignatureEntry(entry.getName())) {
+          return false;
+        }
+        entries.add(entry);
+      }
+      sort(entries, loadOrder);
+
+      final File temp = File.createTempFile("optimize", ".tmp", cacheDir);
+      try {
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(temp))) {
+          out.setLevel(level);
+          for (ZipEntry entry : entries) {
+            copy(zip, entry, out);
+          }
+        }
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(temp.toPath());
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Orders the entries as the class loader wants them: the manifest first, as the framework reads it
+   * before anything else, then the rest of META-INF, then the preferred load order, then the rest.
+   */
+  private static void sort(List<ZipEntry> entries, List<String> loadOrder) {
+    final Map<String, Integer> preferred = new HashMap<>();
+    for (int i = 0; i < loadOrder.size(); i += 1) {
+      preferred.putIfAbsent(loadOrder.get(i), i);
+    }
+    final Map<ZipEntry, Integer> original = new HashMap<>();
+    for (int i = 0; i < entries.size(); i += 1) {
+      original.put(entries.get(i), i);
+    }
+    Collections.sort(entries, (a, b) -> {
+      final int groupA = group(a.getName(), preferred);
+      final int groupB = group(b.getName(), preferred);
+      if (groupA != groupB) {
+        return Integer.compare(groupA, groupB);
+      }
+      if (groupA == 3) {
+        return Integer.compare(preferred.get(a.getName()), preferred.get(b.getName()));
+      }
+      return Integer.compare(original.get(a), original.get(b));
+    });
+  }
+
+  private static int group(String name, Map<String, Integer> preferred) {
+    if (name.equals("META-INF/")) {
+      return 0;
+    }
+    if (name.equalsIgnoreCase(MANIFEST)) {
+      return 1;
+    }
+    if (name.startsWith("META-INF/")) {
+      return 2;
+    }
+    return preferred.containsKey(name) ? 3 : 4;
+  }
+
+  private void copy(ZipFile zip, ZipEntry entry, ZipOutputStream out) throws IOException {
+    final byte[] data;
+    try (InputStream in = zip.getInputStream(entry)) {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream(entry.getSize() > 0 ? (int) entry.getSize() : 1024);
+      final byte[] buffer = new byte[65536];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        bytes.write(buffer, 0, read);
+      }
+      data = bytes.toByteArray();
+    }
+    final ZipEntry copy = new ZipEntry(entry.getName());
+    copy.setTime(entry.getTime());
+    if (entry.getComment() != null) {
+      copy.setComment(entry.getComment());
+    }
+    if (level == 0) {
+      final CRC32 crc = new CRC32();
+      crc.update(data, 0, data.length);
+      copy.setMethod(ZipEntry.STORED);
+      copy.setSize(data.length);
+      copy.setCompressedSize(data.length);
+      copy.setCrc(crc.getValue());
+    } else {
+      copy.setMethod(ZipEntry.DEFLATED);
+    }
+    out.putNextEntry(copy);
+    out.write(data);
+    out.closeEntry();
+  }
+}
@@ -1,5 +1,7 @@
 package com.tmorgner.osgi.runner;
 
+import org.osgi.framework.Constants;
+
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -35,6 +37,10 @@ public class LauncherUtil {
    * The default name used for the configuration properties file.
    **/
   public static final String CONFIG_PROPERTIES_FILE_VALUE = "config.properties";
+  /**
+   * The framework storage directory used by Felix if <tt>org.osgi.framework.storage</tt> is not set.
+   **/
+  public static final String DEFAULT_STORAGE_DIRECTORY = "felix-cache";
   private static final String DELIM_START = "${";
   private static final String DELIM_STOP = "}";
 
@@ -195,6 +201,27 @@ public class LauncherUtil {
     return map;
   }
 
+  /**
+   * @param configProps Set of configuration properties.
+   * @return the framework storage directory.
+   */
+  public static File getStorageDirectory(Map<String, String> configProps) {
+    return new File(configProps.getOrDefault(Constants.FRAMEWORK_STORAGE, DEFAULT_STORAGE_DIRECTORY)).getAbsoluteFile();
+  }
+
+  /**
+   * Launcher data is kept next to the framework storage, never inside of it, as the framework
+   * owns and may clean its storage directory.
+   *
+   * @param configProps Set of configuration properties.
+   * @param suffix      the suffix appended to the storage directory name.
+   * @return the file for the launcher data.
+   */
+  public static File getStorageSiblingFile(Map<String, String> configProps, String suffix) {
+    final File storage = getStorageDirectory(configProps);
+    return new File(storage.getParentFile(), storage.getName() + suffix);
+  }
+
   public static void copySystemProperties(Map<String, String> configProps) {
     for (Enumeration e = System.getProperties().propertyNames();
          e.hasMoreElements(); ) {
@@ -0,0 +1,77 @@
+package com.tmorgner.osgi.runner;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Selects the auto-deployed bundles that are started with {@link org.osgi.framework.Bundle#START_ACTIVATION_POLICY}.
+ * A bundle is selected if lazy activation is enabled globally, if its run level is listed, or if its
+ * path relative to the auto-deploy directory matches one of the include patterns (see {@link ScanFilter}
+ * for the pattern syntax).
+ * <p>
+ * Starting a bundle with its activation policy only defers the activator of bundles that declare
+ * <tt>Bundle-ActivationPolicy: lazy</tt>; all other bundles are started as usual.
+ */
+class LazyActivation {
+  private static final LazyActivation NONE = new LazyActivation(false, Collections.emptySet(), Collections.emptyList());
+
+  private final boolean all;
+  private final Set<Integer> runLevels;
+  private final List<ScanFilter.Rule> includes;
+
+  private LazyActivation(boolean all, Set<Integer> runLevels, List<ScanFilter.Rule> includes) {
+    this.all = all;
+    this.runLevels = runLevels;
+    this.includes = includes;
+  }
+
+  static LazyActivation none() {
+    return NONE;
+  }
+
+  /**
+   * Compiles the lazy activation settings of the configuration.
+   *
+   * @param configMap Map of configuration properties.
+   * @return the selection, never null.
+   */
+  static LazyActivation fromConfig(Map<String, String> configMap) {
+    final boolean all = "true".equalsIgnoreCase(configMap.getOrDefault(AutoProcessor.AUTO_DEPLOY_LAZY_PROPERTY, "false").trim());
+    final Set<Integer> runLevels = new HashSet<>();
+    final String levels = configMap.get(AutoProcessor.AUTO_DEPLOY_LAZY_STARTLEVELS_PROPERTY);
+    if (levels != null) {
+      for (String level : levels.split(",")) {
+        try {
+          if (!level.trim().isEmpty()) {
+            runLevels.add(Integer.parseInt(level.trim()));
+          }
+        } catch (NumberFormatException ex) {
+          // Ignore the invalid level.
+        }
+      }
+    }
+    final List<ScanFilter.Rule> includes =
+        ScanFilter.compile(Paths.get(""), configMap.get(AutoProcessor.AUTO_DEPLOY_LAZY_INCLUDE_PROPERTY));
+    return new LazyActivation(all, runLevels, includes);
+  }
+
+  /**
+   * @return true if any bundle may be selected.
+   */
+  boolean isEnabled() {
+    return all || !runLevels.isEmpty() || !includes.isEmpty();
+  }
+
+  /**
+   * @param runLevel     the run level of the bundle.
+   * @param relativePath the path of the bundle file relative to the auto-deploy directory.
+   */
+  boolean isSelected(int runLevel, Path relativePath) {
+    return all || runLevels.contains(runLevel) || ScanFilter.matchesAny(includes, relativePath, false);
+  }
+}
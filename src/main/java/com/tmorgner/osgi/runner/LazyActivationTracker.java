@@ -0,0 +1,107 @@
+package com.tmorgner.osgi.runner;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.SynchronousBundleListener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Tracks bundles whose activation has been deferred by their lazy activation policy. The framework
+ * fires LAZY_ACTIVATION when such a bundle enters the STARTING state, and STARTED once the first
+ * class load from the bundle triggered its activator. When the framework has started, the deferred
+ * bundles are listed; activations that happen afterwards are logged with their time since boot. The
+ * launcher can list them itself instead (see {@link #setReportOnStarted(boolean)}).
+ */
+public class LazyActivationTracker implements SynchronousBundleListener, FrameworkListener {
+  private static class Deferral {
+    private final Bundle bundle;
+    private final long deferredNanos;
+    private volatile long activatedNanos;
+
+    Deferral(Bundle bundle, long deferredNanos) {
+      this.bundle = bundle;
+      this.deferredNanos = deferredNanos;
+    }
+  }
+
+  private final Consumer<String> logger;
+  private final long bootNanos;
+  private final Map<Long, Deferral> deferrals;
+  private volatile boolean reported;
+  private volatile boolean reportOnStarted;
+
+  public LazyActivationTracker(Consumer<String> logger) {
+    this.logger = logger;
+    this.bootNanos = System.nanoTime();
+    this.deferrals = new ConcurrentHashMap<>();
+    this.reportOnStarted = true;
+  }
+
+  /**
+   * @param reportOnStarted false if the deferred bundles are listed by calling {@link #report()} instead
+   *                        of on the STARTED event, for instance because the start level ramp
+   *                        continues after the framework has started.
+   */
+  public void setReportOnStarted(boolean reportOnStarted) {
+    this.reportOnStarted = reportOnStarted;
+  }
+
+  @Override
+  public void bundleChanged(BundleEvent event) {
+    final Bundle bundle = event.getBundle();
+    if (event.getType() == BundleEvent.LAZY_ACTIVATION) {
+      deferrals.put(bundle.getBundleId(), new Deferral(bundle, System.nanoTime()));
+    } else if (event.getType() == BundleEvent.STARTED) {
+      final Deferral deferral = deferrals.get(bundle.getBundleId());
+      if (deferral != null && deferral.activatedNanos == 0) {
+        deferral.activatedNanos = System.nanoTime();
+        if (reported) {
+          logger.accept(String.format("Lazily activated %s at %d ms after boot, %d ms after it was deferred.",
+              getName(bundle), TimeUnit.NANOSECONDS.toMillis(deferral.activatedNanos - bootNanos),
+              TimeUnit.NANOSECONDS.toMillis(deferral.activatedNanos - deferral.deferredNanos)));
+        }
+      }
+    }
+  }
+
+  @Override
+  public void frameworkEvent(FrameworkEvent event) {
+    if (event.getType() == FrameworkEvent.STARTED && reportOnStarted) {
+      report();
+    }
+  }
+
+  /**
+   * Logs all deferred bundles, along with the time of their activation if they have been activated.
+   * Activations after the report are logged as they happen.
+   */
+  public void report() {
+    reported = true;
+    final List<Deferral> list = new ArrayList<>(deferrals.values());
+    list.sort((a, b) -> Long.compare(a.bundle.getBundleId(), b.bundle.getBundleId()));
+    int pending = 0;
+    for (Deferral deferral : list) {
+      if (deferral.activatedNanos == 0) {
+        pending += 1;
+      }
+    }
+    logger.accept(String.format("Lazy activation: %d bundles deferred, %d not yet activated.", list.size(), pending));
+    for (Deferral deferral : list) {
+      final long activated = deferral.activatedNanos;
+      logger.accept(String.format("  %-10s %s", activated == 0 ? "deferred" :
+          "+" + TimeUnit.NANOSECONDS.toMillis(activated - bootNanos) + "ms", getName(deferral.bundle)));
+    }
+  }
+
+  private static String getName(Bundle bundle) {
+    return bundle.getSymbolicName() != null ? bundle.getSymbolicName() : bundle.getLocation();
+  }
+}
@@ -18,18 +18,31 @@
  */
 package com.tmorgner.osgi.runner;
 
+import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleListener;
 import org.osgi.framework.Constants;
 import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
 import org.osgi.framework.launch.Framework;
 import org.osgi.framework.launch.FrameworkFactory;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 /**
@@ -47,12 +60,147 @@ public class Main {
    **/
   public static final String BUNDLE_DIR_SWITCH = "-b";
 
+  /**
+   * Switch for printing the deployment plan instead of starting the framework.
+   **/
+  public static final String PLAN_SWITCH = "-p";
+
+  /**
+   * Switch for compacting the framework storage instead of starting the framework. Combined
+   * with {@link #PLAN_SWITCH}, the wasted space is only reported.
+   **/
+  public static final String COMPACT_SWITCH = "-c";
+
   /**
    * The property name used to specify whether the launcher should
    * install a shutdown hook.
    **/
   public static final String SHUTDOWN_HOOK_PROP = "felix.shutdown.hook";
 
+  /**
+   * The property name used to specify how many lines per second each bundle
+   * may write to <tt>System.out</tt>. Zero (the default) disables the limit.
+   **/
+  public static final String CONSOLE_RATE_PROP = "com.tmorgner.osgi.runner.ConsoleLinesPerSecond";
+
+  /**
+   * The property name used to specify how many lines a bundle may write to
+   * <tt>System.out</tt> at once before the rate limit applies. Defaults to the rate.
+   **/
+  public static final String CONSOLE_BURST_PROP = "com.tmorgner.osgi.runner.ConsoleBurstLines";
+
+  /**
+   * The property name used to enable the per-bundle activation cost table.
+   **/
+  public static final String ACTIVATION_COSTS_PROP = "com.tmorgner.osgi.runner.ActivationCosts";
+
+  /**
+   * The property name used to specify after how many milliseconds a bundle activation
+   * is considered slow and its thread's stack is sampled. Zero (the default) disables
+   * the watchdog.
+   **/
+  public static final String SLOW_START_THRESHOLD_PROP = "com.tmorgner.osgi.runner.SlowStartThreshold";
+
+  /**
+   * The property name used to specify the milliseconds between two stack samples of
+   * a slow activation. Defaults to 100.
+   **/
+  public static final String SLOW_START_INTERVAL_PROP = "com.tmorgner.osgi.runner.SlowStartSampleInterval";
+
+  /**
+   * The property name used to specify after how many milliseconds the thread of a slow
+   * activation is interrupted. Zero (the default) waits indefinitely.
+   **/
+  public static final String SLOW_START_LIMIT_PROP = "com.tmorgner.osgi.runner.SlowStartHardLimit";
+
+  /**
+   * The property name used to specify the highest run level deployed before the framework
+   * is started. Bundles of higher run levels are deployed and started in the background
+   * once the framework has started. Zero (the default) deploys all bundles up front.
+   **/
+  public static final String BACKGROUND_RUN_LEVEL_PROP = "com.tmorgner.osgi.runner.BackgroundRunLevel";
+
+  /**
+   * The property name used to enable the local control channel. The value is the loopback
+   * port to listen on, or 0 for any free port. The channel is disabled if not set.
+   **/
+  public static final String CONTROL_PORT_PROP = "com.tmorgner.osgi.runner.ControlPort";
+
+  /**
+   * The property name used to record a {@link ClassLoadProfile}. The value is the number of
+   * minutes after the launch during which loaded classes are recorded.
+   **/
+  public static final String CLASS_PROFILE_RECORD_PROP = "com.tmorgner.osgi.runner.ClassProfileRecord";
+
+  /**
+   * The property name used to preload the classes of the recorded profile once the framework
+   * has started.
+   **/
+  public static final String CLASS_WARMUP_PROP = "com.tmorgner.osgi.runner.ClassWarmUp";
+
+  /**
+   * The property name used to specify the number of class warm-up threads. Defaults to the
+   * number of processors.
+   **/
+  public static final String CLASS_WARMUP_THREADS_PROP = "com.tmorgner.osgi.runner.ClassWarmUpThreads";
+
+  /**
+   * The property name used to specify the time budget of the class warm-up in milliseconds.
+   * Defaults to 10000.
+   **/
+  public static final String CLASS_WARMUP_BUDGET_PROP = "com.tmorgner.osgi.runner.ClassWarmUpBudget";
+
+  /**
+   * The property name used to start the framework at start level 1 and raise it through the
+   * run levels of the deployed bundles one at a time, see {@link StartLevelRamp}.
+   **/
+  public static final String START_LEVEL_RAMP_PROP = "com.tmorgner.osgi.runner.StartLevelRamp";
+
+  /**
+   * The property name prefix of the readiness gates of the start level ramp. The suffix is the
+   * run level, the value a semicolon separated list of service filters or class names.
+   **/
+  public static final String START_LEVEL_RAMP_GATE_PREFIX = "com.tmorgner.osgi.runner.StartLevelRampGate.";
+
+  /**
+   * The property name used to specify the longest time in milliseconds the ramp waits for the
+   * gate of a level. Defaults to 30000.
+   **/
+  public static final String START_LEVEL_RAMP_GATE_TIMEOUT_PROP = "com.tmorgner.osgi.runner.StartLevelRampGateTimeout";
+
+  /**
+   * The suffix of the file next to the framework storage directory that receives the
+   * port and access token of the control channel.
+   **/
+  public static final String CONTROL_FILE_SUFFIX = ".control";
+
+  /**
+   * The suffix of the file next to the framework storage directory that keeps the
+   * start durations used by the history schedule.
+   **/
+  public static final String START_HISTORY_SUFFIX = ".start-history";
+
+  /**
+   * The property name used to enable the executor service shared with all bundles.
+   **/
+  public static final String SHARED_EXECUTOR_PROP = "com.tmorgner.osgi.runner.SharedExecutor";
+
+  /**
+   * The property name used to specify the number of threads of the shared executor
+   * on JVMs without virtual threads. Defaults to the number of processors.
+   **/
+  public static final String SHARED_EXECUTOR_PARALLELISM_PROP = "com.tmorgner.osgi.runner.SharedExecutorParallelism";
+
+  /**
+   * The JMX name under which the shared executor statistics are registered.
+   **/
+  public static final String SHARED_EXECUTOR_MBEAN_NAME = "com.tmorgner.osgi.runner:type=SharedExecutor";
+
+  /**
+   * The JMX name under which the console statistics are registered.
+   **/
+  public static final String CONSOLE_MBEAN_NAME = "com.tmorgner.osgi.runner:type=Console";
+
   private static Framework m_fwk = null;
 
   protected static Framework getFramework() {
@@ -68,7 +216,12 @@ public class Main {
    * <ol>
    * <li><i><b>Examine and verify command-line arguments.</b></i> The launcher
    * accepts a "<tt>-b</tt>" command line switch to set the bundle auto-deploy
-   * directory and a single argument to set the bundle cache directory.
+   * directory and a single argument to set the bundle cache directory. The
+   * "<tt>-p</tt>" switch prints the auto-deploy plan (see {@link DeployPlan})
+   * for the current framework storage and exits without starting any bundle.
+   * The "<tt>-c</tt>" switch compacts the framework storage (see
+   * {@link StorageCompactor}) and exits; together with "<tt>-p</tt>" it only
+   * reports the wasted space.
    * </li>
    * <li><i><b>Read the system properties file.</b></i> This is a file
    * containing properties to be pushed into <tt>System.setProperty()</tt>
@@ -145,6 +298,7 @@ public class Main {
    * <li><tt>felix.auto.deploy.dir</tt> - Specifies the auto-deploy directory
    * from which bundles are automatically deploy at framework startup.
    * The default is the <tt>bundle/</tt> directory of the current directory.
+   * Several comma separated directories overlay each other, see {@link DeployRoots}.
    * </li>
    * <li><tt>felix.auto.deploy.action</tt> - Specifies the auto-deploy actions
    * to be found on bundle JAR files found in the auto-deploy directory.
@@ -183,7 +337,9 @@ public class Main {
    **/
   public static void main(String[] args) throws Exception {
 
-    System.setOut(new WrappingPrintStream(System.out));
+    final WrappingPrintStream console = new WrappingPrintStream(System.out);
+    System.setOut(console);
+    registerMBean(console.getStatistics(), CONSOLE_MBEAN_NAME);
     System.exit(start(args));
   }
 
@@ -195,9 +351,15 @@ public class Main {
     // cache directory.
     String bundleDir = null;
     String cacheDir = null;
+    boolean planOnly = false;
+    boolean compact = false;
     boolean expectBundleDir = false;
     for (String arg : args) {
-      if (arg.equals(BUNDLE_DIR_SWITCH)) {
+      if (arg.equals(PLAN_SWITCH) && !expectBundleDir) {
+        planOnly = true;
+      } else if (arg.equals(COMPACT_SWITCH) && !expectBundleDir) {
+        compact = true;
+      } else if (arg.equals(BUNDLE_DIR_SWITCH)) {
         expectBundleDir = true;
       } else if (expectBundleDir) {
         bundleDir = arg;
@@ -207,8 +369,8 @@ public class Main {
       }
     }
 
-    if ((args.length > 3) || (expectBundleDir && bundleDir == null)) {
-      System.out.println("Usage: [-b <bundle-deploy-dir>] [<bundle-cache-dir>]");
+    if ((args.length > 3 + (planOnly ? 1 : 0) + (compact ? 1 : 0)) || (expectBundleDir && bundleDir == null)) {
+      System.out.println("Usage: [-p] [-c] [-b <bundle-deploy-dir>] [<bundle-cache-dir>]");
       return (0);
     }
 
@@ -228,6 +390,10 @@ public class Main {
     // Copy framework properties from the system properties.
     LauncherUtil.copySystemProperties(configProps);
 
+    if (System.out instanceof WrappingPrintStream) {
+      configureConsole((WrappingPrintStream) System.out, configProps);
+    }
+
     // If there is a passed in bundle auto-deploy directory, then
     // that overwrites anything in the config file.
     if (bundleDir != null) {
@@ -239,6 +405,20 @@ public class Main {
     if (cacheDir != null) {
       configProps.put(Constants.FRAMEWORK_STORAGE, cacheDir);
     }
+
+    if (compact) {
+      // The storage is compacted offline, the framework is never created.
+      final Set<String> deployed = new HashSet<>();
+      DeployRoots.fromConfig(System.err::println, configProps)
+          .scan(1, (runLevel, file) -> deployed.add(file.toURI().toString()));
+      try {
+        new StorageCompactor(System.out::println, LauncherUtil.getStorageDirectory(configProps)).compact(deployed, planOnly);
+        return (0);
+      } catch (IOException ex) {
+        System.err.println("Unable to compact the framework storage: " + ex.getMessage());
+        return (-1);
+      }
+    }
     // If enabled, register a shutdown hook to make sure the framework is
     // cleanly shutdown when the VM exits.
     String enableHook = configProps.get(SHUTDOWN_HOOK_PROP);
@@ -257,6 +437,34 @@ public class Main {
       });
     }
 
+    // In a two-phase boot the framework starts at the background threshold and
+    // is raised to its beginning start level once the remaining bundles are installed.
+    int backgroundLevel = 0;
+    int beginningLevel = 1;
+    try {
+      backgroundLevel = Integer.parseInt(configProps.getOrDefault(BACKGROUND_RUN_LEVEL_PROP, "0").trim());
+      beginningLevel = Integer.parseInt(configProps.getOrDefault(Constants.FRAMEWORK_BEGINNING_STARTLEVEL, "1").trim());
+    } catch (NumberFormatException ex) {
+      System.err.println("Invalid background run level: " + ex.getMessage());
+      backgroundLevel = 0;
+    }
+    if (backgroundLevel > 0 && backgroundLevel < beginningLevel && !planOnly) {
+      configProps.put(Constants.FRAMEWORK_BEGINNING_STARTLEVEL, String.valueOf(backgroundLevel));
+    } else {
+      backgroundLevel = 0;
+    }
+
+    final Timings timings = new Timings();
+    // The ramp raises the start level from 1 to the level the framework would start at.
+    final StartLevelRamp ramp = planOnly ? null : StartLevelRamp.fromConfig(System.out::println, configProps, timings);
+    final int rampTarget = backgroundLevel > 0 ? backgroundLevel : beginningLevel;
+    if (ramp != null) {
+      configProps.put(Constants.FRAMEWORK_BEGINNING_STARTLEVEL, "1");
+    }
+    SharedExecutor sharedExecutor = null;
+    StartWatchdog watchdog = null;
+    ControlChannel controlChannel = null;
+    ClassLoadRecorder recorder = null;
     try {
       // Create an instance of the framework.
       FrameworkFactory factory = ServiceLoader.load(FrameworkFactory.class).iterator().next();
@@ -265,38 +473,414 @@ public class Main {
       // Initialize the framework, but don't start it yet.
       m_fwk.init();
 
+      if (planOnly) {
+        // The framework has restored the installed bundles from its storage, but has
+        // not resolved or started any of them. Log output goes to stderr so that stdout
+        // only contains the plan.
+        new AutoProcessor(System.err::println).plan(configProps, m_fwk.getBundleContext()).write(System.out);
+        m_fwk.stop();
+        m_fwk.waitForStop(0);
+        m_fwk = null;
+        return (0);
+      }
+
+      // Measure every activation, whether started by the auto-deploy pass
+      // or by the framework's start-level ramp.
+      final ActivationCostTracker costTracker =
+          "true".equalsIgnoreCase(configProps.getOrDefault(ACTIVATION_COSTS_PROP, "false")) ?
+              new ActivationCostTracker(System.out::println) : null;
+      final LazyActivationTracker lazyTracker = LazyActivation.fromConfig(configProps).isEnabled() ?
+          new LazyActivationTracker(System.out::println) : null;
+      // With the ramp, STARTED is fired at start level 1; the reports follow the ramp instead.
+      if (costTracker != null) {
+        costTracker.setReportOnStarted(ramp == null);
+      }
+      if (lazyTracker != null) {
+        lazyTracker.setReportOnStarted(ramp == null);
+      }
+      watchdog = createWatchdog(configProps);
+      recorder = createRecorder(configProps);
+      if ("true".equalsIgnoreCase(configProps.getOrDefault(SHARED_EXECUTOR_PROP, "false"))) {
+        sharedExecutor = createSharedExecutor(configProps);
+      }
+      registerHooks(m_fwk.getBundleContext(), costTracker, lazyTracker, watchdog, recorder, sharedExecutor);
+      final ClassWarmUp warmUp = createWarmUp(configProps);
+
       // Use the system bundle context to process the auto-deploy
       // and auto-install/auto-start properties.
-      if(!new AutoProcessor(System.out::println).process(configProps, m_fwk.getBundleContext())) {
-        if ("true".equals(configProps.getOrDefault("com.tmorgner.osgi.runner.FailOnErrors", "true"))) {
+      final boolean failOnErrors = "true".equals(configProps.getOrDefault("com.tmorgner.osgi.runner.FailOnErrors", "true"));
+      final AutoProcessor processor = new AutoProcessor(System.out::println);
+      final long deployStart = System.nanoTime();
+      final boolean deployed;
+      DeployPlan plan;
+      DeployPlan backgroundPlan = null;
+      if (backgroundLevel > 0) {
+        plan = processor.plan(configProps, m_fwk.getBundleContext());
+        backgroundPlan = plan.above(backgroundLevel);
+        plan = plan.upTo(backgroundLevel);
+        deployed = plan.getActions().isEmpty() || processor.execute(plan, m_fwk.getBundleContext());
+      } else {
+        // Installs bundles while the deploy directory is still being scanned.
+        deployed = processor.process(configProps, m_fwk.getBundleContext());
+        plan = processor.getProcessedPlan();
+      }
+      if (!deployed) {
+        if (failOnErrors) {
           m_fwk = null;
           return -1;
         }
       }
+      timings.record("deploy", deployStart);
+      if (ramp != null) {
+        ramp.addLevels(plan);
+        ramp.addLevels(backgroundPlan);
+      }
 
       // Call the validation hooks.
       for(Consumer<BundleContext> activator: validators) {
         activator.accept(m_fwk.getBundleContext());
       }
 
+      // Bundles left to the scheduler, by bundle id, so that they can be found
+      // again after the framework has been restarted.
+      final Map<Integer, List<Long>> scheduledStarts = new TreeMap<>();
+      for (Map.Entry<Integer, List<Bundle>> entry : processor.getScheduledStarts().entrySet()) {
+        for (Bundle bundle : entry.getValue()) {
+          scheduledStarts.computeIfAbsent(entry.getKey(), k -> new ArrayList<>()).add(bundle.getBundleId());
+        }
+      }
+      final StartHistory history = (!plan.isScheduled() || plan.getActions().isEmpty()) ? null :
+          new StartHistory(LauncherUtil.getStorageSiblingFile(configProps, START_HISTORY_SUFFIX));
+      if (history != null) {
+        history.load();
+      }
+      final BackgroundDeployment background = backgroundLevel == 0 ? null :
+          new BackgroundDeployment(System.out::println, backgroundPlan, backgroundLevel, beginningLevel,
+              history, getScheduleThreads(configProps), failOnErrors);
+      if (background != null) {
+        background.setRamp(ramp);
+        // the profile mostly covers the bundles above the threshold, which are
+        // only resolved once the background phase has started them.
+        if (warmUp != null) {
+          background.setOnComplete(warmUp::start);
+        }
+      }
+      // What has been deployed, so that a restart only deploys what changed since.
+      DeployFingerprint fingerprint = DeployFingerprint.of(plan, backgroundPlan);
+
       FrameworkEvent event;
+      long restartStart = 0;
       do {
+        final StartedListener started = new StartedListener();
+        m_fwk.getBundleContext().addFrameworkListener(started);
+        if (history != null) {
+          m_fwk.getBundleContext().addBundleListener(history);
+        }
         // Start the framework.
+        final long frameworkStart = System.nanoTime();
         m_fwk.start();
+        if (started.await()) {
+          if (ramp != null) {
+            ramp.raise(m_fwk.getBundleContext(), rampTarget);
+            if (costTracker != null) {
+              costTracker.report();
+            }
+            if (lazyTracker != null) {
+              lazyTracker.report();
+            }
+          }
+          timings.record("framework-start", frameworkStart);
+          if (restartStart != 0) {
+            timings.record("restart", restartStart);
+            System.out.println(String.format("Framework restarted in %d ms.",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - restartStart)));
+          }
+          if (history != null && !scheduledStarts.isEmpty()) {
+            startScheduled(configProps, history, scheduledStarts);
+          }
+          if (background != null) {
+            background.start(m_fwk.getBundleContext());
+          }
+          if (warmUp != null && background == null) {
+            warmUp.start(m_fwk.getBundleContext());
+          }
+        }
+        if (controlChannel == null && configProps.get(CONTROL_PORT_PROP) != null) {
+          controlChannel = startControlChannel(configProps, timings);
+        }
         // Wait for framework to stop to exit the VM.
         event = m_fwk.waitForStop(0);
+        if (background != null) {
+          background.join();
+        }
+        if (event.getType() == FrameworkEvent.STOPPED_UPDATE) {
+          // A warm restart: the configuration is kept, and only the bundles that changed
+          // since the last pass are deployed before the framework is started again.
+          restartStart = System.nanoTime();
+          // services and listeners registered by the system bundle end with the framework.
+          m_fwk.init();
+          registerHooks(m_fwk.getBundleContext(), costTracker, lazyTracker, watchdog, recorder, sharedExecutor);
+
+          final long redeployStart = System.nanoTime();
+          final AutoProcessor restartProcessor = new AutoProcessor(System.out::println);
+          final DeployPlan fullPlan = restartProcessor.plan(configProps, m_fwk.getBundleContext());
+          if (!fullPlan.getActions().isEmpty()) {
+            final Set<String> changed = fingerprint.getChangedLocations(fullPlan);
+            System.out.println(String.format("Restart: %d bundles changed since the last deploy pass.", changed.size()));
+            if (!changed.isEmpty()) {
+              final DeployPlan changes = fullPlan.only(changed);
+              // the scheduler only knows the bundles of the first pass.
+              changes.setScheduled(false);
+              if (!restartProcessor.execute(changes, m_fwk.getBundleContext()) && failOnErrors) {
+                m_fwk = null;
+                return -1;
+              }
+            }
+            fingerprint = DeployFingerprint.of(fullPlan);
+            if (ramp != null) {
+              ramp.addLevels(fullPlan);
+            }
+          }
+          timings.record("restart-deploy", redeployStart);
+
+          for (Consumer<BundleContext> activator : validators) {
+            activator.accept(m_fwk.getBundleContext());
+          }
+        }
       }
       // If the framework was updated, then restart it.
       while (event.getType() == FrameworkEvent.STOPPED_UPDATE);
       // Otherwise, exit.
       // disable the shutdown hook when we shut down in a controlled fashion.
       m_fwk = null;
+      if (System.out instanceof WrappingPrintStream) {
+        ((WrappingPrintStream) System.out).flushSuppressed();
+      }
+      if (background != null && !background.isSuccess() && failOnErrors) {
+        return -1;
+      }
       return (0);
     } catch (Exception ex) {
       System.err.println("Could not create framework: " + ex);
       ex.printStackTrace();
       return (-1);
+    } finally {
+      if (controlChannel != null) {
+        controlChannel.close();
+      }
+      if (recorder != null) {
+        recorder.stop();
+      }
+      if (watchdog != null) {
+        watchdog.shutdown();
+      }
+      if (sharedExecutor != null) {
+        sharedExecutor.shutdown();
+        unregisterMBean(SHARED_EXECUTOR_MBEAN_NAME);
+      }
+    }
+  }
+
+  /**
+   * Registers the launcher's listeners and services with the system bundle, before any bundle is
+   * started. Everything the system bundle registered ends with the framework, so this is repeated
+   * after each warm restart. Null arguments are skipped.
+   */
+  private static void registerHooks(BundleContext context,
+                                    ActivationCostTracker costTracker,
+                                    LazyActivationTracker lazyTracker,
+                                    StartWatchdog watchdog,
+                                    ClassLoadRecorder recorder,
+                                    SharedExecutor sharedExecutor) {
+    if (costTracker != null) {
+      context.addBundleListener(costTracker);
+      context.addFrameworkListener(costTracker);
+    }
+    if (lazyTracker != null) {
+      context.addBundleListener(lazyTracker);
+      context.addFrameworkListener(lazyTracker);
+    }
+    if (watchdog != null) {
+      context.addBundleListener(watchdog);
+    }
+    // Record the class loading before any bundle is started.
+    if (recorder != null) {
+      recorder.register(context);
+    }
+    // Offer the shared executor before any bundle is started.
+    if (sharedExecutor != null) {
+      sharedExecutor.register(context);
+    }
+  }
+
+  /**
+   * Starts the bundles left to the scheduler by the auto-deploy pass and records their start
+   * durations for the next boot.
+   */
+  private static void startScheduled(Map<String, String> configProps,
+                                     StartHistory history,
+                                     Map<Integer, List<Long>> scheduledStarts) throws Exception {
+    final BundleContext context = m_fwk.getBundleContext();
+    final Map<Integer, List<Bundle>> levels = new TreeMap<>();
+    for (Map.Entry<Integer, List<Long>> entry : scheduledStarts.entrySet()) {
+      final List<Bundle> bundles = new ArrayList<>();
+      for (long id : entry.getValue()) {
+        final Bundle bundle = context.getBundle(id);
+        if (bundle != null) {
+          bundles.add(bundle);
+        }
+      }
+      levels.put(entry.getKey(), bundles);
+    }
+
+    new StartScheduler(System.out::println, history, getScheduleThreads(configProps)).start(levels);
+    try {
+      history.save(context);
+    } catch (IOException ex) {
+      System.err.println("Unable to save the start history: " + ex);
+    }
+  }
+
+  private static int getScheduleThreads(Map<String, String> configProps) {
+    int threads = Runtime.getRuntime().availableProcessors();
+    try {
+      threads = Integer.parseInt(configProps.getOrDefault(AutoProcessor.AUTO_DEPLOY_SCHEDULE_THREADS_PROPERTY, String.valueOf(threads)));
+    } catch (NumberFormatException ex) {
+      // Ignore and keep default thread count.
     }
+    return threads;
   }
 
+  /**
+   * Waits for the framework to reach its beginning start level.
+   */
+  private static class StartedListener implements FrameworkListener {
+    private final CountDownLatch latch = new CountDownLatch(1);
+
+    @Override
+    public void frameworkEvent(FrameworkEvent event) {
+      if (event.getType() == FrameworkEvent.STARTED) {
+        latch.countDown();
+        event.getBundle().getBundleContext().removeFrameworkListener(this);
+      }
+    }
+
+    /**
+     * @return false if the framework stopped before it was started.
+     */
+    boolean await() throws InterruptedException {
+      while (!latch.await(100, TimeUnit.MILLISECONDS)) {
+        if ((m_fwk.getState() & (Bundle.STARTING | Bundle.ACTIVE)) == 0) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * @return the running control channel, or null if its port is invalid or cannot be bound.
+   */
+  private static ControlChannel startControlChannel(Map<String, String> configProps, Timings timings) {
+    final ControlChannel channel = new ControlChannel(m_fwk, configProps, timings, System.out::println,
+        LauncherUtil.getStorageSiblingFile(configProps, CONTROL_FILE_SUFFIX));
+    try {
+      channel.start(Integer.parseInt(configProps.get(CONTROL_PORT_PROP).trim()));
+      return channel;
+    } catch (NumberFormatException ex) {
+      System.err.println("Invalid control port: " + ex.getMessage());
+    } catch (IOException ex) {
+      System.err.println("Unable to start the control channel: " + ex);
+      channel.close();
+    }
+    return null;
+  }
+
+  private static StartWatchdog createWatchdog(Map<String, String> configProps) {
+    try {
+      final long threshold = Long.parseLong(configProps.getOrDefault(SLOW_START_THRESHOLD_PROP, "0"));
+      if (threshold <= 0) {
+        return null;
+      }
+      final long interval = Long.parseLong(configProps.getOrDefault(SLOW_START_INTERVAL_PROP, "100"));
+      final long limit = Long.parseLong(configProps.getOrDefault(SLOW_START_LIMIT_PROP, "0"));
+      return new StartWatchdog(System.out::println, threshold, interval, limit);
+    } catch (NumberFormatException ex) {
+      System.err.println("Invalid slow start watchdog setting: " + ex.getMessage());
+      return null;
+    }
+  }
+
+  private static ClassLoadRecorder createRecorder(Map<String, String> configProps) {
+    try {
+      final long minutes = Long.parseLong(configProps.getOrDefault(CLASS_PROFILE_RECORD_PROP, "0").trim());
+      if (minutes <= 0) {
+        return null;
+      }
+      return new ClassLoadRecorder(System.out::println,
+          LauncherUtil.getStorageSiblingFile(configProps, ClassLoadProfile.FILE_SUFFIX), minutes);
+    } catch (NumberFormatException ex) {
+      System.err.println("Invalid class profile setting: " + ex.getMessage());
+      return null;
+    }
+  }
+
+  private static ClassWarmUp createWarmUp(Map<String, String> configProps) {
+    if (!"true".equalsIgnoreCase(configProps.getOrDefault(CLASS_WARMUP_PROP, "false").trim())) {
+      return null;
+    }
+    final ClassLoadProfile profile = ClassLoadProfile.load(
+        LauncherUtil.getStorageSiblingFile(configProps, ClassLoadProfile.FILE_SUFFIX));
+    if (profile.size() == 0) {
+      System.out.println("Class warm-up: no class load profile recorded yet.");
+      return null;
+    }
+    try {
+      final int threads = Integer.parseInt(configProps.getOrDefault(CLASS_WARMUP_THREADS_PROP,
+          String.valueOf(Runtime.getRuntime().availableProcessors())).trim());
+      final long budget = Long.parseLong(configProps.getOrDefault(CLASS_WARMUP_BUDGET_PROP, "10000").trim());
+      return new ClassWarmUp(System.out::println, profile, threads, budget);
+    } catch (NumberFormatException ex) {
+      System.err.println("Invalid class warm-up setting: " + ex.getMessage());
+      return null;
+    }
+  }
+
+  private static SharedExecutor createSharedExecutor(Map<String, String> configProps) {
+    int parallelism = Runtime.getRuntime().availableProcessors();
+    try {
+      parallelism = Integer.parseInt(configProps.getOrDefault(SHARED_EXECUTOR_PARALLELISM_PROP, String.valueOf(parallelism)));
+    } catch (NumberFormatException ex) {
+      // Ignore and keep default parallelism.
+    }
+    final SharedExecutor executor = new SharedExecutor(parallelism);
+    registerMBean(executor, SHARED_EXECUTOR_MBEAN_NAME);
+    return executor;
+  }
+
+  private static void registerMBean(Object mbean, String name) {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, new ObjectName(name));
+    } catch (JMException ex) {
+      System.err.println("Unable to register " + name + ": " + ex);
+    }
+  }
+
+  private static void unregisterMBean(String name) {
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(name));
+    } catch (JMException ex) {
+      // Not registered, nothing to do.
+    }
+  }
+
+  private static void configureConsole(WrappingPrintStream console, Map<String, String> configProps) {
+    try {
+      final double rate = Double.parseDouble(configProps.getOrDefault(CONSOLE_RATE_PROP, "0"));
+      final double burst = Double.parseDouble(configProps.getOrDefault(CONSOLE_BURST_PROP, String.valueOf(rate)));
+      console.getStatistics().setRateLimit(rate, burst);
+    } catch (NumberFormatException ex) {
+      System.err.println("Invalid console rate limit: " + ex.getMessage());
+    }
+  }
 }
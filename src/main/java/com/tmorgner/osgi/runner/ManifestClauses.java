@@ -0,0 +1,107 @@
+package com.tmorgner.osgi.runner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal parser for OSGi manifest headers like "Import-Package" or "Require-Bundle". A header
+ * consists of comma separated clauses, each clause has one or more paths followed by attributes
+ * ("name=value") and directives ("name:=value"). Quoted values may contain commas and semicolons.
+ */
+class ManifestClauses {
+  static class Clause {
+    private final List<String> paths;
+    private final Map<String, String> attributes;
+    private final Map<String, String> directives;
+
+    Clause(List<String> paths, Map<String, String> attributes, Map<String, String> directives) {
+      this.paths = paths;
+      this.attributes = attributes;
+      this.directives = directives;
+    }
+
+    public List<String> getPaths() {
+      return paths;
+    }
+
+    public String getAttribute(String name) {
+      return attributes.get(name);
+    }
+
+    public String getDirective(String name) {
+      return directives.get(name);
+    }
+  }
+
+  private ManifestClauses() {
+  }
+
+  public static List<Clause> parse(String header) {
+    if (header == null || header.trim().isEmpty()) {
+      return Collections.emptyList();
+    }
+    final List<Clause> result = new ArrayList<>();
+    for (String clause : split(header, ',')) {
+      final List<String> paths = new ArrayList<>();
+      final Map<String, String> attributes = new HashMap<>();
+      final Map<String, String> directives = new HashMap<>();
+      for (String element : split(clause, ';')) {
+        final int eq = element.indexOf('=');
+        if (eq < 0) {
+          paths.add(element);
+        } else if (eq > 0 && element.charAt(eq - 1) == ':') {
+          directives.put(element.substring(0, eq - 1).trim(), unquote(element.substring(eq + 1)));
+        } else {
+          attributes.put(element.substring(0, eq).trim(), unquote(element.substring(eq + 1)));
+        }
+      }
+      if (!paths.isEmpty()) {
+        result.add(new Clause(paths, attributes, directives));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the first path of the first clause, for single valued headers like "Bundle-SymbolicName".
+   */
+  public static String parseFirstPath(String header) {
+    final List<Clause> clauses = parse(header);
+    return clauses.isEmpty() ? null : clauses.get(0).getPaths().get(0);
+  }
+
+  private static List<String> split(String value, char separator) {
+    final List<String> result = new ArrayList<>();
+    boolean quoted = false;
+    int start = 0;
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      if (c == '"') {
+        quoted = !quoted;
+      } else if (c == separator && !quoted) {
+        addTrimmed(result, value.substring(start, i));
+        start = i + 1;
+      }
+    }
+    addTrimmed(result, value.substring(start));
+    return result;
+  }
+
+  private static void addTrimmed(List<String> result, String value) {
+    final String trimmed = value.trim();
+    if (!trimmed.isEmpty()) {
+      result.add(trimmed);
+    }
+  }
+
+  private static String unquote(String value) {
+    final String trimmed = value.trim();
+    if (trimmed.length() >= 2 && trimmed.startsWith("\"") && trimmed.endsWith("\"")) {
+      return trimmed.substring(1, trimmed.length() - 1);
+    }
+    return trimmed;
+  }
+}
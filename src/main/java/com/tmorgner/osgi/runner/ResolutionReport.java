@@ -0,0 +1,157 @@
+package com.tmorgner.osgi.runner;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Resolves a set of bundles in a single resolver pass and explains why bundles failed to resolve.
+ * The framework API does not report resolver errors, so for every unresolved bundle the report
+ * lists the mandatory requirements that no installed bundle can satisfy, or that are only offered
+ * by bundles that did not resolve either. Unresolved bundles with none of those problems usually
+ * suffer from a uses-constraint conflict.
+ */
+public class ResolutionReport {
+  private final Map<Bundle, List<String>> failures;
+  private final int bundleCount;
+
+  private ResolutionReport(int bundleCount, Map<Bundle, List<String>> failures) {
+    this.bundleCount = bundleCount;
+    this.failures = failures;
+  }
+
+  /**
+   * Resolves the given bundles with {@link FrameworkWiring#resolveBundles(Collection)}.
+   *
+   * @param context the system bundle context.
+   * @param bundles the bundles to resolve.
+   * @return the report, or null if the framework does not support {@link FrameworkWiring}.
+   */
+  public static ResolutionReport resolve(BundleContext context, Collection<Bundle> bundles) {
+    final FrameworkWiring wiring = context.getBundle(0).adapt(FrameworkWiring.class);
+    if (wiring == null) {
+      return null;
+    }
+    wiring.resolveBundles(bundles);
+
+    final Map<Bundle, List<String>> failures = new LinkedHashMap<>();
+    Map<String, List<BundleCapability>> capabilities = null;
+    for (Bundle bundle : bundles) {
+      if (bundle.getState() != Bundle.INSTALLED) {
+        continue;
+      }
+      if (capabilities == null) {
+        capabilities = collectCapabilities(context);
+      }
+      failures.put(bundle, explain(context, bundle, capabilities));
+    }
+    return new ResolutionReport(bundles.size(), failures);
+  }
+
+  private static Map<String, List<BundleCapability>> collectCapabilities(BundleContext context) {
+    final Map<String, List<BundleCapability>> result = new HashMap<>();
+    for (Bundle bundle : context.getBundles()) {
+      final BundleRevision revision = bundle.adapt(BundleRevision.class);
+      if (revision == null) {
+        continue;
+      }
+      for (BundleCapability capability : revision.getDeclaredCapabilities(null)) {
+        result.computeIfAbsent(capability.getNamespace(), k -> new ArrayList<>()).add(capability);
+      }
+    }
+    return result;
+  }
+
+  private static List<String> explain(BundleContext context,
+                                      Bundle bundle,
+                                      Map<String, List<BundleCapability>> capabilities) {
+    final List<String> reasons = new ArrayList<>();
+    final BundleRevision revision = bundle.adapt(BundleRevision.class);
+    if (revision == null) {
+      reasons.add("bundle has no current revision");
+      return reasons;
+    }
+    for (BundleRequirement requirement : revision.getDeclaredRequirements(null)) {
+      final Map<String, String> directives = requirement.getDirectives();
+      if (Constants.RESOLUTION_OPTIONAL.equals(directives.get(Constants.RESOLUTION_DIRECTIVE))) {
+        continue;
+      }
+      final String effective = directives.get(Constants.EFFECTIVE_DIRECTIVE);
+      if (effective != null && !Constants.EFFECTIVE_RESOLVE.equals(effective)) {
+        continue;
+      }
+      final String filterText = directives.get(Constants.FILTER_DIRECTIVE);
+      final Filter filter;
+      try {
+        filter = filterText != null ? context.createFilter(filterText) : null;
+      } catch (InvalidSyntaxException e) {
+        reasons.add("invalid requirement " + requirement.getNamespace() + " " + filterText);
+        continue;
+      }
+
+      boolean matched = false;
+      boolean resolvedProvider = false;
+      final List<String> unresolvedProviders = new ArrayList<>();
+      for (BundleCapability capability :
+          capabilities.getOrDefault(requirement.getNamespace(), Collections.emptyList())) {
+        if (filter != null && !filter.matches(capability.getAttributes())) {
+          continue;
+        }
+        matched = true;
+        final Bundle provider = capability.getRevision().getBundle();
+        if (provider.getState() != Bundle.INSTALLED) {
+          resolvedProvider = true;
+          break;
+        }
+        if (provider != bundle) {
+          unresolvedProviders.add(provider.getSymbolicName());
+        }
+      }
+      final String text = requirement.getNamespace() + " " + (filterText != null ? filterText : "");
+      if (!matched) {
+        reasons.add("missing " + text);
+      } else if (!resolvedProvider && !unresolvedProviders.isEmpty()) {
+        reasons.add(text + " is only provided by unresolved " + unresolvedProviders);
+      }
+    }
+    if (reasons.isEmpty()) {
+      reasons.add("all requirements are available, probably a uses constraint conflict");
+    }
+    return reasons;
+  }
+
+  public boolean isResolved(Bundle bundle) {
+    return !failures.containsKey(bundle);
+  }
+
+  /**
+   * @return the unresolved bundles with the reasons why they could not be resolved.
+   */
+  public Map<Bundle, List<String>> getFailures() {
+    return Collections.unmodifiableMap(failures);
+  }
+
+  public void log(Consumer<String> logger) {
+    logger.accept(String.format("Resolution: %d of %d bundles resolved.", bundleCount - failures.size(), bundleCount));
+    for (Map.Entry<Bundle, List<String>> entry : failures.entrySet()) {
+      for (String reason : entry.getValue()) {
+        logger.accept(String.format("Unresolved %s: %s", entry.getKey().getLocation(), reason));
+      }
+    }
+  }
+}
@@ -0,0 +1,170 @@
+package com.tmorgner.osgi.runner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Include and exclude rules for the auto-deploy scan. Rules are glob patterns as understood by
+ * {@link FileSystem#getPathMatcher(String)}. A pattern without a "/" matches the name of a file or
+ * directory at any depth, a pattern containing a "/" matches the path relative to the directory the
+ * rule was defined for. A pattern ending in "/" only matches directories.
+ * <p>
+ * Exclude rules come from the global configuration and from ignore files found in the scanned
+ * directories. Rules from an ignore file apply to the directory containing it and all of its
+ * sub-directories. An excluded directory is pruned without being listed. Include rules only
+ * apply to bundle files; if any are given, a bundle must match at least one of them.
+ * <p>
+ * Filters are immutable; {@link #withIgnoreFile(Path, File)} returns a new filter for a sub-tree.
+ */
+public class ScanFilter {
+  /**
+   * The default name of the per-directory ignore file.
+   */
+  public static final String IGNORE_FILE_VALUE = ".deployignore";
+
+  private static final ScanFilter NONE = new ScanFilter(Collections.emptyList(), Collections.emptyList(), null);
+
+  static class Rule {
+    private final Path base;
+    private final PathMatcher matcher;
+    private final boolean matchName;
+    private final boolean directoryOnly;
+
+    Rule(Path base, String pattern) {
+      String glob = pattern.trim();
+      this.directoryOnly = glob.endsWith("/");
+      if (directoryOnly) {
+        glob = glob.substring(0, glob.length() - 1);
+      }
+      if (glob.startsWith("/")) {
+        glob = glob.substring(1);
+      }
+      this.base = base;
+      this.matchName = glob.indexOf('/') < 0;
+      this.matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+    }
+
+    boolean matches(Path relativePath, boolean directory) {
+      if (directoryOnly && !directory) {
+        return false;
+      }
+      final boolean root = base.toString().isEmpty();
+      if (!root && !relativePath.startsWith(base)) {
+        return false;
+      }
+      if (matchName) {
+        final Path name = relativePath.getFileName();
+        return name != null && matcher.matches(name);
+      }
+      return matcher.matches(root ? relativePath : base.relativize(relativePath));
+    }
+  }
+
+  private final List<Rule> includes;
+  private final List<Rule> excludes;
+  private final String ignoreFileName;
+
+  private ScanFilter(List<Rule> includes, List<Rule> excludes, String ignoreFileName) {
+    this.includes = includes;
+    this.excludes = excludes;
+    this.ignoreFileName = ignoreFileName;
+  }
+
+  /**
+   * @return a filter that accepts everything and does not read ignore files.
+   */
+  public static ScanFilter none() {
+    return NONE;
+  }
+
+  /**
+   * Compiles the include, exclude and ignore file settings of the configuration.
+   *
+   * @param configMap Map of configuration properties.
+   * @return the filter, never null.
+   */
+  public static ScanFilter fromConfig(Map<String, String> configMap) {
+    final Path root = Paths.get("");
+    final List<Rule> includes = compile(root, configMap.get(AutoProcessor.AUTO_DEPLOY_INCLUDE_PROPERTY));
+    final List<Rule> excludes = compile(root, configMap.get(AutoProcessor.AUTO_DEPLOY_EXCLUDE_PROPERTY));
+    String ignoreFile = configMap.getOrDefault(AutoProcessor.AUTO_DEPLOY_IGNORE_FILE_PROPERTY, IGNORE_FILE_VALUE).trim();
+    return new ScanFilter(includes, excludes, ignoreFile.isEmpty() ? null : ignoreFile);
+  }
+
+  static List<Rule> compile(Path base, String patterns) {
+    if (patterns == null) {
+      return Collections.emptyList();
+    }
+    final List<Rule> rules = new ArrayList<>();
+    for (String pattern : patterns.split(",")) {
+      if (!pattern.trim().isEmpty()) {
+        rules.add(new Rule(base, pattern));
+      }
+    }
+    return Collections.unmodifiableList(rules);
+  }
+
+  /**
+   * @return the name of the per-directory ignore file, or null if ignore files are disabled.
+   */
+  public String getIgnoreFileName() {
+    return ignoreFileName;
+  }
+
+  /**
+   * Adds the rules of the given ignore file. Empty lines and lines starting with "#" are skipped.
+   *
+   * @param directory  the directory containing the ignore file, relative to the scan root.
+   * @param ignoreFile the ignore file.
+   * @return a filter for the directory's sub-tree.
+   */
+  public ScanFilter withIgnoreFile(Path directory, File ignoreFile) throws IOException {
+    final List<Rule> rules = new ArrayList<>(excludes);
+    for (String line : Files.readAllLines(ignoreFile.toPath(), StandardCharsets.UTF_8)) {
+      final String pattern = line.trim();
+      if (!pattern.isEmpty() && !pattern.startsWith("#")) {
+        rules.add(new Rule(directory, pattern));
+      }
+    }
+    return new ScanFilter(includes, Collections.unmodifiableList(rules), ignoreFileName);
+  }
+
+  /**
+   * @param relativePath the path relative to the scan root.
+   * @return true if the directory and everything below it is excluded from the scan.
+   */
+  public boolean isDirectoryExcluded(Path relativePath) {
+    return matchesAny(excludes, relativePath, true);
+  }
+
+  /**
+   * @param relativePath the path relative to the scan root.
+   * @return true if the bundle file should be deployed.
+   */
+  public boolean isBundleIncluded(Path relativePath) {
+    if (matchesAny(excludes, relativePath, false)) {
+      return false;
+    }
+    return includes.isEmpty() || matchesAny(includes, relativePath, false);
+  }
+
+  static boolean matchesAny(List<Rule> rules, Path relativePath, boolean directory) {
+    for (Rule rule : rules) {
+      if (rule.matches(relativePath, directory)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
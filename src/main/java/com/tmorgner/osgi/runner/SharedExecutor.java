@@ -0,0 +1,230 @@
+package com.tmorgner.osgi.runner;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceRegistration;
+
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+
+/**
+ * An executor shared by all deployed bundles, offered as an {@link ExecutorService} service on the
+ * system bundle context. Tasks run on virtual threads where the JVM provides them, otherwise on a
+ * work-stealing pool with a bounded parallelism. As the fallback pool has a fixed number of
+ * threads, bundles should not submit tasks that block for long periods.
+ * <p>
+ * Every bundle gets its own view of the executor. Shutting down a view only rejects further tasks
+ * of that bundle; the shared pool is shut down by the launcher when the framework has stopped.
+ * Per-bundle task counts and queue times are published through {@link SharedExecutorStatisticsMXBean}.
+ */
+public class SharedExecutor implements SharedExecutorStatisticsMXBean {
+  /**
+   * The service property identifying the shared executor.
+   */
+  public static final String SERVICE_NAME_PROPERTY = "com.tmorgner.osgi.runner.executor";
+  /**
+   * The value of {@link #SERVICE_NAME_PROPERTY} for the shared executor.
+   */
+  public static final String SERVICE_NAME_VALUE = "shared";
+  /**
+   * The service property that tells whether the executor runs tasks on virtual threads.
+   */
+  public static final String VIRTUAL_THREADS_PROPERTY = "com.tmorgner.osgi.runner.executor.virtual";
+
+  private static class Statistics {
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong totalQueueNanos = new AtomicLong();
+    private final AtomicLong maxQueueNanos = new AtomicLong();
+  }
+
+  /**
+   * The view of the shared executor handed out to a single bundle.
+   */
+  private static class BundleExecutorService extends AbstractExecutorService {
+    private final ExecutorService delegate;
+    private final Statistics statistics;
+    private final Object lock;
+    private int running;
+    private boolean shutdown;
+
+    BundleExecutorService(ExecutorService delegate, Statistics statistics) {
+      this.delegate = delegate;
+      this.statistics = statistics;
+      this.lock = new Object();
+    }
+
+    @Override
+    public void execute(Runnable command) {
+      synchronized (lock) {
+        if (shutdown) {
+          throw new RejectedExecutionException("Executor has been shut down");
+        }
+        running += 1;
+      }
+      final long submitted = System.nanoTime();
+      statistics.submitted.incrementAndGet();
+      try {
+        delegate.execute(() -> {
+          final long queueTime = System.nanoTime() - submitted;
+          statistics.totalQueueNanos.addAndGet(queueTime);
+          statistics.maxQueueNanos.accumulateAndGet(queueTime, Math::max);
+          try {
+            command.run();
+          } finally {
+            statistics.completed.incrementAndGet();
+            finished();
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        finished();
+        throw e;
+      }
+    }
+
+    private void finished() {
+      synchronized (lock) {
+        running -= 1;
+        lock.notifyAll();
+      }
+    }
+
+    @Override
+    public void shutdown() {
+      synchronized (lock) {
+        shutdown = true;
+        lock.notifyAll();
+      }
+    }
+
+    /**
+     * Tasks already handed to the shared pool cannot be taken back, so this behaves like
+     * {@link #shutdown()} and always returns an empty list.
+     */
+    @Override
+    public List<Runnable> shutdownNow() {
+      shutdown();
+      return Collections.emptyList();
+    }
+
+    @Override
+    public boolean isShutdown() {
+      synchronized (lock) {
+        return shutdown;
+      }
+    }
+
+    @Override
+    public boolean isTerminated() {
+      synchronized (lock) {
+        return shutdown && running == 0;
+      }
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+      final long deadline = System.nanoTime() + unit.toNanos(timeout);
+      synchronized (lock) {
+        while (!(shutdown && running == 0)) {
+          final long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            return false;
+          }
+          TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+        }
+        return true;
+      }
+    }
+  }
+
+  private final ExecutorService pool;
+  private final boolean virtualThreads;
+  private final Map<String, Statistics> statistics;
+
+  /**
+   * @param parallelism the parallelism of the fallback pool used when virtual threads are not available.
+   */
+  public SharedExecutor(int parallelism) {
+    final ExecutorService virtual = VirtualThreads.newExecutor();
+    this.virtualThreads = virtual != null;
+    this.pool = virtual != null ? virtual : Executors.newWorkStealingPool(Math.max(1, parallelism));
+    this.statistics = new ConcurrentHashMap<>();
+  }
+
+  @Override
+  public boolean isVirtualThreads() {
+    return virtualThreads;
+  }
+
+  /**
+   * Registers the executor service on the given context. Registrations end when the framework stops.
+   */
+  public ServiceRegistration<?> register(BundleContext context) {
+    final Dictionary<String, Object> properties = new Hashtable<>();
+    properties.put(SERVICE_NAME_PROPERTY, SERVICE_NAME_VALUE);
+    properties.put(VIRTUAL_THREADS_PROPERTY, virtualThreads);
+    final ServiceFactory<ExecutorService> factory = new ServiceFactory<ExecutorService>() {
+      @Override
+      public ExecutorService getService(Bundle bundle, ServiceRegistration<ExecutorService> registration) {
+        final String name = (bundle.getSymbolicName() != null ? bundle.getSymbolicName() : bundle.getLocation());
+        return new BundleExecutorService(pool, statistics.computeIfAbsent(name, k -> new Statistics()));
+      }
+
+      @Override
+      public void ungetService(Bundle bundle,
+                               ServiceRegistration<ExecutorService> registration,
+                               ExecutorService service) {
+        service.shutdown();
+      }
+    };
+    return context.registerService(ExecutorService.class.getName(), factory, properties);
+  }
+
+  /**
+   * Shuts down the shared pool. Called by the launcher once the framework has stopped.
+   */
+  public void shutdown() {
+    pool.shutdown();
+  }
+
+  private Map<String, Long> collect(ToLongFunction<Statistics> counter) {
+    final Map<String, Long> result = new TreeMap<>();
+    for (Map.Entry<String, Statistics> entry : statistics.entrySet()) {
+      result.put(entry.getKey(), counter.applyAsLong(entry.getValue()));
+    }
+    return result;
+  }
+
+  @Override
+  public Map<String, Long> getTasksSubmitted() {
+    return collect(s -> s.submitted.get());
+  }
+
+  @Override
+  public Map<String, Long> getTasksCompleted() {
+    return collect(s -> s.completed.get());
+  }
+
+  @Override
+  public Map<String, Long> getTotalQueueTimeMillis() {
+    return collect(s -> TimeUnit.NANOSECONDS.toMillis(s.totalQueueNanos.get()));
+  }
+
+  @Override
+  public Map<String, Long> getMaxQueueTimeMillis() {
+    return collect(s -> TimeUnit.NANOSECONDS.toMillis(s.maxQueueNanos.get()));
+  }
+}
@@ -0,0 +1,19 @@
+package com.tmorgner.osgi.runner;
+
+import java.util.Map;
+
+/**
+ * Management interface for the per-bundle usage of the {@link SharedExecutor}. All maps are keyed
+ * by the bundle that submitted the tasks.
+ */
+public interface SharedExecutorStatisticsMXBean {
+  boolean isVirtualThreads();
+
+  Map<String, Long> getTasksSubmitted();
+
+  Map<String, Long> getTasksCompleted();
+
+  Map<String, Long> getTotalQueueTimeMillis();
+
+  Map<String, Long> getMaxQueueTimeMillis();
+}
@@ -0,0 +1,100 @@
+package com.tmorgner.osgi.runner;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.SynchronousBundleListener;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The measured start durations of bundles, persisted between boots. Durations are measured between
+ * the STARTING and STARTED events, which synchronous listeners receive on the activating thread,
+ * and are keyed by the bundle's symbolic name so that they survive bundle updates.
+ */
+public class StartHistory implements SynchronousBundleListener {
+  private final File file;
+  private final Map<String, Long> durations;
+  private final Map<Long, Long> inFlight;
+
+  public StartHistory(File file) {
+    this.file = file;
+    this.durations = new ConcurrentHashMap<>();
+    this.inFlight = new ConcurrentHashMap<>();
+  }
+
+  static String getKey(Bundle bundle) {
+    final String name = bundle.getSymbolicName();
+    return name != null ? name : bundle.getLocation();
+  }
+
+  /**
+   * Reads the durations recorded by the previous boot. A missing file is not an error.
+   */
+  public void load() throws IOException {
+    final Properties properties = new Properties();
+    try (InputStream in = new FileInputStream(file)) {
+      properties.load(in);
+    } catch (FileNotFoundException e) {
+      return;
+    }
+    for (String key : properties.stringPropertyNames()) {
+      try {
+        durations.put(key, Long.parseLong(properties.getProperty(key)));
+      } catch (NumberFormatException e) {
+        // Ignore the broken entry, it will be measured again.
+      }
+    }
+  }
+
+  /**
+   * Writes the durations of all bundles currently installed in the framework.
+   */
+  public void save(BundleContext context) throws IOException {
+    final Set<String> installed = new HashSet<>();
+    for (Bundle bundle : context.getBundles()) {
+      installed.add(getKey(bundle));
+    }
+    final Properties properties = new Properties();
+    for (Map.Entry<String, Long> entry : durations.entrySet()) {
+      if (installed.contains(entry.getKey())) {
+        properties.setProperty(entry.getKey(), String.valueOf(entry.getValue()));
+      }
+    }
+    try (OutputStream out = new FileOutputStream(file)) {
+      properties.store(out, "Bundle start durations in milliseconds");
+    }
+  }
+
+  /**
+   * @return the last measured start duration of the bundle in milliseconds, or -1 if unknown.
+   */
+  public long getDuration(Bundle bundle) {
+    return durations.getOrDefault(getKey(bundle), -1L);
+  }
+
+  @Override
+  public void bundleChanged(BundleEvent event) {
+    final Bundle bundle = event.getBundle();
+    if (event.getType() == BundleEvent.STARTING) {
+      inFlight.put(bundle.getBundleId(), System.nanoTime());
+    } else if (event.getType() == BundleEvent.STARTED) {
+      final Long start = inFlight.remove(bundle.getBundleId());
+      if (start != null) {
+        durations.put(getKey(bundle), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+      }
+    }
+  }
+}
@@ -0,0 +1,174 @@
+package com.tmorgner.osgi.runner;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.startlevel.BundleStartLevel;
+import org.osgi.framework.startlevel.FrameworkStartLevel;
+import org.osgi.service.startlevel.StartLevel;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Assigns the start levels of the bundles of a deploy pass. The current start levels of all installed
+ * bundles are read once when the assigner is created, and a bundle's level is only changed if it
+ * differs from the level it should have. Each change makes the framework evaluate the bundle's level
+ * again, so a pass that does not move bundles between run levels changes nothing.
+ * <p>
+ * Before bundles of a run level are installed, that run level becomes the framework's initial bundle
+ * start level, so freshly installed bundles already have the right level. The initial level is only
+ * set when the run level differs from the previous install, which happens once per run level for
+ * a plan sorted by run level, and once per directory for a streamed scan. Changing it is cheap,
+ * while moving an installed bundle rewrites its persisted state. {@link #close()} restores the
+ * original value. The initial level is
+ * framework-wide, so an assigner must only be used while {@link AutoProcessor#PASS_LOCK} is held;
+ * otherwise a concurrent pass could take the level set here for the original one.
+ * <p>
+ * Frameworks without {@link FrameworkStartLevel} are served through the legacy {@link StartLevel}
+ * service. Its reference is obtained once and released by {@link #close()}.
+ */
+public class StartLevelAssigner implements AutoCloseable {
+  private final Consumer<String> logger;
+  private final FrameworkStartLevel frameworkStartLevel;
+  private final BundleContext context;
+  private final ServiceReference<StartLevel> legacyReference;
+  private final StartLevel legacy;
+  private final Map<Long, Integer> levels;
+  private final int originalInitialLevel;
+  private int initialLevel;
+  private int changed;
+  private int unchanged;
+  private boolean closed;
+
+  public StartLevelAssigner(Consumer<String> logger, BundleContext context) {
+    this.logger = logger;
+    this.context = context;
+    this.frameworkStartLevel = context.getBundle(0).adapt(FrameworkStartLevel.class);
+    if (frameworkStartLevel != null) {
+      legacyReference = null;
+      legacy = null;
+      originalInitialLevel = frameworkStartLevel.getInitialBundleStartLevel();
+    } else {
+      // use the legacy way ..
+      legacyReference = context.getServiceReference(StartLevel.class);
+      legacy = legacyReference != null ? context.getService(legacyReference) : null;
+      if (legacy == null) {
+        throw new IllegalStateException("OSGI framework is not able to produce a StartLevel service. This is bad.");
+      }
+      originalInitialLevel = legacy.getInitialBundleStartLevel();
+    }
+    initialLevel = originalInitialLevel;
+
+    levels = new HashMap<>();
+    for (Bundle bundle : context.getBundles()) {
+      final int level = readLevel(bundle);
+      if (level > 0) {
+        levels.put(bundle.getBundleId(), level);
+      }
+    }
+  }
+
+  private int readLevel(Bundle bundle) {
+    if (legacy != null) {
+      return legacy.getBundleStartLevel(bundle);
+    }
+    final BundleStartLevel adapt = bundle.adapt(BundleStartLevel.class);
+    return adapt != null ? adapt.getStartLevel() : 0;
+  }
+
+  /**
+   * Makes the given run level the initial start level of bundles that are installed next.
+   */
+  public void prepareInstall(int runLevel) {
+    if (runLevel == initialLevel || runLevel < 1) {
+      return;
+    }
+    if (legacy != null) {
+      legacy.setInitialBundleStartLevel(runLevel);
+    } else {
+      frameworkStartLevel.setInitialBundleStartLevel(runLevel);
+    }
+    initialLevel = runLevel;
+  }
+
+  /**
+   * Records the start level a bundle that has just been installed has actually been given.
+   */
+  public void installed(Bundle bundle) {
+    final int level = readLevel(bundle);
+    if (level > 0) {
+      levels.put(bundle.getBundleId(), level);
+    } else {
+      levels.remove(bundle.getBundleId());
+    }
+  }
+
+  /**
+   * Sets the start level of the bundle, unless it already has that level.
+   *
+   * @return true if the level has been changed.
+   */
+  public boolean assign(Bundle bundle, int level) {
+    final Integer current = levels.get(bundle.getBundleId());
+    if (current != null && current == level) {
+      unchanged += 1;
+      return false;
+    }
+    if (legacy != null) {
+      legacy.setBundleStartLevel(bundle, level);
+    } else {
+      final BundleStartLevel adapt = bundle.adapt(BundleStartLevel.class);
+      if (adapt == null) {
+        return false;
+      }
+      adapt.setStartLevel(level);
+    }
+    levels.put(bundle.getBundleId(), level);
+    changed += 1;
+    return true;
+  }
+
+  public int getChanged() {
+    return changed;
+  }
+
+  public int getUnchanged() {
+    return unchanged;
+  }
+
+  /**
+   * Restores the framework's initial bundle start level and releases the legacy service.
+   */
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      if (initialLevel != originalInitialLevel) {
+        if (legacy != null) {
+          legacy.setInitialBundleStartLevel(originalInitialLevel);
+        } else {
+          frameworkStartLevel.setInitialBundleStartLevel(originalInitialLevel);
+        }
+        initialLevel = originalInitialLevel;
+      }
+    } catch (IllegalStateException e) {
+      // The framework has been stopped meanwhile, the initial level is gone with it.
+    } finally {
+      if (legacyReference != null) {
+        try {
+          context.ungetService(legacyReference);
+        } catch (IllegalStateException e) {
+          // The context is no longer valid, the framework released the service.
+        }
+      }
+    }
+    if (changed + unchanged > 0) {
+      logger.accept(String.format("Start levels: %d changed, %d already set.", changed, unchanged));
+    }
+  }
+}
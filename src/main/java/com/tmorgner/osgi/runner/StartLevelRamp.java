@@ -0,0 +1,282 @@
+package com.tmorgner.osgi.runner;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.startlevel.FrameworkStartLevel;
+import org.osgi.service.startlevel.StartLevel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Raises the framework start level one step at a time, instead of letting the framework jump to its
+ * beginning start level. The framework is started at start level 1, and the ramp then visits the run
+ * levels of the deployed bundles in ascending order, skipping levels without bundles. The configured
+ * target level is always the last step.
+ * <p>
+ * A level can have a readiness gate: a list of service filters, separated by semicolons, of which each
+ * must match a registered service before the ramp moves above that level. A plain class name stands for
+ * <tt>(objectClass=name)</tt>. This gives services registered asynchronously by the bundles of a level,
+ * for instance by declarative services, the time to appear before the bundles depending on them start.
+ * A gate that is not passed within the gate timeout is logged, and the ramp continues.
+ * <p>
+ * The time spent at each level, starting the bundles and waiting for the gate, is logged and recorded
+ * in the {@link Timings} as <tt>startlevel-N</tt>.
+ */
+public class StartLevelRamp {
+  private final Consumer<String> logger;
+  private final Timings timings;
+  private final long gateTimeoutMillis;
+  private final NavigableSet<Integer> levels;
+  private final Map<Integer, List<String>> gates;
+
+  /**
+   * @param gates             the service filters to wait for, by run level.
+   * @param gateTimeoutMillis the longest time to wait for the gate of a level.
+   */
+  public StartLevelRamp(Consumer<String> logger, Timings timings, Map<Integer, List<String>> gates, long gateTimeoutMillis) {
+    this.logger = logger;
+    this.timings = timings;
+    this.gates = new TreeMap<>(gates);
+    this.gateTimeoutMillis = gateTimeoutMillis;
+    this.levels = new TreeSet<>(this.gates.keySet());
+  }
+
+  /**
+   * Reads the gates of the configuration.
+   *
+   * @return the ramp, or null if the ramp is not enabled.
+   */
+  static StartLevelRamp fromConfig(Consumer<String> logger, Map<String, String> configMap, Timings timings) {
+    if (!"true".equalsIgnoreCase(configMap.getOrDefault(Main.START_LEVEL_RAMP_PROP, "false").trim())) {
+      return null;
+    }
+    long timeout = 30000;
+    try {
+      timeout = Long.parseLong(configMap.getOrDefault(Main.START_LEVEL_RAMP_GATE_TIMEOUT_PROP, "30000").trim());
+    } catch (NumberFormatException ex) {
+      logger.accept("Invalid " + Main.START_LEVEL_RAMP_GATE_TIMEOUT_PROP + ", waiting 30000 ms.");
+    }
+    final Map<Integer, List<String>> gates = new TreeMap<>();
+    for (Map.Entry<String, String> entry : configMap.entrySet()) {
+      if (!entry.getKey().startsWith(Main.START_LEVEL_RAMP_GATE_PREFIX)) {
+        continue;
+      }
+      final int level;
+      try {
+        level = Integer.parseInt(entry.getKey().substring(Main.START_LEVEL_RAMP_GATE_PREFIX.length()).trim());
+      } catch (NumberFormatException ex) {
+        logger.accept("Ignoring start level gate with an invalid level: " + entry.getKey());
+        continue;
+      }
+      final List<String> filters = new ArrayList<>();
+      for (String token : entry.getValue().split(";")) {
+        final String name = token.trim();
+        if (name.isEmpty()) {
+          continue;
+        }
+        final String filter = name.startsWith("(") ? name : "(objectClass=" + name + ")";
+        try {
+          FrameworkUtil.createFilter(filter);
+          filters.add(filter);
+        } catch (InvalidSyntaxException ex) {
+          logger.accept(String.format("Ignoring invalid filter of start level gate %d: %s", level, ex.getMessage()));
+        }
+      }
+      if (!filters.isEmpty()) {
+        gates.put(level, filters);
+      }
+    }
+    return new StartLevelRamp(logger, timings, gates, timeout);
+  }
+
+  /**
+   * Adds the run levels of the plan's entries as steps of the ramp.
+   */
+  public synchronized void addLevels(DeployPlan plan) {
+    if (plan == null) {
+      return;
+    }
+    for (DeployPlan.Entry entry : plan.getEntries()) {
+      levels.add(entry.getRunLevel());
+    }
+  }
+
+  /**
+   * @return the levels the ramp stops at, in ascending order.
+   */
+  public synchronized List<Integer> getLevels() {
+    return new ArrayList<>(levels);
+  }
+
+  /**
+   * Raises the framework start level to the target level, stopping at each known level above the
+   * current one and passing its gate. The gate of the current level is passed first, as the bundles
+   * of that level have just been started.
+   *
+   * @return false if a gate timed out or the framework stopped during the ramp.
+   */
+  public boolean raise(BundleContext context, int targetLevel) throws InterruptedException {
+    final int current = getStartLevel(context);
+    final NavigableSet<Integer> steps = new TreeSet<>();
+    if (gates.containsKey(current)) {
+      steps.add(current);
+    }
+    if (targetLevel > current) {
+      synchronized (this) {
+        steps.addAll(levels.subSet(current, false, targetLevel, true));
+      }
+      steps.add(targetLevel);
+    }
+    if (steps.isEmpty()) {
+      return true;
+    }
+    logger.accept(String.format("Start level ramp from %d to %d: %s", current, Math.max(current, targetLevel), steps));
+
+    final Semaphore changed = new Semaphore(0);
+    final FrameworkListener listener = event -> {
+      if (event.getType() == FrameworkEvent.STARTLEVEL_CHANGED) {
+        changed.release();
+      }
+    };
+    context.addFrameworkListener(listener);
+    boolean ready = true;
+    try {
+      for (int level : steps) {
+        final long stepStart = System.nanoTime();
+        if (level != current) {
+          setStartLevel(context, level);
+          while (!changed.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+            if (context.getBundle(0).getState() != Bundle.ACTIVE) {
+              logger.accept(String.format("Framework stopped while raising the start level to %d.", level));
+              return false;
+            }
+          }
+        }
+        final long reached = System.nanoTime();
+        final List<String> gate = gates.get(level);
+        final boolean passed = gate == null || await(context, level, gate);
+        ready &= passed;
+        final long now = System.nanoTime();
+        logger.accept(String.format("Start level %d reached in %d ms%s.", level,
+            TimeUnit.NANOSECONDS.toMillis(reached - stepStart),
+            gate == null ? "" : String.format(", gate %s after %d ms", passed ? "passed" : "timed out",
+                TimeUnit.NANOSECONDS.toMillis(now - reached))));
+        if (timings != null) {
+          timings.record("startlevel-" + level, stepStart);
+        }
+      }
+    } catch (IllegalStateException ex) {
+      logger.accept("Framework stopped during the start level ramp: " + ex.getMessage());
+      return false;
+    } finally {
+      try {
+        context.removeFrameworkListener(listener);
+      } catch (IllegalStateException ex) {
+        // The framework has stopped, the listener is gone with it.
+      }
+    }
+    return ready;
+  }
+
+  /**
+   * Waits until each filter of the gate matches a registered service.
+   *
+   * @return false if the gate timed out.
+   */
+  private boolean await(BundleContext context, int level, List<String> gate) throws InterruptedException {
+    final Semaphore registered = new Semaphore(0);
+    final ServiceListener listener = event -> registered.release();
+    context.addServiceListener(listener);
+    try {
+      final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(gateTimeoutMillis);
+      while (true) {
+        final List<String> missing = new ArrayList<>();
+        for (String filter : gate) {
+          if (!isRegistered(context, filter)) {
+            missing.add(filter);
+          }
+        }
+        if (missing.isEmpty()) {
+          return true;
+        }
+        final long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          logger.accept(String.format("Start level gate %d timed out after %d ms, missing %s", level, gateTimeoutMillis, missing));
+          return false;
+        }
+        if (context.getBundle(0).getState() != Bundle.ACTIVE) {
+          throw new IllegalStateException("Framework stopped while waiting for the gate of start level " + level);
+        }
+        registered.tryAcquire(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(100)), TimeUnit.NANOSECONDS);
+        registered.drainPermits();
+      }
+    } finally {
+      try {
+        context.removeServiceListener(listener);
+      } catch (IllegalStateException ex) {
+        // The framework has stopped, the listener is gone with it.
+      }
+    }
+  }
+
+  private static boolean isRegistered(BundleContext context, String filter) {
+    try {
+      final ServiceReference<?>[] references = context.getAllServiceReferences(null, filter);
+      return references != null && references.length > 0;
+    } catch (InvalidSyntaxException ex) {
+      // checked when the gate was configured.
+      return false;
+    }
+  }
+
+  private static int getStartLevel(BundleContext context) {
+    final FrameworkStartLevel fsl = context.getBundle(0).adapt(FrameworkStartLevel.class);
+    if (fsl != null) {
+      return fsl.getStartLevel();
+    }
+    // legacy mode ...
+    final ServiceReference<StartLevel> ref = context.getServiceReference(StartLevel.class);
+    final StartLevel sl = ref != null ? context.getService(ref) : null;
+    if (sl == null) {
+      throw new IllegalStateException("OSGI framework is not able to produce a StartLevel service. This is bad.");
+    }
+    try {
+      return sl.getStartLevel();
+    } finally {
+      context.ungetService(ref);
+    }
+  }
+
+  private static void setStartLevel(BundleContext context, int level) {
+    final FrameworkStartLevel fsl = context.getBundle(0).adapt(FrameworkStartLevel.class);
+    if (fsl != null) {
+      fsl.setStartLevel(level);
+      return;
+    }
+    // legacy mode ...
+    final ServiceReference<StartLevel> ref = context.getServiceReference(StartLevel.class);
+    final StartLevel sl = ref != null ? context.getService(ref) : null;
+    if (sl == null) {
+      throw new IllegalStateException("OSGI framework is not able to produce a StartLevel service. This is bad.");
+    }
+    try {
+      sl.setStartLevel(level);
+    } finally {
+      context.ungetService(ref);
+    }
+  }
+}
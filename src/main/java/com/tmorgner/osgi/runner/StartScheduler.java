@@ -0,0 +1,185 @@
+package com.tmorgner.osgi.runner;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleException;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Starts bundles on a bounded pool of worker threads, one run level after the other. Within a run
+ * level, a bundle is started once all bundles it depends on (see {@link DependencyGraph}) have
+ * been started. Among the bundles that are ready, the one with the longest remaining critical path,
+ * based on the start durations of the previous boot, goes first. Bundles without history are
+ * assumed to take the average time of the known bundles.
+ * <p>
+ * Bundles are started transiently, so that the framework's start-level ramp does not start them
+ * sequentially on the next boot before the scheduler gets a chance to run.
+ */
+public class StartScheduler {
+  private final Consumer<String> logger;
+  private final StartHistory history;
+  private final int threads;
+
+  public StartScheduler(Consumer<String> logger, StartHistory history, int threads) {
+    this.logger = logger;
+    this.history = history;
+    this.threads = Math.max(1, threads);
+  }
+
+  /**
+   * @param levels the bundles to start, keyed by run level.
+   * @return true if all bundles have been started.
+   */
+  public boolean start(Map<Integer, List<Bundle>> levels) throws InterruptedException {
+    final AtomicInteger counter = new AtomicInteger();
+    final ThreadFactory threadFactory = r -> {
+      final Thread thread = new Thread(r, "Bundle Start " + counter.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+    final ExecutorService pool = Executors.newFixedThreadPool(threads, threadFactory);
+    try {
+      boolean success = true;
+      for (Map.Entry<Integer, List<Bundle>> entry : levels.entrySet()) {
+        success &= startLevel(entry.getKey(), entry.getValue(), pool);
+      }
+      return success;
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  boolean startLevel(int level, List<Bundle> bundles, ExecutorService pool) throws InterruptedException {
+    final int size = bundles.size();
+    if (size == 0) {
+      return true;
+    }
+    final long startTime = System.nanoTime();
+    final DependencyGraph<Bundle> graph = DependencyGraph.build(bundles, (b, h) -> b.getHeaders().get(h));
+    final int[] order = graph.topologicalIndices(logger);
+    final int[] position = new int[size];
+    for (int i = 0; i < size; i += 1) {
+      position[order[i]] = i;
+    }
+
+    final long[] duration = estimateDurations(bundles);
+    final int[] pending = new int[size];
+    final List<List<Integer>> dependents = new ArrayList<>(size);
+    for (int i = 0; i < size; i += 1) {
+      dependents.add(new ArrayList<>());
+    }
+    for (int i = 0; i < size; i += 1) {
+      final BitSet deps = graph.getDependencies(i);
+      for (int d = deps.nextSetBit(0); d >= 0; d = deps.nextSetBit(d + 1)) {
+        // edges against the topological order close a cycle and are ignored.
+        if (position[d] < position[i]) {
+          dependents.get(d).add(i);
+          pending[i] += 1;
+        }
+      }
+    }
+
+    // the critical path of a bundle is its own duration plus the longest
+    // critical path of the bundles waiting for it.
+    final long[] criticalPath = new long[size];
+    for (int p = size - 1; p >= 0; p -= 1) {
+      final int node = order[p];
+      long longest = 0;
+      for (int dependent : dependents.get(node)) {
+        longest = Math.max(longest, criticalPath[dependent]);
+      }
+      criticalPath[node] = duration[node] + longest;
+    }
+
+    final PriorityQueue<Integer> ready = new PriorityQueue<>(
+        Comparator.<Integer>comparingLong(i -> criticalPath[i]).reversed()
+            .thenComparing(Comparator.<Integer>comparingLong(i -> duration[i]).reversed())
+            .thenComparingInt(i -> position[i]));
+    for (int i = 0; i < size; i += 1) {
+      if (pending[i] == 0) {
+        ready.add(i);
+      }
+    }
+
+    final BlockingQueue<Integer> finished = new LinkedBlockingQueue<>();
+    final boolean[] failed = new boolean[1];
+    int running = 0;
+    int completed = 0;
+    while (completed < size) {
+      while (running < threads && !ready.isEmpty()) {
+        final int node = ready.poll();
+        final Bundle bundle = bundles.get(node);
+        pool.execute(() -> {
+          try {
+            bundle.start(Bundle.START_TRANSIENT);
+            logger.accept("started " + bundle.getLocation());
+          } catch (BundleException | RuntimeException ex) {
+            logger.accept(String.format("Scheduled start [%s]: %s%s", bundle.getLocation(), ex,
+                (ex.getCause() != null) ? " - " + ex.getCause() : ""));
+            synchronized (failed) {
+              failed[0] = true;
+            }
+          } finally {
+            finished.add(node);
+          }
+        });
+        running += 1;
+      }
+      final int node = finished.take();
+      running -= 1;
+      completed += 1;
+      // dependents are started even if this bundle failed, they will report their own errors.
+      for (int dependent : dependents.get(node)) {
+        pending[dependent] -= 1;
+        if (pending[dependent] == 0) {
+          ready.add(dependent);
+        }
+      }
+    }
+
+    long sum = 0;
+    long longest = 0;
+    for (int i = 0; i < size; i += 1) {
+      sum += duration[i];
+      longest = Math.max(longest, criticalPath[i]);
+    }
+    logger.accept(String.format("Started %d bundles at run level %d in %d ms (expected critical path %d ms, sum %d ms).",
+        size, level, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime), longest, sum));
+    synchronized (failed) {
+      return !failed[0];
+    }
+  }
+
+  private long[] estimateDurations(List<Bundle> bundles) {
+    final long[] duration = new long[bundles.size()];
+    long known = 0;
+    long total = 0;
+    for (int i = 0; i < duration.length; i += 1) {
+      duration[i] = history.getDuration(bundles.get(i));
+      if (duration[i] >= 0) {
+        known += 1;
+        total += duration[i];
+      }
+    }
+    final long average = known > 0 ? total / known : 0;
+    for (int i = 0; i < duration.length; i += 1) {
+      if (duration[i] < 0) {
+        duration[i] = average;
+      }
+    }
+    return duration;
+  }
+}
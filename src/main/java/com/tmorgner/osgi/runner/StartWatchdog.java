@@ -0,0 +1,202 @@
+package com.tmorgner.osgi.runner;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.SynchronousBundleListener;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Watches bundle activations for activators that take too long. The framework delivers the STARTING
+ * event to synchronous listeners on the thread that runs the activator, so the watchdog knows which
+ * thread to look at. Once an activation exceeds the threshold, the stack of that thread is sampled
+ * at a fixed interval. The samples are logged as a hot-frame summary when the activation ends, and
+ * for activations that keep hanging each time their run time doubles.
+ * <p>
+ * With a hard limit, the activating thread is interrupted once the limit has passed. Activators that
+ * block in interruptible waits then fail, which fails the bundle start instead of hanging the boot.
+ * Activators that ignore interrupts cannot be stopped safely and keep being reported.
+ */
+public class StartWatchdog implements SynchronousBundleListener {
+  private static final int SUMMARY_STACKS = 5;
+  private static final int SUMMARY_FRAMES = 10;
+  private static final int SUMMARY_DEPTH = 8;
+
+  private static class Activation {
+    private final Bundle bundle;
+    private final Thread thread;
+    private final long startNanos;
+    private final Map<String, Integer> stacks;
+    private int samples;
+    private long nextReportNanos;
+    private boolean interrupted;
+
+    Activation(Bundle bundle, Thread thread, long startNanos) {
+      this.bundle = bundle;
+      this.thread = thread;
+      this.startNanos = startNanos;
+      this.stacks = new HashMap<>();
+    }
+  }
+
+  private final Consumer<String> logger;
+  private final long thresholdNanos;
+  private final long hardLimitNanos;
+  private final Map<Long, Activation> inFlight;
+  private final ScheduledExecutorService sampler;
+
+  /**
+   * @param thresholdMillis  the run time after which an activation is sampled.
+   * @param intervalMillis   the time between two stack samples.
+   * @param hardLimitMillis  the run time after which the activating thread is interrupted, or 0 for no limit.
+   */
+  public StartWatchdog(Consumer<String> logger, long thresholdMillis, long intervalMillis, long hardLimitMillis) {
+    this.logger = logger;
+    this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+    this.hardLimitNanos = TimeUnit.MILLISECONDS.toNanos(hardLimitMillis);
+    this.inFlight = new ConcurrentHashMap<>();
+    this.sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+      final Thread thread = new Thread(r, "Bundle Start Watchdog");
+      thread.setDaemon(true);
+      return thread;
+    });
+    final long interval = Math.max(1, intervalMillis);
+    this.sampler.scheduleAtFixedRate(this::sample, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void bundleChanged(BundleEvent event) {
+    final Bundle bundle = event.getBundle();
+    switch (event.getType()) {
+      case BundleEvent.STARTING:
+        inFlight.put(bundle.getBundleId(), new Activation(bundle, Thread.currentThread(), System.nanoTime()));
+        break;
+      case BundleEvent.STARTED:
+        complete(bundle, "finished");
+        break;
+      case BundleEvent.STOPPED:
+        // the activator failed after STARTING was fired.
+        complete(bundle, "failed");
+        break;
+      default:
+        break;
+    }
+  }
+
+  private void complete(Bundle bundle, String outcome) {
+    final Activation activation = inFlight.get(bundle.getBundleId());
+    if (activation == null) {
+      return;
+    }
+    synchronized (activation) {
+      inFlight.remove(bundle.getBundleId(), activation);
+      if (activation.interrupted && activation.thread == Thread.currentThread()) {
+        // do not leak the interrupt into the next bundle started on this thread.
+        Thread.interrupted();
+      }
+      if (activation.samples > 0) {
+        report(activation, String.format("Slow start of %s %s after %d ms.", getName(bundle), outcome,
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - activation.startNanos)));
+      }
+    }
+  }
+
+  private void sample() {
+    final long now = System.nanoTime();
+    for (Activation activation : inFlight.values()) {
+      final long elapsed = now - activation.startNanos;
+      if (elapsed < thresholdNanos) {
+        continue;
+      }
+      final StackTraceElement[] stack = activation.thread.getStackTrace();
+      synchronized (activation) {
+        if (inFlight.get(activation.bundle.getBundleId()) != activation) {
+          continue;
+        }
+        activation.stacks.merge(collapse(stack), 1, Integer::sum);
+        activation.samples += 1;
+        if (activation.samples == 1) {
+          activation.nextReportNanos = activation.startNanos + 2 * Math.max(elapsed, 1);
+          logger.accept(String.format("Start of %s has been running for %d ms on thread '%s', sampling its stack.",
+              getName(activation.bundle), TimeUnit.NANOSECONDS.toMillis(elapsed), activation.thread.getName()));
+        } else if (now >= activation.nextReportNanos) {
+          activation.nextReportNanos = activation.startNanos + 2 * elapsed;
+          report(activation, String.format("Start of %s still running after %d ms.",
+              getName(activation.bundle), TimeUnit.NANOSECONDS.toMillis(elapsed)));
+        }
+        if (hardLimitNanos > 0 && elapsed >= hardLimitNanos && !activation.interrupted) {
+          activation.interrupted = true;
+          report(activation, String.format("Start of %s exceeded the hard limit of %d ms, interrupting thread '%s'.",
+              getName(activation.bundle), TimeUnit.NANOSECONDS.toMillis(hardLimitNanos), activation.thread.getName()));
+          activation.thread.interrupt();
+        }
+      }
+    }
+  }
+
+  /**
+   * Logs the most frequent stacks, shortened to their innermost frames, and the frames the
+   * thread was most often found executing.
+   */
+  private void report(Activation activation, String headline) {
+    logger.accept(headline + String.format(" %d stack samples:", activation.samples));
+    final List<Map.Entry<String, Integer>> stacks = new ArrayList<>(activation.stacks.entrySet());
+    stacks.sort(Map.Entry.<String, Integer>comparingByValue().reversed());
+    final Map<String, Integer> frames = new HashMap<>();
+    for (Map.Entry<String, Integer> entry : stacks) {
+      final String stack = entry.getKey();
+      frames.merge(stack.substring(stack.lastIndexOf(';') + 1), entry.getValue(), Integer::sum);
+    }
+    for (Map.Entry<String, Integer> entry : stacks.subList(0, Math.min(SUMMARY_STACKS, stacks.size()))) {
+      logger.accept(String.format("  %5d %s", entry.getValue(), shorten(entry.getKey())));
+    }
+
+    final List<Map.Entry<String, Integer>> hot = new ArrayList<>(frames.entrySet());
+    hot.sort(Map.Entry.<String, Integer>comparingByValue().reversed());
+    logger.accept("  hot frames:");
+    for (Map.Entry<String, Integer> entry : hot.subList(0, Math.min(SUMMARY_FRAMES, hot.size()))) {
+      logger.accept(String.format("  %5.1f%% %s", 100.0 * entry.getValue() / activation.samples, entry.getKey()));
+    }
+  }
+
+  private static String shorten(String stack) {
+    int start = stack.length();
+    for (int i = 0; i < SUMMARY_DEPTH && start > 0; i += 1) {
+      start = stack.lastIndexOf(';', start - 1);
+    }
+    return start > 0 ? "..." + stack.substring(start) : stack;
+  }
+
+  /**
+   * @return the stack from the outermost to the innermost frame, separated by semicolons.
+   */
+  static String collapse(StackTraceElement[] stack) {
+    final StringBuilder b = new StringBuilder();
+    for (int i = stack.length - 1; i >= 0; i -= 1) {
+      if (b.length() > 0) {
+        b.append(';');
+      }
+      b.append(stack[i].getClassName()).append('.').append(stack[i].getMethodName());
+    }
+    return b.toString();
+  }
+
+  private static String getName(Bundle bundle) {
+    return bundle.getSymbolicName() != null ? bundle.getSymbolicName() : bundle.getLocation();
+  }
+
+  /**
+   * Stops sampling. Called by the launcher once the framework has stopped.
+   */
+  public void shutdown() {
+    sampler.shutdownNow();
+  }
+}
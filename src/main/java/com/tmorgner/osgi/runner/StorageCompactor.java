@@ -0,0 +1,253 @@
+package com.tmorgner.osgi.runner;
+
+import org.osgi.framework.Bundle;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Analyses and compacts the storage directory of a Felix framework that is not running. The storage
+ * holds one <tt>bundleN</tt> directory per bundle, with a <tt>bundle.info</tt> file (id, location,
+ * persistent state, start level, last modification and refresh count), one <tt>versionR.N</tt>
+ * directory per revision and the bundle's <tt>data</tt> area.
+ * <p>
+ * The following is reclaimed:
+ * <ul>
+ * <li>revision directories other than the current revision of a bundle,</li>
+ * <li>bundle directories of uninstalled bundles, and</li>
+ * <li>bundle directories the framework cannot restore, as they lack a readable <tt>bundle.info</tt>
+ * or any revision.</li>
+ * </ul>
+ * The <tt>data</tt> area of a bundle that is still installed is never touched, even if the bundle is
+ * no longer part of the deployment; such bundles are only reported, as the next deploy pass uninstalls
+ * them through the framework. The system bundle directory <tt>bundle0</tt> is never touched.
+ * <p>
+ * The framework holds a lock on <tt>cache.lock</tt> while it runs. The compactor takes the same lock
+ * and refuses to work on a storage that is in use.
+ */
+public class StorageCompactor {
+  private static final String LOCK_FILE = "cache.lock";
+  private static final String INFO_FILE = "bundle.info";
+  private static final Pattern BUNDLE_DIR = Pattern.compile("bundle(\\d+)");
+  private static final Pattern REVISION_DIR = Pattern.compile("version(\\d+)\\.(\\d+)");
+
+  /**
+   * A directory that can be deleted, with the reason and its size.
+   */
+  public static class Waste {
+    private final File directory;
+    private final String reason;
+    private final long size;
+
+    Waste(File directory, String reason, long size) {
+      this.directory = directory;
+      this.reason = reason;
+      this.size = size;
+    }
+
+    public File getDirectory() {
+      return directory;
+    }
+
+    public String getReason() {
+      return reason;
+    }
+
+    public long getSize() {
+      return size;
+    }
+  }
+
+  private final Consumer<String> logger;
+  private final File storage;
+
+  public StorageCompactor(Consumer<String> logger, File storage) {
+    this.logger = logger;
+    this.storage = storage;
+  }
+
+  /**
+   * Analyses the storage and, unless this is a dry run, deletes the wasted directories.
+   *
+   * @param deployedLocations the bundle locations of the current deployment, used to report
+   *                          installed bundles that are no longer deployed.
+   * @param dryRun            true to only report.
+   * @return the directories that are (or would be) deleted.
+   * @throws IOException if the storage is in use by a framework or cannot be read.
+   */
+  public List<Waste> compact(Set<String> deployedLocations, boolean dryRun) throws IOException {
+    if (!storage.isDirectory()) {
+      logger.accept("Storage " + storage + " does not exist, nothing to compact.");
+      return Collections.emptyList();
+    }
+    try (RandomAccessFile raf = new RandomAccessFile(new File(storage, LOCK_FILE), "rw");
+         FileChannel channel = raf.getChannel()) {
+      final FileLock lock;
+      try {
+        lock = channel.tryLock();
+      } catch (OverlappingFileLockException e) {
+        throw new IOException("Storage " + storage + " is in use by a framework of this JVM", e);
+      }
+      if (lock == null) {
+        throw new IOException("Storage " + storage + " is in use by a running framework");
+      }
+      try {
+        final List<Waste> waste = analyse(deployedLocations);
+        long total = 0;
+        for (Waste w : waste) {
+          logger.accept(String.format("%-10d %-28s %s", w.getSize(), w.getReason(), w.getDirectory()));
+          total += w.getSize();
+        }
+        logger.accept(String.format("Storage %s: %d bytes in use, %d bytes wasted in %d directories.",
+            storage, size(storage.toPath()), total, waste.size()));
+        if (!dryRun) {
+          for (Waste w : waste) {
+            delete(w.getDirectory().toPath());
+          }
+          logger.accept(String.format("Reclaimed %d bytes.", total));
+        }
+        return waste;
+      } finally {
+        lock.release();
+      }
+    }
+  }
+
+  private List<Waste> analyse(Set<String> deployedLocations) throws IOException {
+    final List<Waste> waste = new ArrayList<>();
+    final File[] children = storage.listFiles();
+    if (children == null) {
+      return waste;
+    }
+    for (File dir : children) {
+      final Matcher matcher = BUNDLE_DIR.matcher(dir.getName());
+      if (!dir.isDirectory() || !matcher.matches() || Long.parseLong(matcher.group(1)) == 0) {
+        continue;
+      }
+
+      final List<String> info = readInfo(dir);
+      final List<File> revisions = listRevisions(dir);
+      if (info == null || info.size() < 3 || revisions.isEmpty()) {
+        waste.add(new Waste(dir, "unrestorable bundle", size(dir.toPath())));
+        continue;
+      }
+      final String location = info.get(1);
+      if (String.valueOf(Bundle.UNINSTALLED).equals(info.get(2).trim())) {
+        waste.add(new Waste(dir, "uninstalled bundle", size(dir.toPath())));
+        continue;
+      }
+      if (deployedLocations != null && !deployedLocations.contains(location)) {
+        logger.accept("Not deployed, uninstalled by the next deploy pass: " + location + " (" + dir + ")");
+      }
+
+      final File current = findCurrentRevision(revisions, info.size() >= 6 ? info.get(5).trim() : null);
+      for (File revision : revisions) {
+        if (revision != current) {
+          waste.add(new Waste(revision, "stale revision", size(revision.toPath())));
+        }
+      }
+    }
+    return waste;
+  }
+
+  private static List<String> readInfo(File dir) {
+    try {
+      return Files.readAllLines(new File(dir, INFO_FILE).toPath(), StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private static List<File> listRevisions(File dir) {
+    final List<File> revisions = new ArrayList<>();
+    final File[] children = dir.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        if (child.isDirectory() && REVISION_DIR.matcher(child.getName()).matches()) {
+          revisions.add(child);
+        }
+      }
+    }
+    return revisions;
+  }
+
+  /**
+   * The framework restores the highest revision of the recorded refresh count. If no revision of
+   * that refresh count exists, the highest revision overall is kept.
+   */
+  private static File findCurrentRevision(List<File> revisions, String refreshCount) {
+    File current = null;
+    long[] best = null;
+    for (File revision : revisions) {
+      final Matcher matcher = REVISION_DIR.matcher(revision.getName());
+      matcher.matches();
+      final long refresh = Long.parseLong(matcher.group(1));
+      final long number = Long.parseLong(matcher.group(2));
+      final long preferred = matcher.group(1).equals(refreshCount) ? 1 : 0;
+      final long[] key = {preferred, refresh, number};
+      if (best == null || compare(key, best) > 0) {
+        best = key;
+        current = revision;
+      }
+    }
+    return current;
+  }
+
+  private static int compare(long[] a, long[] b) {
+    for (int i = 0; i < a.length; i += 1) {
+      if (a[i] != b[i]) {
+        return Long.compare(a[i], b[i]);
+      }
+    }
+    return 0;
+  }
+
+  private static long size(Path path) throws IOException {
+    final AtomicLong size = new AtomicLong();
+    Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        size.addAndGet(attrs.size());
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    return size.get();
+  }
+
+  private static void delete(Path path) throws IOException {
+    Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+        if (exc != null) {
+          throw exc;
+        }
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+}
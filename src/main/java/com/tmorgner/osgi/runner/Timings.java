@@ -0,0 +1,33 @@
+package com.tmorgner.osgi.runner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The durations of the launcher's phases, such as the boot deploy pass, the framework start and
+ * deploy passes requested through the {@link ControlChannel}, in the order they were recorded.
+ */
+public class Timings {
+  private final long createdNanos;
+  private final List<String> entries;
+
+  public Timings() {
+    this.createdNanos = System.nanoTime();
+    this.entries = new ArrayList<>();
+  }
+
+  /**
+   * @param phase     the name of the phase.
+   * @param startNanos the {@link System#nanoTime()} at which the phase started.
+   */
+  public synchronized void record(String phase, long startNanos) {
+    final long now = System.nanoTime();
+    entries.add(String.format("%-24s %8d ms  (at +%d ms)", phase,
+        TimeUnit.NANOSECONDS.toMillis(now - startNanos), TimeUnit.NANOSECONDS.toMillis(startNanos - createdNanos)));
+  }
+
+  public synchronized List<String> getEntries() {
+    return new ArrayList<>(entries);
+  }
+}
@@ -0,0 +1,20 @@
+package com.tmorgner.osgi.runner;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Access to virtual threads. This is the variant for JVMs without virtual threads; the multi-release
+ * section of the launcher jar contains a variant for Java 21 and newer.
+ */
+final class VirtualThreads {
+  private VirtualThreads() {
+  }
+
+  /**
+   * @return an executor that runs each task on a new virtual thread, or null if the JVM does not
+   * provide virtual threads.
+   */
+  static ExecutorService newExecutor() {
+    return null;
+  }
+}
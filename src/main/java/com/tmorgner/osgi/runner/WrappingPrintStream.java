@@ -1,29 +1,115 @@
 package com.tmorgner.osgi.runner;
 
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleReference;
+
 import java.io.IOException;
 import java.io.PrintStream;
 
+/**
+ * The launcher's <tt>System.out</tt>. Every line written is attributed to the bundle whose code
+ * wrote it, found through the class loaders of the calling classes, and counted in the
+ * {@link ConsoleStatistics}. If a rate limit is configured, lines exceeding a bundle's limit are
+ * dropped and a summary of the suppressed output is printed once the bundle may write again.
+ * <p>
+ * The decision to attribute and admit output is made at the start of each line, so lines written
+ * in several calls by the same thread are never torn apart.
+ */
 public class WrappingPrintStream extends PrintStream {
+  private static class LineState {
+    private ConsoleStatistics.Source source;
+    private boolean inLine;
+    private boolean suppressed;
+  }
+
   private PrintStream out;
+  private final ConsoleStatistics statistics;
+  private final ThreadLocal<LineState> lineState;
 
   public WrappingPrintStream(PrintStream out) {
     super(out);
     this.out = out;
+    this.statistics = new ConsoleStatistics();
+    this.lineState = ThreadLocal.withInitial(LineState::new);
+  }
+
+  public ConsoleStatistics getStatistics() {
+    return statistics;
   }
 
   @Override
   public void write(int b) {
-    out.write(b);
+    write(new byte[]{(byte) b}, 0, 1);
   }
 
   @Override
   public void write(byte[] b) throws IOException {
-    out.write(b);
+    write(b, 0, b.length);
   }
 
   @Override
   public void write(byte[] b, int off, int len) {
-    out.write(b, off, len);
+    final LineState state = lineState.get();
+    final int end = off + len;
+    int start = off;
+    while (start < end) {
+      if (!state.inLine) {
+        beginLine(state);
+      }
+      int lineEnd = start;
+      while (lineEnd < end && b[lineEnd] != '\n') {
+        lineEnd += 1;
+      }
+      final boolean complete = lineEnd < end;
+      final int segmentLength = (complete ? lineEnd + 1 : end) - start;
+      if (state.suppressed) {
+        state.source.countSuppressed(segmentLength, complete);
+      } else {
+        state.source.countWritten(segmentLength, complete);
+        out.write(b, start, segmentLength);
+      }
+      state.inLine = !complete;
+      start += segmentLength;
+    }
+  }
+
+  private void beginLine(LineState state) {
+    state.inLine = true;
+    state.source = statistics.getSource(findCaller());
+    state.suppressed = !statistics.tryAcquire(state.source);
+    if (!state.suppressed) {
+      printSuppressedSummary(state.source);
+    }
+  }
+
+  private void printSuppressedSummary(ConsoleStatistics.Source source) {
+    final String summary = source.takeSuppressedSummary();
+    if (summary != null) {
+      out.println(summary);
+    }
+  }
+
+  private String findCaller() {
+    for (Class<?> c : CallerClasses.get()) {
+      final ClassLoader loader = c.getClassLoader();
+      if (loader instanceof BundleReference) {
+        final Bundle bundle = ((BundleReference) loader).getBundle();
+        if (bundle != null) {
+          final String name = bundle.getSymbolicName();
+          return (name != null ? name : bundle.getLocation()) + " [" + bundle.getBundleId() + "]";
+        }
+      }
+    }
+    return ConsoleStatistics.SYSTEM_SOURCE;
+  }
+
+  /**
+   * Prints the summaries of all output suppressed since the affected bundles last wrote to the console.
+   */
+  public void flushSuppressed() {
+    for (ConsoleStatistics.Source source : statistics.getSources()) {
+      printSuppressedSummary(source);
+    }
   }
 
   @Override
@@ -33,6 +119,7 @@ public class WrappingPrintStream extends PrintStream {
 
   @Override
   public void close() {
+    flushSuppressed();
     out.close();
   }
 }
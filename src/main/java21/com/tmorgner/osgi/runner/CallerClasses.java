@@ -0,0 +1,18 @@
+package com.tmorgner.osgi.runner;
+
+/**
+ * Access to the classes on the current call stack. This is the variant for Java 21 and newer.
+ */
+final class CallerClasses {
+  private static final StackWalker WALKER = StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE);
+
+  private CallerClasses() {
+  }
+
+  /**
+   * @return the classes on the current call stack, innermost first.
+   */
+  static Class<?>[] get() {
+    return WALKER.walk(frames -> frames.map(StackWalker.StackFrame::getDeclaringClass).toArray(Class<?>[]::new));
+  }
+}
@@ -0,0 +1,19 @@
+package com.tmorgner.osgi.runner;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to virtual threads. This is the variant for Java 21 and newer.
+ */
+final class VirtualThreads {
+  private VirtualThreads() {
+  }
+
+  /**
+   * @return an executor that runs each task on a new virtual thread.
+   */
+  static ExecutorService newExecutor() {
+    return Executors.newVirtualThreadPerTaskExecutor();
+  }
+}
@@ -0,0 +1,46 @@
+package com.tmorgner.osgi.runner;
+
+import org.easymock.EasyMock;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.FrameworkEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ActivationCostTrackerTest {
+  private Bundle createBundle(long id, String name) {
+    final Bundle bundle = EasyMock.createNiceMock(Bundle.class);
+    EasyMock.expect(bundle.getBundleId()).andStubReturn(id);
+    EasyMock.expect(bundle.getSymbolicName()).andStubReturn(name);
+    EasyMock.replay(bundle);
+    return bundle;
+  }
+
+  @Test
+  public void activationsAreReportedWhenTheFrameworkHasStarted() {
+    final List<String> lines = new ArrayList<>();
+    final ActivationCostTracker tracker = new ActivationCostTracker(lines::add);
+    final Bundle ok = createBundle(1, "ok");
+    final Bundle failing = createBundle(2, "failing");
+    final Bundle unseen = createBundle(3, "unseen");
+    final Bundle system = createBundle(0, "system");
+
+    tracker.bundleChanged(new BundleEvent(BundleEvent.STARTING, ok));
+    tracker.bundleChanged(new BundleEvent(BundleEvent.STARTED, ok));
+    tracker.bundleChanged(new BundleEvent(BundleEvent.STARTING, failing));
+    tracker.bundleChanged(new BundleEvent(BundleEvent.STOPPED, failing));
+    // events without a preceding STARTING are not activations.
+    tracker.bundleChanged(new BundleEvent(BundleEvent.STARTED, unseen));
+    tracker.bundleChanged(new BundleEvent(BundleEvent.STOPPED, ok));
+    Assert.assertTrue(lines.isEmpty());
+
+    tracker.frameworkEvent(new FrameworkEvent(FrameworkEvent.STARTED, system, null));
+    Assert.assertEquals("Activation costs for 2 bundles:", lines.get(0));
+    Assert.assertEquals(4, lines.size());
+    Assert.assertTrue(lines.stream().anyMatch(l -> l.endsWith("  ok")));
+    Assert.assertTrue(lines.stream().anyMatch(l -> l.endsWith("  failing (failed)")));
+  }
+}
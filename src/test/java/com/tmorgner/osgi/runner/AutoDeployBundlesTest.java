@@ -4,18 +4,29 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.hamcrest.collection.IsIterableContainingInAnyOrder;
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 public class AutoDeployBundlesTest {
   private Logger logger = LogManager.getLogger();
 
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
   private String getBaseDirRaw() {
     final String basedir = System.getProperty("basedir");
     if (basedir != null) {
@@ -81,4 +92,55 @@ public class AutoDeployBundlesTest {
     b.scan(10, new File("whatever"));
     Assert.assertEquals(0, b.getBundles().size());
   }
+
+  private File createFile(String path) throws IOException {
+    final File file = new File(folder.getRoot(), path);
+    file.getParentFile().mkdirs();
+    Files.write(file.toPath(), new byte[0]);
+    return file;
+  }
+
+  @Test
+  public void scanPrunesExcludedDirectories() throws IOException {
+    final File kept = createFile("rc20-core/core.jar");
+    createFile("rc20-core/.git/objects/pack.jar");
+    createFile("backup/old.jar");
+    createFile("rc30-docs/api/index.jar");
+    final File filtered = createFile("rc30-docs/feature.jar");
+    createFile("rc30-docs/feature-sources.jar");
+    Files.write(new File(folder.getRoot(), "rc30-docs/" + ScanFilter.IGNORE_FILE_VALUE).toPath(),
+        Arrays.asList("# documentation", "api/", "*-sources.jar"), StandardCharsets.UTF_8);
+
+    final Map<String, String> config = new HashMap<>();
+    config.put(AutoProcessor.AUTO_DEPLOY_EXCLUDE_PROPERTY, ".git/, backup");
+
+    final List<File> listed = new ArrayList<>();
+    AutoDeployBundles b = new AutoDeployBundles(logger::debug, ScanFilter.fromConfig(config)) {
+      @Override
+      protected File[] listFiles(File dir) {
+        listed.add(dir);
+        return super.listFiles(dir);
+      }
+    };
+    b.scan(10, folder.getRoot());
+
+    final List<BundlesWithRunLevel> bundles = b.getBundles();
+    Assert.assertEquals(2, bundles.size());
+    Assert.assertEquals(Arrays.asList(kept), find(bundles, 20).getFiles());
+    Assert.assertEquals(Arrays.asList(filtered), find(bundles, 30).getFiles());
+    Assert.assertEquals(3, listed.size());
+  }
+
+  @Test
+  public void scanAppliesIncludes() throws IOException {
+    final File kept = createFile("rc20/com.example.core.jar");
+    createFile("rc20/org.other.jar");
+
+    final Map<String, String> config = new HashMap<>();
+    config.put(AutoProcessor.AUTO_DEPLOY_INCLUDE_PROPERTY, "com.example.*");
+
+    AutoDeployBundles b = new AutoDeployBundles(logger::debug, ScanFilter.fromConfig(config));
+    b.scan(10, folder.getRoot());
+    Assert.assertEquals(Arrays.asList(kept), find(b.getBundles(), 20).getFiles());
+  }
 }
@@ -0,0 +1,234 @@
+package com.tmorgner.osgi.runner;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.easymock.EasyMock;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.startlevel.BundleStartLevel;
+import org.osgi.framework.startlevel.FrameworkStartLevel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+public class AutoProcessorTest {
+  private Logger logger = LogManager.getLogger();
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private BundleContext createContext(Bundle... installed) {
+    final FrameworkStartLevel fsl = EasyMock.createNiceMock(FrameworkStartLevel.class);
+    EasyMock.expect(fsl.getInitialBundleStartLevel()).andStubReturn(10);
+    final Bundle system = EasyMock.createNiceMock(Bundle.class);
+    EasyMock.expect(system.getBundleId()).andStubReturn(0L);
+    EasyMock.expect(system.getLocation()).andStubReturn("System Bundle");
+    EasyMock.expect(system.adapt(FrameworkStartLevel.class)).andStubReturn(fsl);
+
+    final Bundle[] bundles = Arrays.copyOf(new Bundle[]{system}, installed.length + 1);
+    System.arraycopy(installed, 0, bundles, 1, installed.length);
+
+    final BundleContext context = EasyMock.createNiceMock(BundleContext.class);
+    EasyMock.expect(context.getBundle(0)).andStubReturn(system);
+    EasyMock.expect(context.getBundles()).andStubReturn(bundles);
+    EasyMock.replay(fsl, system, context);
+    return context;
+  }
+
+  private Bundle createBundle(long id, File file, int startLevel) {
+    final BundleStartLevel bsl = EasyMock.createNiceMock(BundleStartLevel.class);
+    EasyMock.expect(bsl.getStartLevel()).andStubReturn(startLevel);
+    final Bundle bundle = EasyMock.createNiceMock(Bundle.class);
+    EasyMock.expect(bundle.getBundleId()).andStubReturn(id);
+    EasyMock.expect(bundle.getLocation()).andStubReturn(file.toURI().toString());
+    EasyMock.expect(bundle.adapt(BundleStartLevel.class)).andStubReturn(bsl);
+    EasyMock.replay(bsl, bundle);
+    return bundle;
+  }
+
+  private Map<String, String> createConfig(String actions) {
+    final Map<String, String> config = new HashMap<>();
+    config.put(AutoProcessor.AUTO_DEPLOY_ACTION_PROPERTY, actions);
+    config.put(AutoProcessor.AUTO_DEPLOY_DIR_PROPERTY, Paths.get("src", "test", "data").toString());
+    return config;
+  }
+
+  @Test
+  public void planComparesScanWithInstalledBundles() {
+    final File installedFile = Paths.get("src", "test", "data", "empty.jar").toFile().getAbsoluteFile();
+    final File removedFile = Paths.get("src", "test", "data", "removed.jar").toFile().getAbsoluteFile();
+    final Bundle installed = createBundle(1, installedFile, 10);
+    final Bundle removed = createBundle(2, removedFile, 10);
+
+    final DeployPlan plan = new AutoProcessor(logger::debug).plan(
+        createConfig("install,update,uninstall,start"), createContext(installed, removed));
+
+    Assert.assertEquals(8, plan.getEntries().size());
+    Assert.assertEquals(Arrays.asList(removed), plan.getUninstalls());
+    for (DeployPlan.Entry entry : plan.getEntries()) {
+      if (entry.getLocation().equals(installedFile.toURI().toString())) {
+        Assert.assertSame(installed, entry.getInstalledBundle());
+        Assert.assertTrue(entry.isUpdate());
+        Assert.assertFalse(entry.isInstall());
+      } else {
+        Assert.assertNull(entry.getInstalledBundle());
+        Assert.assertTrue(entry.isInstall());
+      }
+    }
+  }
+
+  @Test
+  public void planOutputIsTabSeparated() {
+    final File installedFile = Paths.get("src", "test", "data", "empty.jar").toFile().getAbsoluteFile();
+    final Bundle installed = createBundle(1, installedFile, 10);
+
+    final DeployPlan plan = new AutoProcessor(logger::debug).plan(
+        createConfig("install,start"), createContext(installed));
+
+    final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    plan.write(new PrintStream(bout, true));
+    final List<String> lines = Arrays.stream(bout.toString().split("\\r?\\n"))
+        .filter(l -> !l.startsWith("#"))
+        .collect(Collectors.toList());
+
+    // the installed bundle already has the right start level, so only the 7 new
+    // bundles change their start level. All 8 bundles are started.
+    Assert.assertEquals(7, lines.stream().filter(l -> l.startsWith(DeployPlan.OP_INSTALL + "\t")).count());
+    Assert.assertEquals(7, lines.stream().filter(l -> l.startsWith(DeployPlan.OP_STARTLEVEL + "\t")).count());
+    Assert.assertEquals(8, lines.stream().filter(l -> l.startsWith(DeployPlan.OP_START + "\t")).count());
+    Assert.assertEquals(0, lines.stream().filter(l -> l.startsWith(DeployPlan.OP_UPDATE + "\t")).count());
+    for (String line : lines) {
+      Assert.assertEquals(line, 4, line.split("\t", -1).length);
+    }
+  }
+
+  @Test
+  public void planSelectsLazyBundlesByRunLevelAndPattern() {
+    final Map<String, String> config = createConfig("install,start");
+    config.put(AutoProcessor.AUTO_DEPLOY_LAZY_STARTLEVELS_PROPERTY, "30");
+    config.put(AutoProcessor.AUTO_DEPLOY_LAZY_INCLUDE_PROPERTY, "second.jar");
+
+    final DeployPlan plan = new AutoProcessor(logger::debug).plan(config, createContext());
+
+    for (DeployPlan.Entry entry : plan.getEntries()) {
+      final boolean expected = entry.getRunLevel() == 30 || entry.getFile().getName().equals("second.jar");
+      Assert.assertEquals(entry.getLocation(), expected, entry.isLazyActivation());
+    }
+    Assert.assertTrue(plan.getEntries().stream().anyMatch(DeployPlan.Entry::isLazyActivation));
+    Assert.assertTrue(plan.getEntries().stream().anyMatch(e -> !e.isLazyActivation()));
+  }
+
+  @Test
+  public void processStreamsTheSameEntriesAsPlan() {
+    final File removedFile = Paths.get("src", "test", "data", "removed.jar").toFile().getAbsoluteFile();
+    final Map<String, String> config = createConfig("install,uninstall");
+
+    final DeployPlan plan = new AutoProcessor(logger::debug).plan(config, createContext(createBundle(2, removedFile, 10)));
+    final AutoProcessor processor = new AutoProcessor(logger::debug);
+    final Bundle removed = createBundle(2, removedFile, 10);
+    processor.process(config, createContext(removed));
+    final DeployPlan processed = processor.getProcessedPlan();
+
+    Assert.assertEquals(plan.getEntries().stream().map(DeployPlan.Entry::getLocation).collect(Collectors.toList()),
+        processed.getEntries().stream().map(DeployPlan.Entry::getLocation).collect(Collectors.toList()));
+    Assert.assertEquals(Arrays.asList(removed), processed.getUninstalls());
+  }
+
+  @Test
+  public void fingerprintReportsOnlyChangedLocations() {
+    final File removedFile = Paths.get("src", "test", "data", "removed.jar").toFile().getAbsoluteFile();
+    final Map<String, String> config = createConfig("install,uninstall");
+    final DeployPlan plan = new AutoProcessor(logger::debug).plan(config, createContext());
+    final DeployFingerprint fingerprint = DeployFingerprint.of(plan);
+
+    Assert.assertTrue(fingerprint.getChangedLocations(plan).isEmpty());
+    final DeployPlan next = new AutoProcessor(logger::debug).plan(config, createContext(createBundle(2, removedFile, 10)));
+    Assert.assertEquals(Collections.singleton(removedFile.toURI().toString()), fingerprint.getChangedLocations(next));
+    Assert.assertEquals(plan.getEntries().size(), DeployFingerprint.empty().getChangedLocations(plan).size());
+  }
+
+  @Test
+  public void processInstallsTheOptimizedCopies() throws Exception {
+    final Map<String, String> config = createConfig("install");
+    config.put(AutoProcessor.AUTO_DEPLOY_OPTIMIZE_PROPERTY, "true");
+    config.put(AutoProcessor.AUTO_DEPLOY_OPTIMIZE_DIR_PROPERTY, folder.getRoot().getPath());
+    final DeployPlan plan = new AutoProcessor(logger::debug).plan(config, createContext());
+
+    final List<String> installed = new ArrayList<>();
+    final FrameworkStartLevel fsl = EasyMock.createNiceMock(FrameworkStartLevel.class);
+    final Bundle system = EasyMock.createNiceMock(Bundle.class);
+    EasyMock.expect(system.adapt(FrameworkStartLevel.class)).andStubReturn(fsl);
+    final BundleContext context = EasyMock.createNiceMock(BundleContext.class);
+    EasyMock.expect(context.getBundle(0)).andStubReturn(system);
+    EasyMock.expect(context.getBundles()).andStubReturn(new Bundle[]{system});
+    EasyMock.expect(context.installBundle(EasyMock.anyString(), EasyMock.anyObject(InputStream.class)))
+        .andStubAnswer(() -> {
+          installed.add((String) EasyMock.getCurrentArguments()[0]);
+          return null;
+        });
+    EasyMock.expect(context.installBundle(EasyMock.anyString()))
+        .andStubThrow(new AssertionError("installed from the original file"));
+    EasyMock.replay(fsl, system, context);
+
+    Assert.assertTrue(new AutoProcessor(logger::debug).process(config, context));
+    Assert.assertEquals(plan.getEntries().size(), installed.size());
+    Assert.assertEquals(plan.getEntries().stream().map(DeployPlan.Entry::getLocation).sorted().collect(Collectors.toList()),
+        installed.stream().sorted().collect(Collectors.toList()));
+    final File[] copies = folder.getRoot().listFiles((dir, name) -> name.endsWith(".jar"));
+    Assert.assertNotNull(copies);
+    Assert.assertTrue(copies.length > 0);
+  }
+
+  @Test
+  public void initialStartLevelIsSetOncePerRunLevelGroup() throws Exception {
+    final Map<String, String> config = createConfig("install");
+    final DeployPlan plan = new AutoProcessor(logger::debug).plan(config, createContext());
+    final long groups = plan.getEntries().stream().map(DeployPlan.Entry::getRunLevel).distinct().count();
+    Assert.assertTrue(groups > 1);
+
+    final List<Integer> initialLevels = new ArrayList<>();
+    final FrameworkStartLevel fsl = EasyMock.createNiceMock(FrameworkStartLevel.class);
+    EasyMock.expect(fsl.getInitialBundleStartLevel()).andStubReturn(1);
+    fsl.setInitialBundleStartLevel(EasyMock.anyInt());
+    EasyMock.expectLastCall().andStubAnswer(() -> {
+      initialLevels.add((Integer) EasyMock.getCurrentArguments()[0]);
+      return null;
+    });
+    final Bundle system = EasyMock.createNiceMock(Bundle.class);
+    EasyMock.expect(system.adapt(FrameworkStartLevel.class)).andStubReturn(fsl);
+    final BundleContext context = EasyMock.createNiceMock(BundleContext.class);
+    EasyMock.expect(context.getBundle(0)).andStubReturn(system);
+    EasyMock.expect(context.getBundles()).andStubReturn(new Bundle[]{system});
+    EasyMock.replay(fsl, system, context);
+
+    Assert.assertTrue(new AutoProcessor(logger::debug).execute(plan, context));
+    // one change per group, and the original level restored at the end.
+    Assert.assertEquals(groups + 1, initialLevels.size());
+    Assert.assertEquals(Integer.valueOf(1), initialLevels.get(initialLevels.size() - 1));
+
+    // streamed installs switch the level when the scan moves to another run level.
+    initialLevels.clear();
+    final AutoProcessor processor = new AutoProcessor(logger::debug);
+    Assert.assertTrue(processor.process(config, context));
+    Assert.assertEquals(Integer.valueOf(1), initialLevels.get(initialLevels.size() - 1));
+    for (int i = 1; i < initialLevels.size(); i += 1) {
+      Assert.assertNotEquals(initialLevels.get(i - 1), initialLevels.get(i));
+    }
+    Assert.assertTrue(initialLevels.containsAll(processor.getProcessedPlan().getEntries().stream().map(DeployPlan.Entry::getRunLevel)
+        .filter(level -> level != 1).collect(Collectors.toList())));
+  }
+}
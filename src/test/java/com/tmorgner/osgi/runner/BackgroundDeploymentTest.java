@@ -0,0 +1,142 @@
+package com.tmorgner.osgi.runner;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.easymock.EasyMock;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.startlevel.BundleStartLevel;
+import org.osgi.framework.startlevel.FrameworkStartLevel;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BackgroundDeploymentTest {
+  private Logger logger = LogManager.getLogger();
+  private final List<Object> mocks = new ArrayList<>();
+  private final List<FrameworkListener> listeners = new CopyOnWriteArrayList<>();
+  private Bundle system;
+  private FrameworkStartLevel fsl;
+
+  private <T> T mock(Class<T> type) {
+    final T mock = EasyMock.createNiceMock(type);
+    mocks.add(mock);
+    return mock;
+  }
+
+  private Bundle createBundle(long id, int level) {
+    final Bundle bundle = mock(Bundle.class);
+    final BundleStartLevel bsl = mock(BundleStartLevel.class);
+    EasyMock.expect(bsl.getStartLevel()).andStubReturn(level);
+    EasyMock.expect(bundle.getBundleId()).andStubReturn(id);
+    EasyMock.expect(bundle.getHeaders()).andStubReturn(new Hashtable<>());
+    EasyMock.expect(bundle.adapt(BundleStartLevel.class)).andStubReturn(bsl);
+    return bundle;
+  }
+
+  /**
+   * A framework whose start level changes as soon as it is set.
+   */
+  private BundleContext createContext() {
+    fsl = mock(FrameworkStartLevel.class);
+    EasyMock.expect(fsl.getStartLevel()).andStubReturn(10);
+    EasyMock.expect(fsl.getInitialBundleStartLevel()).andStubReturn(1);
+    system = mock(Bundle.class);
+    EasyMock.expect(system.getBundleId()).andStubReturn(0L);
+    EasyMock.expect(system.getState()).andStubReturn(Bundle.ACTIVE);
+    EasyMock.expect(system.adapt(FrameworkStartLevel.class)).andStubReturn(fsl);
+    final BundleContext context = mock(BundleContext.class);
+    EasyMock.expect(context.getBundle(0)).andStubReturn(system);
+    EasyMock.expect(context.getBundles()).andStubReturn(new Bundle[]{system});
+    context.addFrameworkListener(EasyMock.anyObject());
+    EasyMock.expectLastCall().andStubAnswer(() -> listeners.add((FrameworkListener) EasyMock.getCurrentArguments()[0]));
+    context.removeFrameworkListener(EasyMock.anyObject());
+    EasyMock.expectLastCall().andStubAnswer(() -> listeners.remove(EasyMock.getCurrentArguments()[0]));
+    return context;
+  }
+
+  private void fireStartLevelChanged() {
+    for (FrameworkListener listener : listeners) {
+      listener.frameworkEvent(new FrameworkEvent(FrameworkEvent.STARTLEVEL_CHANGED, system, null));
+    }
+  }
+
+  private DeployPlan createPlan() {
+    final DeployPlan plan = new DeployPlan(Collections.singletonList(AutoProcessor.AUTO_DEPLOY_INSTALL_VALUE));
+    plan.add(new DeployPlan.Entry(new File("core.jar"), 5, null, true, false));
+    plan.add(new DeployPlan.Entry(new File("edge.jar"), 10, null, true, false));
+    plan.add(new DeployPlan.Entry(new File("app.jar"), 20, null, true, false));
+    return plan;
+  }
+
+  @Test(timeout = 10000)
+  public void installsTheBundlesAboveTheThresholdAndRaisesTheStartLevel() throws Exception {
+    final DeployPlan plan = createPlan();
+    final DeployPlan foreground = plan.upTo(10);
+    final DeployPlan background = plan.above(10);
+    Assert.assertEquals(2, foreground.getEntries().size());
+    Assert.assertEquals(1, background.getEntries().size());
+    Assert.assertEquals(20, background.getEntries().get(0).getRunLevel());
+
+    final BundleContext context = createContext();
+    final Bundle app = createBundle(1, 20);
+    EasyMock.expect(context.installBundle(background.getEntries().get(0).getLocation())).andReturn(app).once();
+    fsl.setStartLevel(30);
+    EasyMock.expectLastCall().andAnswer(() -> {
+      fireStartLevelChanged();
+      return null;
+    }).once();
+    system.stop();
+    EasyMock.expectLastCall().andThrow(new AssertionError("framework stopped")).anyTimes();
+    EasyMock.replay(mocks.toArray());
+
+    final BackgroundDeployment deployment =
+        new BackgroundDeployment(logger::debug, background, 10, 30, null, 1, true);
+    final AtomicInteger completed = new AtomicInteger();
+    deployment.setOnComplete(c -> completed.incrementAndGet());
+    deployment.start(context);
+    deployment.join();
+
+    Assert.assertTrue(deployment.isSuccess());
+    Assert.assertEquals(1, completed.get());
+    EasyMock.verify(context, fsl);
+    Assert.assertTrue(listeners.isEmpty());
+  }
+
+  @Test(timeout = 10000)
+  public void failedDeploymentStopsTheFramework() throws Exception {
+    final DeployPlan background = createPlan().above(10);
+    final BundleContext context = createContext();
+    EasyMock.expect(context.installBundle(EasyMock.anyString()))
+        .andThrow(new BundleException("broken bundle")).once();
+    fsl.setStartLevel(30);
+    EasyMock.expectLastCall().andAnswer(() -> {
+      fireStartLevelChanged();
+      return null;
+    }).once();
+    system.stop();
+    EasyMock.expectLastCall().once();
+    EasyMock.replay(mocks.toArray());
+
+    final BackgroundDeployment deployment =
+        new BackgroundDeployment(logger::debug, background, 10, 30, null, 1, true);
+    final AtomicInteger completed = new AtomicInteger();
+    deployment.setOnComplete(c -> completed.incrementAndGet());
+    deployment.start(context);
+    deployment.join();
+
+    Assert.assertFalse(deployment.isSuccess());
+    Assert.assertEquals(0, completed.get());
+    EasyMock.verify(system, context, fsl);
+  }
+}
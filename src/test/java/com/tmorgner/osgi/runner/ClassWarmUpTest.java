@@ -0,0 +1,63 @@
+package com.tmorgner.osgi.runner;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.easymock.EasyMock;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+
+import java.io.File;
+import java.util.Arrays;
+
+public class ClassWarmUpTest {
+  private Logger logger = LogManager.getLogger();
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void profileKeepsTheLoadOrderPerBundle() throws Exception {
+    final ClassLoadProfile profile = new ClassLoadProfile();
+    profile.add("a", "a.Z");
+    profile.add("b", "b.X");
+    profile.add("a", "a.Y");
+    profile.add("a", "a.Z");
+    final File file = new File(folder.getRoot(), "cache.class-profile");
+    profile.save(file);
+
+    final ClassLoadProfile loaded = ClassLoadProfile.load(file);
+    Assert.assertEquals(3, loaded.size());
+    Assert.assertEquals(Arrays.asList("a.Z", "a.Y"), loaded.getClasses("a"));
+    Assert.assertEquals(Arrays.asList("a/Z.class", "a/Y.class"), loaded.getEntryNames("a"));
+    Assert.assertTrue(ClassLoadProfile.load(new File(folder.getRoot(), "missing")).getSymbolicNames().isEmpty());
+  }
+
+  @Test(timeout = 10000)
+  public void warmUpSkipsBundlesWaitingForActivation() throws Exception {
+    final ClassLoadProfile profile = new ClassLoadProfile();
+    profile.add("active", "active.A");
+    profile.add("active", "active.Missing");
+    profile.add("lazy", "lazy.L");
+
+    final Bundle active = EasyMock.createMock(Bundle.class);
+    EasyMock.expect(active.getState()).andStubReturn(Bundle.ACTIVE);
+    EasyMock.expect(active.getSymbolicName()).andStubReturn("active");
+    EasyMock.<Class<?>>expect(active.loadClass("active.A")).andReturn(Object.class);
+    EasyMock.expect(active.loadClass("active.Missing")).andThrow(new ClassNotFoundException("active.Missing"));
+    final Bundle lazy = EasyMock.createMock(Bundle.class);
+    EasyMock.expect(lazy.getState()).andStubReturn(Bundle.STARTING);
+    EasyMock.expect(lazy.getSymbolicName()).andStubReturn("lazy");
+    final BundleContext context = EasyMock.createNiceMock(BundleContext.class);
+    EasyMock.expect(context.getBundles()).andStubReturn(new Bundle[]{active, lazy});
+    EasyMock.replay(active, lazy, context);
+
+    final ClassWarmUp warmUp = new ClassWarmUp(logger::debug, profile, 2, 5000);
+    warmUp.start(context);
+    warmUp.join();
+    EasyMock.verify(active, lazy);
+  }
+}
@@ -0,0 +1,119 @@
+package com.tmorgner.osgi.runner;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.easymock.EasyMock;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.launch.Framework;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Properties;
+
+public class ControlChannelTest {
+  private Logger logger = LogManager.getLogger();
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Framework createFramework() {
+    final Bundle system = EasyMock.createNiceMock(Bundle.class);
+    EasyMock.expect(system.getBundleId()).andStubReturn(0L);
+    EasyMock.expect(system.getState()).andStubReturn(Bundle.ACTIVE);
+    EasyMock.expect(system.getSymbolicName()).andStubReturn("system");
+    EasyMock.expect(system.getLocation()).andStubReturn("System Bundle");
+    final BundleContext context = EasyMock.createNiceMock(BundleContext.class);
+    EasyMock.expect(context.getBundle(0)).andStubReturn(system);
+    EasyMock.expect(context.getBundles()).andStubReturn(new Bundle[]{system});
+    final Framework framework = EasyMock.createNiceMock(Framework.class);
+    EasyMock.expect(framework.getBundleContext()).andStubReturn(context);
+    EasyMock.expect(framework.getState()).andStubReturn(Bundle.ACTIVE);
+    EasyMock.replay(system, context, framework);
+    return framework;
+  }
+
+  @Test(timeout = 10000)
+  public void commandsRequireTheToken() throws Exception {
+    final File controlFile = new File(folder.getRoot(), "cache.control");
+    final ControlChannel channel = new ControlChannel(createFramework(), new HashMap<>(), new Timings(),
+        logger::debug, controlFile);
+    final int port = channel.start(0);
+    try {
+      final Properties properties = new Properties();
+      try (InputStream in = new FileInputStream(controlFile)) {
+        properties.load(in);
+      }
+      Assert.assertEquals(String.valueOf(port), properties.getProperty("port"));
+
+      try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+        final PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        out.println("status");
+        Assert.assertEquals("ERROR not authorized", in.readLine());
+      }
+
+      try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+        final PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        out.println("auth " + properties.getProperty("token"));
+        Assert.assertEquals("OK", in.readLine());
+        out.println("status");
+        Assert.assertTrue(in.readLine().startsWith("# id"));
+        Assert.assertEquals("0\tACTIVE\t\tsystem\tSystem Bundle", in.readLine());
+        Assert.assertEquals("OK", in.readLine());
+        out.println("unknown");
+        Assert.assertEquals("ERROR unknown command unknown", in.readLine());
+      }
+    } finally {
+      channel.close();
+    }
+    Assert.assertFalse(controlFile.exists());
+  }
+
+  @Test(timeout = 10000)
+  public void deployPassesWaitForTheRunningPass() throws Exception {
+    final File controlFile = new File(folder.getRoot(), "cache.control");
+    final ControlChannel channel = new ControlChannel(createFramework(), new HashMap<>(), new Timings(),
+        logger::debug, controlFile);
+    final int port = channel.start(0);
+    try {
+      final Properties properties = new Properties();
+      try (InputStream in = new FileInputStream(controlFile)) {
+        properties.load(in);
+      }
+      try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+        final PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        out.println("auth " + properties.getProperty("token"));
+        Assert.assertEquals("OK", in.readLine());
+
+        AutoProcessor.PASS_LOCK.lock();
+        try {
+          out.println("rescan");
+          Assert.assertEquals("Waiting for the running deploy pass to finish.", in.readLine());
+          Thread.sleep(100);
+          Assert.assertFalse(in.ready());
+        } finally {
+          AutoProcessor.PASS_LOCK.unlock();
+        }
+        Assert.assertEquals("Auto-Deploy: No auto-deploy actions defined.", in.readLine());
+        Assert.assertEquals("OK", in.readLine());
+      }
+    } finally {
+      channel.close();
+    }
+  }
+}
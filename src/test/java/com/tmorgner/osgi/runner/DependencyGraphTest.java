@@ -0,0 +1,88 @@
+package com.tmorgner.osgi.runner;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Constants;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class DependencyGraphTest {
+  private Logger logger = LogManager.getLogger();
+
+  private static class Node {
+    private final String name;
+    private final Map<String, String> headers;
+
+    Node(String name, String... headers) {
+      this.name = name;
+      this.headers = new HashMap<>();
+      this.headers.put(Constants.BUNDLE_SYMBOLICNAME, name + ";singleton:=true");
+      for (int i = 0; i < headers.length; i += 2) {
+        this.headers.put(headers[i], headers[i + 1]);
+      }
+    }
+
+    String getHeader(String name) {
+      return headers.get(name);
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  private List<String> order(Node... nodes) {
+    final List<String> result = new ArrayList<>();
+    for (Node node : DependencyGraph.build(Arrays.asList(nodes), Node::getHeader).topologicalOrder(logger::debug)) {
+      result.add(node.name);
+    }
+    return result;
+  }
+
+  @Test
+  public void providersComeFirst() {
+    final Node api = new Node("api", Constants.EXPORT_PACKAGE, "com.example.api;version=\"[1.0,2)\"");
+    final Node consumer = new Node("consumer",
+        Constants.IMPORT_PACKAGE, "com.example.api;version=\"[1.0,2)\",org.osgi.framework",
+        Constants.REQUIRE_BUNDLE, "impl");
+    final Node impl = new Node("impl", Constants.IMPORT_PACKAGE, "com.example.api");
+    final Node unrelated = new Node("unrelated");
+
+    Assert.assertEquals(Arrays.asList("unrelated", "api", "impl", "consumer"),
+        order(consumer, impl, unrelated, api));
+  }
+
+  @Test
+  public void fragmentsComeBeforeTheirHost() {
+    final Node host = new Node("host");
+    final Node fragment = new Node("fragment", Constants.FRAGMENT_HOST, "host;bundle-version=1.0");
+    Assert.assertEquals(Arrays.asList("fragment", "host"), order(host, fragment));
+  }
+
+  @Test
+  public void cyclesAreBrokenDeterministically() {
+    final Node a = new Node("a", Constants.EXPORT_PACKAGE, "a", Constants.IMPORT_PACKAGE, "b");
+    final Node b = new Node("b", Constants.EXPORT_PACKAGE, "b", Constants.IMPORT_PACKAGE, "a");
+    final Node c = new Node("c", Constants.IMPORT_PACKAGE, "a");
+    Assert.assertEquals(Arrays.asList("a", "b", "c"), order(a, b, c));
+    Assert.assertEquals(Arrays.asList("b", "a", "c"), order(b, a, c));
+  }
+
+  @Test
+  public void consumersOfACycleComeAfterTheWholeCycle() {
+    final Node app = new Node("app", Constants.IMPORT_PACKAGE, "p.a");
+    final Node pa = new Node("pa", Constants.EXPORT_PACKAGE, "p.a", Constants.IMPORT_PACKAGE, "p.b");
+    final Node pb = new Node("pb", Constants.EXPORT_PACKAGE, "p.b", Constants.IMPORT_PACKAGE, "p.a");
+    final Node leaf = new Node("leaf", Constants.IMPORT_PACKAGE, "p.c");
+    final Node pc = new Node("pc", Constants.EXPORT_PACKAGE, "p.c", Constants.IMPORT_PACKAGE, "p.b");
+    Assert.assertEquals(Arrays.asList("pa", "pb", "app"), order(app, pa, pb));
+    Assert.assertEquals(Arrays.asList("pa", "pb", "app", "pc", "leaf"), order(app, leaf, pa, pb, pc));
+  }
+}
@@ -0,0 +1,130 @@
+package com.tmorgner.osgi.runner;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.easymock.EasyMock;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.startlevel.FrameworkStartLevel;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Hashtable;
+
+public class DeployJournalTest {
+  private Logger logger = LogManager.getLogger();
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void interruptedPassIsResumedAndCompactedAfterwards() throws Exception {
+    final File a = folder.newFile("a.jar");
+    final File b = folder.newFile("b.jar");
+    Files.write(a.toPath(), new byte[10]);
+    Files.write(b.toPath(), new byte[20]);
+    final DeployPlan.Entry entryA = new DeployPlan.Entry(a, 1, null, true, false);
+    final DeployPlan.Entry entryB = new DeployPlan.Entry(b, 1, null, true, false);
+    final File file = new File(folder.getRoot(), "cache.deploy-journal");
+
+    final DeployJournal interrupted = DeployJournal.open(logger::debug, file);
+    interrupted.begin();
+    interrupted.record(DeployPlan.OP_INSTALL, entryA);
+    interrupted.abandon();
+    Assert.assertTrue(file.exists());
+
+    final DeployJournal resumed = DeployJournal.open(logger::debug, file);
+    Assert.assertTrue(resumed.isCompleted(entryA));
+    Assert.assertFalse(resumed.isCompleted(entryB));
+    Assert.assertFalse(resumed.isCompleted(new DeployPlan.Entry(a, 2, null, true, false)));
+
+    resumed.begin();
+    resumed.record(DeployPlan.OP_INSTALL, entryB);
+    resumed.end(Arrays.asList(entryA.getLocation(), entryB.getLocation()));
+    Assert.assertFalse(file.exists());
+    Assert.assertFalse(resumed.isCompleted(entryA));
+    Assert.assertFalse(DeployJournal.open(logger::debug, file).isCompleted(entryB));
+  }
+
+  @Test
+  public void failedPassIsAbandoned() throws Exception {
+    final File a = folder.newFile("a.jar");
+    final File file = new File(folder.getRoot(), "failed.deploy-journal");
+    final DeployJournal journal = DeployJournal.open(logger::debug, file);
+    final DeployPlan plan = new DeployPlan(Collections.singletonList(AutoProcessor.AUTO_DEPLOY_INSTALL_VALUE));
+    plan.setJournal(journal);
+    plan.add(new DeployPlan.Entry(a, 1, null, true, false));
+
+    final FrameworkStartLevel fsl = EasyMock.createNiceMock(FrameworkStartLevel.class);
+    final Bundle system = EasyMock.createNiceMock(Bundle.class);
+    EasyMock.expect(system.adapt(FrameworkStartLevel.class)).andStubReturn(fsl);
+    final BundleContext context = EasyMock.createNiceMock(BundleContext.class);
+    EasyMock.expect(context.getBundle(0)).andStubReturn(system);
+    EasyMock.expect(context.getBundles()).andStubReturn(new Bundle[]{system});
+    EasyMock.expect(context.installBundle(EasyMock.anyString())).andThrow(new IllegalStateException("framework stopped"));
+    EasyMock.replay(fsl, system, context);
+
+    try {
+      new AutoProcessor(logger::debug).execute(plan, context);
+      Assert.fail("the failure was swallowed");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    // the pass no longer counts as running, so the next pass reads the journal again.
+    Assert.assertTrue(file.exists());
+    Assert.assertNotSame(journal, DeployJournal.open(logger::debug, file));
+  }
+
+  private Bundle createInstalledBundle(long id) throws Exception {
+    final Bundle bundle = EasyMock.createNiceMock(Bundle.class);
+    EasyMock.expect(bundle.getBundleId()).andStubReturn(id);
+    EasyMock.expect(bundle.getHeaders()).andStubReturn(new Hashtable<>());
+    bundle.update();
+    EasyMock.expectLastCall().andStubThrow(new AssertionError("bundle updated again"));
+    EasyMock.replay(bundle);
+    return bundle;
+  }
+
+  @Test
+  public void twoPhaseBootResumesBothPhases() throws Exception {
+    final File core = folder.newFile("core.jar");
+    final File app = folder.newFile("app.jar");
+    Files.write(core.toPath(), new byte[10]);
+    Files.write(app.toPath(), new byte[20]);
+    final File file = new File(folder.getRoot(), "split.deploy-journal");
+
+    final DeployJournal interrupted = DeployJournal.open(logger::debug, file);
+    interrupted.begin();
+    interrupted.record(DeployPlan.OP_UPDATE, new DeployPlan.Entry(core, 5, null, false, true));
+    interrupted.record(DeployPlan.OP_UPDATE, new DeployPlan.Entry(app, 20, null, false, true));
+    interrupted.abandon();
+
+    final DeployPlan plan = new DeployPlan(Collections.singletonList(AutoProcessor.AUTO_DEPLOY_UPDATE_VALUE));
+    plan.setJournal(DeployJournal.open(logger::debug, file));
+    plan.add(new DeployPlan.Entry(core, 5, createInstalledBundle(1), false, true));
+    plan.add(new DeployPlan.Entry(app, 20, createInstalledBundle(2), false, true));
+
+    final FrameworkStartLevel fsl = EasyMock.createNiceMock(FrameworkStartLevel.class);
+    final Bundle system = EasyMock.createNiceMock(Bundle.class);
+    EasyMock.expect(system.adapt(FrameworkStartLevel.class)).andStubReturn(fsl);
+    final BundleContext context = EasyMock.createNiceMock(BundleContext.class);
+    EasyMock.expect(context.getBundle(0)).andStubReturn(system);
+    EasyMock.expect(context.getBundles()).andStubReturn(new Bundle[]{system});
+    EasyMock.replay(fsl, system, context);
+
+    Assert.assertTrue(new AutoProcessor(logger::debug).execute(plan.upTo(10), context));
+    // the background bundles still need their records.
+    Assert.assertTrue(file.exists());
+    Assert.assertTrue(plan.getJournal().isCompleted(plan.getEntries().get(1)));
+    Assert.assertFalse(plan.getJournal().isCompleted(plan.getEntries().get(0)));
+
+    Assert.assertTrue(new AutoProcessor(logger::debug).execute(plan.above(10), context));
+    Assert.assertFalse(file.exists());
+  }
+}
@@ -0,0 +1,52 @@
+package com.tmorgner.osgi.runner;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+public class DeployRootsTest {
+  private Logger logger = LogManager.getLogger();
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File createBundle(File dir, String name, String symbolicName) throws Exception {
+    dir.mkdirs();
+    final Manifest manifest = new Manifest();
+    manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    manifest.getMainAttributes().putValue("Bundle-SymbolicName", symbolicName);
+    final File file = new File(dir, name);
+    new JarOutputStream(new FileOutputStream(file), manifest).close();
+    return file;
+  }
+
+  @Test
+  public void laterRootsOverrideBySymbolicNameOrFileName() throws Exception {
+    final File platform = folder.newFolder("platform");
+    final File hotfix = folder.newFolder("hotfix");
+    createBundle(new File(platform, "rc10-core"), "core-1.0.jar", "core;singleton:=true");
+    createBundle(new File(platform, "rc10-core"), "util.jar", "util");
+    final File api = createBundle(new File(platform, "rc20"), "api.jar", "api");
+    final File core = createBundle(new File(hotfix, "rc15"), "core-1.1.jar", "core");
+    final File util = createBundle(hotfix, "util.jar", "util.patched");
+
+    final DeployRoots roots = new DeployRoots(logger::debug, ScanFilter.none(), Arrays.asList(platform, hotfix));
+    final List<String> found = new ArrayList<>();
+    roots.scan(100, (runLevel, file) -> found.add(runLevel + " " + file));
+
+    Assert.assertEquals(Arrays.asList("20 " + api, "15 " + core, "100 " + util), found);
+    Assert.assertEquals(new File("rc15", "core-1.1.jar").toPath(), roots.relativize(core));
+  }
+}
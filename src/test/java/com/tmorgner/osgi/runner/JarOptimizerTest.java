@@ -0,0 +1,68 @@
+package com.tmorgner.osgi.runner;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+public class JarOptimizerTest {
+  private Logger logger = LogManager.getLogger();
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File createJar(String name, String... entries) throws Exception {
+    final File file = new File(folder.getRoot(), name);
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+      for (String entry : entries) {
+        out.putNextEntry(new ZipEntry(entry));
+        out.write(("content of " + entry).getBytes(StandardCharsets.UTF_8));
+        out.closeEntry();
+      }
+    }
+    return file;
+  }
+
+  @Test
+  public void optimizedCopyStoresEntriesInLoadOrder() throws Exception {
+    final File jar = createJar("a.jar", "a/Z.class", "a/Y.class", "META-INF/MANIFEST.MF", "a/X.class");
+    final JarOptimizer optimizer = new JarOptimizer(folder.newFolder("cache"), 0, logger::debug);
+    final File copy = optimizer.optimize(jar, Arrays.asList("a/X.class", "a/Missing.class", "a/Y.class"));
+    Assert.assertNotEquals(jar, copy);
+
+    final List<String> names = new ArrayList<>();
+    try (ZipFile zip = new ZipFile(copy)) {
+      for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+        final ZipEntry entry = e.nextElement();
+        Assert.assertEquals(ZipEntry.STORED, entry.getMethod());
+        names.add(entry.getName());
+      }
+    }
+    Assert.assertEquals(Arrays.asList("META-INF/MANIFEST.MF", "a/X.class", "a/Y.class", "a/Z.class"), names);
+    Assert.assertEquals(copy, optimizer.optimize(jar, Arrays.asList("a/X.class", "a/Missing.class", "a/Y.class")));
+  }
+
+  @Test
+  public void signedJarsAreLeftUntouched() throws Exception {
+    final File jar = createJar("signed.jar", "META-INF/MANIFEST.MF", "META-INF/SIGNER.SF", "META-INF/SIGNER.RSA", "a/X.class");
+    final File cache = folder.newFolder("cache");
+    final JarOptimizer optimizer = new JarOptimizer(cache, 0, logger::debug);
+    Assert.assertEquals(jar, optimizer.optimize(jar, Collections.emptyList()));
+    Assert.assertEquals(jar, optimizer.optimize(jar, Collections.emptyList()));
+    Assert.assertFalse(JarOptimizer.isSignatureEntry("META-INF/maven/SIGNER.SF"));
+  }
+}
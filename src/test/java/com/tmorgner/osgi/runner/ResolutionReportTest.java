@@ -0,0 +1,130 @@
+package com.tmorgner.osgi.runner;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.easymock.EasyMock;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.startlevel.BundleStartLevel;
+import org.osgi.framework.startlevel.FrameworkStartLevel;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+
+public class ResolutionReportTest {
+  private static final String PACKAGE = "osgi.wiring.package";
+
+  private Logger logger = LogManager.getLogger();
+  private final List<Object> mocks = new ArrayList<>();
+
+  private <T> T mock(Class<T> type) {
+    final T mock = EasyMock.createNiceMock(type);
+    mocks.add(mock);
+    return mock;
+  }
+
+  private Bundle createBundle(long id, String name, int state, String exportedPackage, String importedPackage) {
+    final Bundle bundle = mock(Bundle.class);
+    final BundleRevision revision = mock(BundleRevision.class);
+    final BundleStartLevel bsl = mock(BundleStartLevel.class);
+    EasyMock.expect(bsl.getStartLevel()).andStubReturn(1);
+    EasyMock.expect(bundle.getBundleId()).andStubReturn(id);
+    EasyMock.expect(bundle.getSymbolicName()).andStubReturn(name);
+    EasyMock.expect(bundle.getLocation()).andStubReturn("file:/" + name + ".jar");
+    EasyMock.expect(bundle.getState()).andStubReturn(state);
+    EasyMock.expect(bundle.getHeaders()).andStubReturn(new Hashtable<>());
+    EasyMock.expect(bundle.adapt(BundleRevision.class)).andStubReturn(revision);
+    EasyMock.expect(bundle.adapt(BundleStartLevel.class)).andStubReturn(bsl);
+
+    final List<BundleCapability> capabilities = new ArrayList<>();
+    if (exportedPackage != null) {
+      final BundleCapability capability = mock(BundleCapability.class);
+      EasyMock.expect(capability.getNamespace()).andStubReturn(PACKAGE);
+      EasyMock.expect(capability.getAttributes()).andStubReturn(Collections.singletonMap(PACKAGE, exportedPackage));
+      EasyMock.expect(capability.getRevision()).andStubReturn(revision);
+      capabilities.add(capability);
+    }
+    final List<BundleRequirement> requirements = new ArrayList<>();
+    if (importedPackage != null) {
+      final BundleRequirement requirement = mock(BundleRequirement.class);
+      EasyMock.expect(requirement.getNamespace()).andStubReturn(PACKAGE);
+      EasyMock.expect(requirement.getDirectives()).andStubReturn(
+          Collections.singletonMap(Constants.FILTER_DIRECTIVE, "(" + PACKAGE + "=" + importedPackage + ")"));
+      requirements.add(requirement);
+    }
+    EasyMock.expect(revision.getDeclaredCapabilities(null)).andStubReturn(capabilities);
+    EasyMock.expect(revision.getDeclaredRequirements(null)).andStubReturn(requirements);
+    EasyMock.expect(revision.getBundle()).andStubReturn(bundle);
+    return bundle;
+  }
+
+  private BundleContext createContext(Bundle... bundles) throws Exception {
+    final FrameworkWiring wiring = mock(FrameworkWiring.class);
+    final FrameworkStartLevel fsl = mock(FrameworkStartLevel.class);
+    EasyMock.expect(fsl.getInitialBundleStartLevel()).andStubReturn(1);
+    final Bundle system = mock(Bundle.class);
+    EasyMock.expect(system.adapt(FrameworkWiring.class)).andStubReturn(wiring);
+    EasyMock.expect(system.adapt(FrameworkStartLevel.class)).andStubReturn(fsl);
+    final BundleContext context = mock(BundleContext.class);
+    EasyMock.expect(context.getBundle(0)).andStubReturn(system);
+    EasyMock.expect(context.getBundles()).andStubReturn(bundles);
+    EasyMock.expect(context.createFilter(EasyMock.anyString()))
+        .andStubAnswer(() -> FrameworkUtil.createFilter((String) EasyMock.getCurrentArguments()[0]));
+    return context;
+  }
+
+  @Test
+  public void failuresNameMissingAndUnresolvedProviders() throws Exception {
+    final Bundle resolved = createBundle(1, "resolved", Bundle.RESOLVED, "p.a", null);
+    final Bundle missing = createBundle(2, "missing", Bundle.INSTALLED, null, "p.missing");
+    final Bundle consumer = createBundle(3, "consumer", Bundle.INSTALLED, null, "p.d");
+    final Bundle provider = createBundle(4, "provider", Bundle.INSTALLED, "p.d", "p.gone");
+    final BundleContext context = createContext(resolved, missing, consumer, provider);
+    EasyMock.replay(mocks.toArray());
+
+    final ResolutionReport report = ResolutionReport.resolve(context, Arrays.asList(resolved, missing, consumer));
+    Assert.assertNotNull(report);
+    Assert.assertTrue(report.isResolved(resolved));
+    Assert.assertFalse(report.isResolved(missing));
+    Assert.assertFalse(report.isResolved(consumer));
+    Assert.assertEquals(Arrays.asList(missing, consumer), new ArrayList<>(report.getFailures().keySet()));
+    Assert.assertEquals(Collections.singletonList("missing " + PACKAGE + " (" + PACKAGE + "=p.missing)"),
+        report.getFailures().get(missing));
+    Assert.assertEquals(Collections.singletonList(PACKAGE + " (" + PACKAGE + "=p.d) is only provided by unresolved [provider]"),
+        report.getFailures().get(consumer));
+  }
+
+  @Test
+  public void unresolvedBundlesAreNotStarted() throws Exception {
+    final Bundle resolved = createBundle(1, "resolved", Bundle.RESOLVED, null, null);
+    resolved.start();
+    EasyMock.expectLastCall().once();
+    final Bundle unresolved = createBundle(2, "unresolved", Bundle.INSTALLED, null, "p.missing");
+    unresolved.start();
+    EasyMock.expectLastCall().andStubThrow(new AssertionError("unresolved bundle started"));
+    final BundleContext context = createContext(resolved, unresolved);
+    EasyMock.replay(mocks.toArray());
+
+    final DeployPlan plan = new DeployPlan(Collections.singletonList(AutoProcessor.AUTO_DEPLOY_START_VALUE));
+    plan.setPreResolve(true);
+    plan.add(new DeployPlan.Entry(new File("resolved.jar"), 1, resolved, false, false));
+    plan.add(new DeployPlan.Entry(new File("unresolved.jar"), 1, unresolved, false, false));
+
+    final AutoProcessor processor = new AutoProcessor(logger::debug);
+    Assert.assertFalse(processor.execute(plan, context));
+    Assert.assertFalse(processor.getResolutionReport().isResolved(unresolved));
+    EasyMock.verify(resolved);
+  }
+}
@@ -0,0 +1,108 @@
+package com.tmorgner.osgi.runner;
+
+import org.easymock.Capture;
+import org.easymock.EasyMock;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceRegistration;
+
+import java.util.Dictionary;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class SharedExecutorTest {
+  private Bundle createBundle(String name) {
+    final Bundle bundle = EasyMock.createNiceMock(Bundle.class);
+    EasyMock.expect(bundle.getSymbolicName()).andStubReturn(name);
+    EasyMock.replay(bundle);
+    return bundle;
+  }
+
+  @SuppressWarnings("unchecked")
+  private ServiceFactory<ExecutorService> register(SharedExecutor executor) {
+    final Capture<Object> factory = Capture.newInstance();
+    final Capture<Dictionary<String, ?>> properties = Capture.newInstance();
+    final BundleContext context = EasyMock.createMock(BundleContext.class);
+    EasyMock.expect(context.registerService(EasyMock.eq(ExecutorService.class.getName()),
+        EasyMock.capture(factory), EasyMock.capture(properties))).andReturn(null);
+    EasyMock.replay(context);
+    executor.register(context);
+    EasyMock.verify(context);
+    Assert.assertEquals(SharedExecutor.SERVICE_NAME_VALUE, properties.getValue().get(SharedExecutor.SERVICE_NAME_PROPERTY));
+    Assert.assertEquals(Boolean.FALSE, properties.getValue().get(SharedExecutor.VIRTUAL_THREADS_PROPERTY));
+    return (ServiceFactory<ExecutorService>) factory.getValue();
+  }
+
+  @Test(timeout = 10000)
+  public void eachBundleGetsItsOwnCountedView() throws Exception {
+    final SharedExecutor executor = new SharedExecutor(1);
+    try {
+      // the tests run against the Java 8 tree, which has no virtual threads.
+      Assert.assertFalse(executor.isVirtualThreads());
+      final ServiceFactory<ExecutorService> factory = register(executor);
+      final ExecutorService first = factory.getService(createBundle("first"), null);
+      final ExecutorService second = factory.getService(createBundle("second"), null);
+
+      final CountDownLatch release = new CountDownLatch(1);
+      first.execute(() -> {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      });
+      final CountDownLatch done = new CountDownLatch(1);
+      second.execute(done::countDown);
+      Thread.sleep(50);
+      release.countDown();
+      done.await();
+      first.shutdown();
+      Assert.assertTrue(first.awaitTermination(5, TimeUnit.SECONDS));
+
+      Assert.assertEquals(Long.valueOf(1), executor.getTasksSubmitted().get("first"));
+      Assert.assertEquals(Long.valueOf(1), executor.getTasksCompleted().get("first"));
+      Assert.assertEquals(Long.valueOf(1), executor.getTasksSubmitted().get("second"));
+      // the single pool thread was busy with the first task, so the second one had to wait.
+      Assert.assertTrue(executor.getMaxQueueTimeMillis().get("second") >= 40);
+      Assert.assertTrue(executor.getTotalQueueTimeMillis().get("second") >= executor.getMaxQueueTimeMillis().get("second"));
+
+      // shutting down a view only affects its bundle.
+      Assert.assertTrue(first.isShutdown());
+      try {
+        first.execute(() -> { });
+        Assert.fail("task of a shut down view accepted");
+      } catch (RejectedExecutionException e) {
+        // expected
+      }
+      Assert.assertFalse(second.isShutdown());
+      Assert.assertEquals("ok", second.submit(() -> "ok").get());
+
+      factory.ungetService(null, (ServiceRegistration<ExecutorService>) null, second);
+      Assert.assertTrue(second.isShutdown());
+      Assert.assertTrue(second.awaitTermination(5, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void sharedShutdownRejectsFurtherTasks() throws Exception {
+    final SharedExecutor executor = new SharedExecutor(2);
+    final ExecutorService view = register(executor).getService(createBundle("late"), null);
+    executor.shutdown();
+    try {
+      view.execute(() -> { });
+      Assert.fail("task accepted after the shared pool was shut down");
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+    view.shutdown();
+    // the rejected task is not counted as running.
+    Assert.assertTrue(view.isTerminated());
+  }
+}
@@ -0,0 +1,65 @@
+package com.tmorgner.osgi.runner;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.easymock.EasyMock;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.startlevel.FrameworkStartLevel;
+import org.osgi.service.startlevel.StartLevel;
+
+public class StartLevelAssignerTest {
+  private Logger logger = LogManager.getLogger();
+
+  private Bundle createBundle(long id) {
+    final Bundle bundle = EasyMock.createMock(Bundle.class);
+    EasyMock.expect(bundle.getBundleId()).andStubReturn(id);
+    return bundle;
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void onlyDifferingLevelsAreChangedThroughOneLegacyService() {
+    final Bundle system = createBundle(0);
+    EasyMock.expect(system.adapt(FrameworkStartLevel.class)).andReturn(null);
+    final Bundle correct = createBundle(1);
+    final Bundle moved = createBundle(2);
+    final Bundle installed = createBundle(3);
+
+    final ServiceReference<StartLevel> reference = EasyMock.createMock(ServiceReference.class);
+    final StartLevel startLevel = EasyMock.createStrictMock(StartLevel.class);
+    EasyMock.expect(startLevel.getInitialBundleStartLevel()).andReturn(1);
+    EasyMock.expect(startLevel.getBundleStartLevel(system)).andReturn(0);
+    EasyMock.expect(startLevel.getBundleStartLevel(correct)).andReturn(5);
+    EasyMock.expect(startLevel.getBundleStartLevel(moved)).andReturn(5);
+    startLevel.setBundleStartLevel(moved, 10);
+    startLevel.setInitialBundleStartLevel(20);
+    EasyMock.expect(startLevel.getBundleStartLevel(installed)).andReturn(20);
+    startLevel.setInitialBundleStartLevel(1);
+
+    final BundleContext context = EasyMock.createMock(BundleContext.class);
+    EasyMock.expect(context.getBundle(0)).andReturn(system);
+    EasyMock.expect(context.getServiceReference(StartLevel.class)).andReturn(reference).once();
+    EasyMock.expect(context.getService(reference)).andReturn(startLevel).once();
+    EasyMock.expect(context.getBundles()).andReturn(new Bundle[]{system, correct, moved});
+    EasyMock.expect(context.ungetService(reference)).andReturn(true).once();
+    EasyMock.replay(system, correct, moved, installed, reference, startLevel, context);
+
+    final StartLevelAssigner assigner = new StartLevelAssigner(logger::debug, context);
+    Assert.assertFalse(assigner.assign(correct, 5));
+    Assert.assertTrue(assigner.assign(moved, 10));
+    assigner.prepareInstall(20);
+    assigner.installed(installed);
+    assigner.prepareInstall(20);
+    Assert.assertFalse(assigner.assign(installed, 20));
+    assigner.close();
+    assigner.close();
+
+    Assert.assertEquals(1, assigner.getChanged());
+    Assert.assertEquals(2, assigner.getUnchanged());
+    EasyMock.verify(startLevel, context);
+  }
+}
@@ -0,0 +1,97 @@
+package com.tmorgner.osgi.runner;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.easymock.EasyMock;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.startlevel.FrameworkStartLevel;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class StartLevelRampTest {
+  private Logger logger = LogManager.getLogger();
+
+  @Test
+  public void rampStopsAtGatesAndDeployedRunLevels() {
+    final Map<String, String> config = new HashMap<>();
+    Assert.assertNull(StartLevelRamp.fromConfig(logger::debug, config, null));
+
+    config.put(Main.START_LEVEL_RAMP_PROP, "true");
+    config.put(Main.START_LEVEL_RAMP_GATE_PREFIX + "5", "com.example.DataSource; (name=db)");
+    config.put(Main.START_LEVEL_RAMP_GATE_PREFIX + "7", "(broken");
+    config.put(Main.START_LEVEL_RAMP_GATE_PREFIX + "x", "com.example.Ignored");
+    final StartLevelRamp ramp = StartLevelRamp.fromConfig(logger::debug, config, new Timings());
+    Assert.assertNotNull(ramp);
+    Assert.assertEquals(Collections.singletonList(5), ramp.getLevels());
+
+    final DeployPlan plan = new DeployPlan(Collections.singletonList(AutoProcessor.AUTO_DEPLOY_INSTALL_VALUE));
+    plan.add(new DeployPlan.Entry(new File("a.jar"), 20, null, true, false));
+    plan.add(new DeployPlan.Entry(new File("b.jar"), 10, null, true, false));
+    plan.add(new DeployPlan.Entry(new File("c.jar"), 20, null, true, false));
+    ramp.addLevels(plan);
+    ramp.addLevels(null);
+    Assert.assertEquals(Arrays.asList(5, 10, 20), ramp.getLevels());
+  }
+
+  @Test(timeout = 10000)
+  public void raiseAwaitsTheGatesFromTheCurrentLevelOn() throws Exception {
+    final String ready = "(objectClass=com.example.Ready)";
+    final String missing = "(objectClass=com.example.Missing)";
+    final Map<Integer, List<String>> gates = new HashMap<>();
+    gates.put(1, Collections.singletonList(ready));
+    gates.put(5, Collections.singletonList(missing));
+    final StartLevelRamp ramp = new StartLevelRamp(logger::debug, new Timings(), gates, 200);
+
+    final List<String> events = new CopyOnWriteArrayList<>();
+    final List<FrameworkListener> listeners = new CopyOnWriteArrayList<>();
+    final AtomicInteger level = new AtomicInteger(1);
+    final FrameworkStartLevel fsl = EasyMock.createNiceMock(FrameworkStartLevel.class);
+    EasyMock.expect(fsl.getStartLevel()).andStubAnswer(level::get);
+    final Bundle system = EasyMock.createNiceMock(Bundle.class);
+    EasyMock.expect(system.getState()).andStubReturn(Bundle.ACTIVE);
+    EasyMock.expect(system.adapt(FrameworkStartLevel.class)).andStubReturn(fsl);
+    fsl.setStartLevel(EasyMock.anyInt());
+    EasyMock.expectLastCall().andStubAnswer(() -> {
+      level.set((Integer) EasyMock.getCurrentArguments()[0]);
+      events.add("level " + level.get());
+      for (FrameworkListener listener : listeners) {
+        listener.frameworkEvent(new FrameworkEvent(FrameworkEvent.STARTLEVEL_CHANGED, system, null));
+      }
+      return null;
+    });
+    final ServiceReference<?> reference = EasyMock.createNiceMock(ServiceReference.class);
+    final BundleContext context = EasyMock.createNiceMock(BundleContext.class);
+    EasyMock.expect(context.getBundle(0)).andStubReturn(system);
+    context.addFrameworkListener(EasyMock.anyObject());
+    EasyMock.expectLastCall().andStubAnswer(() -> listeners.add((FrameworkListener) EasyMock.getCurrentArguments()[0]));
+    context.removeFrameworkListener(EasyMock.anyObject());
+    EasyMock.expectLastCall().andStubAnswer(() -> listeners.remove(EasyMock.getCurrentArguments()[0]));
+    EasyMock.expect(context.getAllServiceReferences(EasyMock.isNull(), EasyMock.anyString())).andStubAnswer(() -> {
+      final String filter = (String) EasyMock.getCurrentArguments()[1];
+      if (events.isEmpty() || !events.get(events.size() - 1).equals("gate " + filter)) {
+        events.add("gate " + filter);
+      }
+      return filter.equals(ready) ? new ServiceReference<?>[]{reference} : null;
+    });
+    EasyMock.replay(fsl, system, reference, context);
+
+    // the gate at level 5 times out, the ramp still reaches the target level.
+    Assert.assertFalse(ramp.raise(context, 10));
+    Assert.assertEquals(Arrays.asList("gate " + ready, "level 5", "gate " + missing, "level 10"), events);
+    Assert.assertEquals(10, level.get());
+    Assert.assertTrue(listeners.isEmpty());
+  }
+}
@@ -0,0 +1,93 @@
+package com.tmorgner.osgi.runner;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.easymock.EasyMock;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Properties;
+
+public class StartSchedulerTest {
+  private Logger logger = LogManager.getLogger();
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Bundle createBundle(String name, String exports, String imports, List<String> started) throws Exception {
+    final Hashtable<String, String> headers = new Hashtable<>();
+    headers.put(Constants.BUNDLE_SYMBOLICNAME, name);
+    if (exports != null) {
+      headers.put(Constants.EXPORT_PACKAGE, exports);
+    }
+    if (imports != null) {
+      headers.put(Constants.IMPORT_PACKAGE, imports);
+    }
+    final Bundle bundle = EasyMock.createNiceMock(Bundle.class);
+    EasyMock.expect(bundle.getSymbolicName()).andStubReturn(name);
+    EasyMock.expect(bundle.getLocation()).andStubReturn(name);
+    EasyMock.expect(bundle.getHeaders()).andStubReturn(headers);
+    bundle.start(Bundle.START_TRANSIENT);
+    EasyMock.expectLastCall().andAnswer(() -> {
+      synchronized (started) {
+        started.add(name);
+      }
+      return null;
+    }).anyTimes();
+    EasyMock.replay(bundle);
+    return bundle;
+  }
+
+  private StartHistory createHistory(String... durations) throws Exception {
+    final Properties properties = new Properties();
+    for (int i = 0; i < durations.length; i += 2) {
+      properties.setProperty(durations[i], durations[i + 1]);
+    }
+    final File file = folder.newFile("history");
+    try (OutputStream out = new FileOutputStream(file)) {
+      properties.store(out, null);
+    }
+    final StartHistory history = new StartHistory(file);
+    history.load();
+    return history;
+  }
+
+  @Test
+  public void criticalPathStartsFirst() throws Exception {
+    final List<String> started = new ArrayList<>();
+    // "slow" takes longest on its own, but "api" followed by "impl" is the longer path.
+    final List<Bundle> bundles = Arrays.asList(
+        createBundle("slow", null, null, started),
+        createBundle("impl", null, "com.example.api", started),
+        createBundle("api", "com.example.api", null, started));
+    final StartHistory history = createHistory("slow", "50", "impl", "40", "api", "20");
+
+    Assert.assertTrue(new StartScheduler(logger::debug, history, 1).start(Collections.singletonMap(1, bundles)));
+    Assert.assertEquals(Arrays.asList("api", "slow", "impl"), started);
+  }
+
+  @Test
+  public void unknownBundlesUseAverageDuration() throws Exception {
+    final List<String> started = new ArrayList<>();
+    final List<Bundle> bundles = Arrays.asList(
+        createBundle("fast", null, null, started),
+        createBundle("unknown", null, null, started),
+        createBundle("slow", null, null, started));
+    final StartHistory history = createHistory("fast", "10", "slow", "30");
+
+    Assert.assertTrue(new StartScheduler(logger::debug, history, 1).start(Collections.singletonMap(1, bundles)));
+    Assert.assertEquals(Arrays.asList("slow", "unknown", "fast"), started);
+  }
+}
@@ -0,0 +1,50 @@
+package com.tmorgner.osgi.runner;
+
+import org.easymock.EasyMock;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class StartWatchdogTest {
+  @Test(timeout = 5000)
+  public void hardLimitInterruptsBlockedActivation() throws Exception {
+    final Bundle bundle = EasyMock.createNiceMock(Bundle.class);
+    EasyMock.expect(bundle.getBundleId()).andStubReturn(1L);
+    EasyMock.expect(bundle.getSymbolicName()).andStubReturn("blocked");
+    EasyMock.replay(bundle);
+
+    final List<String> log = new ArrayList<>();
+    final StartWatchdog watchdog = new StartWatchdog(line -> {
+      synchronized (log) {
+        log.add(line);
+      }
+    }, 100, 20, 300);
+    final boolean[] interrupted = new boolean[1];
+    final Thread activator = new Thread(() -> {
+      watchdog.bundleChanged(new BundleEvent(BundleEvent.STARTING, bundle));
+      try {
+        Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+      } catch (InterruptedException e) {
+        interrupted[0] = true;
+      }
+      watchdog.bundleChanged(new BundleEvent(BundleEvent.STOPPED, bundle));
+    });
+    try {
+      activator.start();
+      activator.join();
+    } finally {
+      watchdog.shutdown();
+    }
+
+    Assert.assertTrue(interrupted[0]);
+    synchronized (log) {
+      Assert.assertTrue(log.stream().anyMatch(l -> l.startsWith("Slow start of blocked failed")));
+      Assert.assertTrue(log.stream().anyMatch(l -> l.contains("% java.lang.Thread.sleep")));
+    }
+  }
+}
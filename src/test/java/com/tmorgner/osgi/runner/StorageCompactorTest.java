@@ -0,0 +1,76 @@
+package com.tmorgner.osgi.runner;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+public class StorageCompactorTest {
+  private Logger logger = LogManager.getLogger();
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File createBundle(File storage, long id, String location, int state, String... revisions) throws IOException {
+    final File dir = new File(storage, "bundle" + id);
+    dir.mkdirs();
+    Files.write(new File(dir, "bundle.info").toPath(),
+        (id + "\n" + location + "\n" + state + "\n1\n0\n0\n").getBytes(StandardCharsets.UTF_8));
+    for (String revision : revisions) {
+      new File(dir, revision).mkdirs();
+      Files.write(new File(dir, revision + "/bundle.jar").toPath(), new byte[100]);
+    }
+    new File(dir, "data").mkdirs();
+    Files.write(new File(dir, "data/state").toPath(), new byte[10]);
+    return dir;
+  }
+
+  @Test
+  public void compactionKeepsCurrentRevisionsAndDataAreas() throws Exception {
+    final File storage = folder.newFolder("cache");
+    new File(storage, "bundle0").mkdirs();
+    final File active = createBundle(storage, 1, "file:/a.jar", 32, "version0.0", "version0.1");
+    final File uninstalled = createBundle(storage, 2, "file:/b.jar", 1, "version0.0");
+    final File broken = new File(storage, "bundle3");
+    new File(broken, "version0.0").mkdirs();
+
+    final StorageCompactor compactor = new StorageCompactor(logger::debug, storage);
+    final List<StorageCompactor.Waste> report = compactor.compact(Collections.singleton("file:/a.jar"), true);
+    Assert.assertEquals(3, report.size());
+    Assert.assertTrue(new File(active, "version0.0").exists());
+
+    compactor.compact(Collections.singleton("file:/a.jar"), false);
+    Assert.assertFalse(new File(active, "version0.0").exists());
+    Assert.assertTrue(new File(active, "version0.1/bundle.jar").exists());
+    Assert.assertTrue(new File(active, "data/state").exists());
+    Assert.assertFalse(uninstalled.exists());
+    Assert.assertFalse(broken.exists());
+    Assert.assertTrue(new File(storage, "bundle0").exists());
+    Assert.assertTrue(compactor.compact(Collections.emptySet(), false).isEmpty());
+    Assert.assertTrue(new File(active, "data/state").exists());
+  }
+
+  @Test(expected = IOException.class)
+  public void lockedStorageIsNotTouched() throws Exception {
+    final File storage = folder.newFolder("cache");
+    createBundle(storage, 1, "file:/a.jar", 1, "version0.0");
+    try (RandomAccessFile raf = new RandomAccessFile(new File(storage, "cache.lock"), "rw");
+         FileChannel channel = raf.getChannel()) {
+      final FileLock lock = channel.lock();
+      Assert.assertTrue(lock.isValid());
+      new StorageCompactor(logger::debug, storage).compact(null, false);
+    }
+  }
+}
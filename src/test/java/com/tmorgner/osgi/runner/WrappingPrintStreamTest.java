@@ -0,0 +1,61 @@
+package com.tmorgner.osgi.runner;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+public class WrappingPrintStreamTest {
+  @Test
+  public void tokenBucketAllowsBurstsAndRefillsWithTheRate() {
+    final ConsoleStatistics.Source source = new ConsoleStatistics.Source("bundle");
+    final long second = TimeUnit.SECONDS.toNanos(1);
+    Assert.assertTrue(source.tryAcquire(1, 2, 0));
+    Assert.assertTrue(source.tryAcquire(1, 2, 0));
+    Assert.assertFalse(source.tryAcquire(1, 2, 0));
+    Assert.assertFalse(source.tryAcquire(1, 2, second / 2));
+    Assert.assertTrue(source.tryAcquire(1, 2, second));
+    Assert.assertFalse(source.tryAcquire(1, 2, second));
+    // the bucket never holds more than the burst.
+    Assert.assertTrue(source.tryAcquire(1, 2, 10 * second));
+    Assert.assertTrue(source.tryAcquire(1, 2, 10 * second));
+    Assert.assertFalse(source.tryAcquire(1, 2, 10 * second));
+  }
+
+  @Test
+  public void suppressedOutputIsSummarizedOnce() {
+    final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    final WrappingPrintStream console = new WrappingPrintStream(new PrintStream(bout, true));
+    final ConsoleStatistics.Source source = console.getStatistics().getSource("noisy [7]");
+    source.countSuppressed(10, false);
+    source.countSuppressed(5, true);
+    source.countSuppressed(4, true);
+
+    console.flushSuppressed();
+    console.flushSuppressed();
+    Assert.assertEquals("[console] suppressed 2 lines (19 bytes) from noisy [7]" + System.lineSeparator(),
+        new String(bout.toByteArray(), StandardCharsets.UTF_8));
+    Assert.assertEquals(Long.valueOf(2), console.getStatistics().getLinesSuppressed().get("noisy [7]"));
+    Assert.assertEquals(Long.valueOf(19), console.getStatistics().getBytesSuppressed().get("noisy [7]"));
+  }
+
+  @Test
+  public void launcherOutputIsCountedAndNeverLimited() {
+    final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    final WrappingPrintStream console = new WrappingPrintStream(new PrintStream(bout, true));
+    console.getStatistics().setRateLimit(0.001, 1);
+    Assert.assertTrue(console.getStatistics().isRateLimited());
+
+    console.print("ab");
+    console.print("c\nde\n");
+    console.print("f");
+    Assert.assertEquals("abc\nde\nf", new String(bout.toByteArray(), StandardCharsets.UTF_8));
+    final ConsoleStatistics statistics = console.getStatistics();
+    Assert.assertEquals(Long.valueOf(2), statistics.getLinesWritten().get(ConsoleStatistics.SYSTEM_SOURCE));
+    Assert.assertEquals(Long.valueOf(8), statistics.getBytesWritten().get(ConsoleStatistics.SYSTEM_SOURCE));
+    Assert.assertEquals(Long.valueOf(0), statistics.getLinesSuppressed().get(ConsoleStatistics.SYSTEM_SOURCE));
+  }
+}